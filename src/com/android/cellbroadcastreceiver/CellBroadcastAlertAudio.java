@@ -35,10 +35,15 @@ import android.os.Message;
 import android.os.Vibrator;
 import android.provider.Settings;
 import android.speech.tts.TextToSpeech;
+import android.telephony.CellBroadcastMessage;
 import android.telephony.PhoneStateListener;
+import android.telephony.SmsCbCmasInfo;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 
+import com.android.cellbroadcastreceiver.CellBroadcastAlertScheduler.AlertRequest;
+
+import java.io.File;
 import java.util.HashMap;
 import java.util.Locale;
 
@@ -47,14 +52,25 @@ import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
 /**
  * Manages alert audio and vibration and text-to-speech. Runs as a service so that
  * it can continue to play if another activity overrides the CellBroadcastListActivity.
+ * <p>
+ * An alert arriving while another one plays is scheduled by priority: a higher priority
+ * alert interrupts the current one, whose speech is resumed afterwards; other alerts are
+ * queued, and an alert already playing or queued is not played twice.
  */
 public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnInitListener,
-        TextToSpeech.OnUtteranceCompletedListener {
+        TextToSpeech.OnUtteranceCompletedListener, CellBroadcastSpeechBuffer.Listener {
     private static final String TAG = "CellBroadcastAlertAudio";
 
     /** Action to start playing alert audio/vibration/speech. */
     static final String ACTION_START_ALERT_AUDIO = "ACTION_START_ALERT_AUDIO";
 
+    /**
+     * Action to stop the alert identified by {@link #ALERT_AUDIO_ALERT_KEY_EXTRA}, or the
+     * alert playing if there is none, and go on with the alerts queued. See
+     * {@link #stopAlert}.
+     */
+    static final String ACTION_STOP_ALERT_AUDIO = "ACTION_STOP_ALERT_AUDIO";
+
     /** Extra for alert audio duration (from settings). */
     public static final String ALERT_AUDIO_DURATION_EXTRA =
             "com.android.cellbroadcastreceiver.ALERT_AUDIO_DURATION";
@@ -81,6 +97,21 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     public static final String ALERT_AUDIO_PRESIDENT_TONE_VIBRATE_EXTRA =
         "com.android.cellbroadcastreceiver.ALERT_AUDIO_PRESIDENT_TONE_VIBRATE";
 
+    /** Extra for the playback priority of the alert, from {@link #getAlertPriority}. */
+    public static final String ALERT_AUDIO_PRIORITY_EXTRA =
+            "com.android.cellbroadcastreceiver.ALERT_AUDIO_PRIORITY";
+
+    /** Extra identifying the alert, from {@link #getAlertKey}, to coalesce its repeats. */
+    public static final String ALERT_AUDIO_ALERT_KEY_EXTRA =
+            "com.android.cellbroadcastreceiver.ALERT_AUDIO_ALERT_KEY";
+
+    /** Playback priorities: an alert interrupts the alerts of lower priority. */
+    static final int PRIORITY_TEST = 0;
+    static final int PRIORITY_AMBER = 1;
+    static final int PRIORITY_SEVERE = 2;
+    static final int PRIORITY_EXTREME = 3;
+    static final int PRIORITY_PRESIDENTIAL = 4;
+
     private static final String TTS_UTTERANCE_ID = "com.android.cellbroadcastreceiver.UTTERANCE_ID";
 
     /** Pause duration between alert sound and alert speech. */
@@ -97,8 +128,24 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
     private int mState;
 
+    /** The alert playing and the alerts queued after it. */
+    private final CellBroadcastAlertScheduler mScheduler = new CellBroadcastAlertScheduler();
+    /** The utterance ID of the speech of the current alert. */
+    private String mSpeechUtteranceId;
+
     private TextToSpeech mTts;
     private boolean mTtsEngineReady;
+    /** Whether this service holds the shared engine of CellBroadcastTtsManager. */
+    private boolean mTtsAcquired;
+
+    /**
+     * The message text synthesized while the alert sound plays, if the engine accepted it;
+     * read by the utterance callback on a binder thread.
+     */
+    private volatile CellBroadcastSpeechBuffer mSpeechBuffer;
+    /** Plays the synthesized chunk {@link #mSpeechChunk}. */
+    private MediaPlayer mSpeechPlayer;
+    private int mSpeechChunk;
 
     private String mMessageBody;
     private String mMessageLanguage;
@@ -108,6 +155,8 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
     private Vibrator mVibrator;
     private MediaPlayer mMediaPlayer;
+    /** The pre-decoded attention signal while it is playing. */
+    private CellBroadcastAlertTone mAlertTone;
     private AudioManager mAudioManager;
     private TelephonyManager mTelephonyManager;
     private int mInitialCallState;
@@ -120,6 +169,7 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     // Internal messages
     private static final int ALERT_SOUND_FINISHED = 1000;
     private static final int ALERT_PAUSE_FINISHED = 1001;
+    private static final int ALERT_SPEECH_FINISHED = 1002;
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
@@ -136,30 +186,31 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
                         if (DBG) log("MessageEmpty = " + (mMessageBody == null) +
                                 ", mTtsEngineReady = " + mTtsEngineReady +
                                 ", mTtsLanguageSupported = " + mTtsLanguageSupported);
-                        stopSelf();
-                        mState = STATE_IDLE;
+                        finishAlert();
                     }
                     break;
 
                 case ALERT_PAUSE_FINISHED:
                     if (DBG) log("ALERT_PAUSE_FINISHED");
-                    int res = TextToSpeech.ERROR;
-                    if (mMessageBody != null && mTtsEngineReady && mTtsLanguageSupported) {
-                        if (DBG) log("Speaking broadcast text: " + mMessageBody);
-                        HashMap<String, String> ttsHashMap = new HashMap<String, String>();
-                        ttsHashMap.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID,
-                                TTS_UTTERANCE_ID);
-                        // Play TTS on notification stream.
-                        ttsHashMap.put(TextToSpeech.Engine.KEY_PARAM_STREAM,
-                                Integer.toString(AudioManager.STREAM_NOTIFICATION));
-
-                        res = mTts.speak(mMessageBody, TextToSpeech.QUEUE_FLUSH, ttsHashMap);
+                    if (mSpeechBuffer != null) {
+                        // play the synthesized chunks, from the first one
                         mState = STATE_SPEAKING;
+                        mSpeechChunk = 0;
+                        playSpeechChunk();
+                    } else if (mMessageBody != null && mTtsEngineReady
+                            && mTtsLanguageSupported) {
+                        speak(mMessageBody);
+                    } else {
+                        loge("TTS engine not ready or language not supported");
+                        finishAlert();
                     }
-                    if (res != TextToSpeech.SUCCESS) {
-                        loge("TTS engine not ready or language not supported or speak() failed");
-                        stopSelf();
-                        mState = STATE_IDLE;
+                    break;
+
+                case ALERT_SPEECH_FINISHED:
+                    // ignore the speech of an interrupted alert
+                    if (mState == STATE_SPEAKING && msg.obj.equals(mSpeechUtteranceId)) {
+                        if (DBG) log("ALERT_SPEECH_FINISHED");
+                        finishAlert();
                     }
                     break;
 
@@ -188,14 +239,21 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     public void onInit(int status) {
         if (DBG) log("onInit() TTS engine status: " + status);
         if (status == TextToSpeech.SUCCESS) {
+            mTts = CellBroadcastTtsManager.getInstance(this).getTextToSpeech();
             mTtsEngineReady = true;
             mTts.setOnUtteranceCompletedListener(this);
             // try to set the TTS language to match the broadcast
             setTtsLanguage();
+            startSpeechSynthesis();
         } else {
             mTtsEngineReady = false;
             mTts = null;
             loge("onInit() TTS engine error: " + status);
+            // the manager unbound the engine; the next alert binds it again
+            if (mTtsAcquired) {
+                mTtsAcquired = false;
+                CellBroadcastTtsManager.getInstance(this).release(this);
+            }
         }
     }
 
@@ -217,18 +275,147 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         }
     }
 
+    /**
+     * Start synthesizing the message text while the alert sound plays, unless it's already
+     * done for this alert.
+     */
+    private void startSpeechSynthesis() {
+        if (mSpeechBuffer == null && mMessageBody != null && mEnableAudio && mTtsEngineReady
+                && mTtsLanguageSupported) {
+            mSpeechBuffer = CellBroadcastSpeechBuffer.start(mTts, mMessageBody,
+                    mMessageLanguage != null ? new Locale(mMessageLanguage) : null,
+                    getCacheDir(), this);
+        }
+    }
+
+    private void releaseSpeechBuffer() {
+        if (mSpeechBuffer != null) {
+            mSpeechBuffer.release();
+            mSpeechBuffer = null;
+        }
+    }
+
+    /**
+     * Called when a chunk of the message text has been synthesized.
+     * @param index the index of the chunk
+     */
+    @Override
+    public void onChunkSynthesized(int index) {
+        // continue speaking if it was waiting for this chunk
+        if (mState == STATE_SPEAKING && mSpeechPlayer == null && index == mSpeechChunk) {
+            playSpeechChunk();
+        }
+    }
+
+    /**
+     * Play the synthesized chunk {@link #mSpeechChunk}, or wait for it to be synthesized.
+     * If it couldn't be synthesized, speak the rest of the message directly.
+     */
+    private void playSpeechChunk() {
+        if (mSpeechChunk >= mSpeechBuffer.getChunkCount()) {
+            if (DBG) log("Finished speaking broadcast text");
+            finishAlert();
+            return;
+        }
+        switch (mSpeechBuffer.getChunkState(mSpeechChunk)) {
+            case CellBroadcastSpeechBuffer.CHUNK_PENDING:
+                if (DBG) log("Waiting for the synthesis of chunk " + mSpeechChunk);
+                return;
+
+            case CellBroadcastSpeechBuffer.CHUNK_READY:
+                File file = mSpeechBuffer.getChunkFile(mSpeechChunk);
+                if (DBG) log("Playing synthesized chunk " + mSpeechChunk);
+                mSpeechPlayer = new MediaPlayer();
+                mSpeechPlayer.setOnCompletionListener(new OnCompletionListener() {
+                    @Override
+                    public void onCompletion(MediaPlayer mp) {
+                        releaseSpeechPlayer();
+                        mSpeechChunk++;
+                        playSpeechChunk();
+                    }
+                });
+                mSpeechPlayer.setOnErrorListener(new OnErrorListener() {
+                    @Override
+                    public boolean onError(MediaPlayer mp, int what, int extra) {
+                        loge("Error occurred while playing synthesized speech.");
+                        releaseSpeechPlayer();
+                        speakRemainingChunks();
+                        return true;
+                    }
+                });
+                try {
+                    mSpeechPlayer.setAudioStreamType(AudioManager.STREAM_NOTIFICATION);
+                    mSpeechPlayer.setDataSource(file.getPath());
+                    mSpeechPlayer.prepare();
+                    mSpeechPlayer.start();
+                } catch (Exception ex) {
+                    loge("Failed to play synthesized speech: " + ex);
+                    releaseSpeechPlayer();
+                    speakRemainingChunks();
+                }
+                return;
+
+            case CellBroadcastSpeechBuffer.CHUNK_FAILED:
+            default:
+                speakRemainingChunks();
+        }
+    }
+
+    /** Speak the message from the chunk {@link #mSpeechChunk}, without the cache files. */
+    private void speakRemainingChunks() {
+        String text = mSpeechBuffer.getText(mSpeechChunk);
+        // cancel the synthesis still queued before the engine
+        releaseSpeechBuffer();
+        speak(text);
+    }
+
+    private void releaseSpeechPlayer() {
+        if (mSpeechPlayer != null) {
+            try {
+                mSpeechPlayer.stop();
+                mSpeechPlayer.release();
+            } catch (IllegalStateException e) {
+                // catch "Unable to retrieve AudioTrack pointer for stop()" exception
+                loge("exception trying to stop speech player");
+            }
+            mSpeechPlayer = null;
+        }
+    }
+
+    /**
+     * Speak text with the TTS engine, stopping the service when it's done.
+     * @param text the text to speak
+     */
+    private void speak(String text) {
+        if (DBG) log("Speaking broadcast text: " + text);
+        HashMap<String, String> ttsHashMap = new HashMap<String, String>();
+        ttsHashMap.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID,
+                mSpeechUtteranceId);
+        // Play TTS on notification stream.
+        ttsHashMap.put(TextToSpeech.Engine.KEY_PARAM_STREAM,
+                Integer.toString(AudioManager.STREAM_NOTIFICATION));
+
+        mState = STATE_SPEAKING;
+        if (mTts.speak(text, TextToSpeech.QUEUE_FLUSH, ttsHashMap) != TextToSpeech.SUCCESS) {
+            loge("speak() failed");
+            finishAlert();
+        }
+    }
+
     /**
      * Callback from TTS engine.
      * @param utteranceId the identifier of the utterance.
      */
     @Override
     public void onUtteranceCompleted(String utteranceId) {
-        if (utteranceId.equals(TTS_UTTERANCE_ID)) {
+        CellBroadcastSpeechBuffer speechBuffer = mSpeechBuffer;
+        if (speechBuffer != null && speechBuffer.onUtteranceCompleted(utteranceId)) {
+            return;
+        }
+        if (utteranceId.startsWith(TTS_UTTERANCE_ID)) {
             // When we reach here, it could be TTS completed or TTS was cut due to another
-            // new alert started playing. We don't want to stop the service in the later case.
-            if (mState == STATE_SPEAKING) {
-                stopSelf();
-            }
+            // new alert started playing; the handler checks which one.
+            mHandler.obtainMessage(ALERT_SPEECH_FINISHED, utteranceId).sendToTarget();
         }
     }
 
@@ -249,14 +436,16 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         stop();
         // Stop listening for incoming calls.
         mTelephonyManager.listen(mPhoneStateListener, 0);
-        // shutdown TTS engine
-        if (mTts != null) {
-            try {
-                mTts.shutdown();
-            } catch (IllegalStateException e) {
-                // catch "Unable to retrieve AudioTrack pointer for stop()" exception
-                loge("exception trying to shutdown text-to-speech");
+        releaseSpeechBuffer();
+        mScheduler.clear();
+        // let the TTS engine go idle; it is shut down if no alert follows
+        if (mTtsAcquired) {
+            if (mTts != null) {
+                mTts.setOnUtteranceCompletedListener(null);
+                mTts = null;
             }
+            CellBroadcastTtsManager.getInstance(this).release(this);
+            mTtsAcquired = false;
         }
 
         if (mEnableAudio) {
@@ -283,38 +472,44 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
             return START_NOT_STICKY;
         }
 
+        if (ACTION_STOP_ALERT_AUDIO.equals(intent.getAction())) {
+            handleStopAlert(intent.getStringExtra(ALERT_AUDIO_ALERT_KEY_EXTRA));
+            return mScheduler.getCurrentAlert() != null ? START_STICKY : START_NOT_STICKY;
+        }
+
         // This extra should always be provided by CellBroadcastAlertService,
         // but default to 10.5 seconds just to be safe (CMAS requirement).
         int duration = intent.getIntExtra(ALERT_AUDIO_DURATION_EXTRA, 10500);
 
         // Get text to speak (if enabled by user)
-        mMessageBody = intent.getStringExtra(ALERT_AUDIO_MESSAGE_BODY);
-        mMessageLanguage = intent.getStringExtra(ALERT_AUDIO_MESSAGE_LANGUAGE);
+        String messageBody = intent.getStringExtra(ALERT_AUDIO_MESSAGE_BODY);
+        String messageLanguage = intent.getStringExtra(ALERT_AUDIO_MESSAGE_LANGUAGE);
 
+        boolean enableAudio = false;
         if (getResources().getBoolean(
                 R.bool.config_regional_wea_alert_tone_enable)) {
-            mEnableAudio = intent.getBooleanExtra(ALERT_AUDIO_TONE_EXTRA, false);
+            enableAudio = intent.getBooleanExtra(ALERT_AUDIO_TONE_EXTRA, false);
         }
-        mEnableVibrate = intent.getBooleanExtra(ALERT_AUDIO_VIBRATE_EXTRA, true);
+        boolean enableVibrate = intent.getBooleanExtra(ALERT_AUDIO_VIBRATE_EXTRA, true);
         if (!getResources().getBoolean(
                 R.bool.config_regional_presidential_wea_with_tone_vibrate)
                 && intent.getBooleanExtra(ALERT_AUDIO_ETWS_VIBRATE_EXTRA, false)) {
-            mEnableVibrate = true;  // force enable vibration for ETWS alerts
+            enableVibrate = true;  // force enable vibration for ETWS alerts
         }
 
         switch (mAudioManager.getRingerMode()) {
             case AudioManager.RINGER_MODE_SILENT:
                 if (DBG) log("Ringer mode: silent");
-                mEnableAudio = false;
+                enableAudio = false;
                 if (Settings.System.getInt(getContentResolver(),
                             Settings.System.VIBRATE_WHEN_RINGING, 0) == 0) {
-                    mEnableVibrate = false;
+                    enableVibrate = false;
                 }
                 break;
 
             case AudioManager.RINGER_MODE_VIBRATE:
                 if (DBG) log("Ringer mode: vibrate");
-                mEnableAudio = false;
+                enableAudio = false;
                 break;
 
             case AudioManager.RINGER_MODE_NORMAL:
@@ -322,51 +517,143 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
                 if (DBG) log("Ringer mode: normal");
                 if (!(getResources().getBoolean(
                         R.bool.config_regional_wea_alert_tone_enable))) {
-                    mEnableAudio = true;
+                    enableAudio = true;
                 }
                 if (Settings.System.getInt(getContentResolver(),
                             Settings.System.VIBRATE_WHEN_RINGING, 0) == 0) {
-                    mEnableVibrate = false;
+                    enableVibrate = false;
                 }
                 break;
         }
 
+        // whether to change ringer mode & volume for President WEA or reminder WEA
+        boolean forceAudio = false;
         if (getResources().getBoolean(
                 R.bool.config_regional_presidential_wea_with_tone_vibrate)
                 && intent.getBooleanExtra(ALERT_AUDIO_PRESIDENT_TONE_VIBRATE_EXTRA, false)) {
-            mEnableVibrate = true;
-            mEnableAudio = true;
-            changeAudioManagerForWeaPresidential(); //change ringer mode & volume for President WEA
+            enableVibrate = true;
+            enableAudio = true;
+            forceAudio = true;
         }
 
         if (getResources().getBoolean(
                 R.bool.config_regional_wea_alert_reminder_interval)
                 && !intent.getBooleanExtra("isFirstTime", true)) {
-            mEnableVibrate = true;
-            mEnableAudio = true;
-            changeAudioManagerForWeaPresidential(); //change ringer mode & volume for reminder WEA
+            enableVibrate = true;
+            enableAudio = true;
+            forceAudio = true;
+        }
+
+        if (!enableAudio && !enableVibrate) {
+            if (mScheduler.getCurrentAlert() == null) {
+                stopSelf();
+                return START_NOT_STICKY;
+            }
+            // nothing to play for this alert; let the current one finish
+            return START_STICKY;
         }
 
+        AlertRequest request = mScheduler.newRequest(
+                intent.getIntExtra(ALERT_AUDIO_PRIORITY_EXTRA, PRIORITY_SEVERE),
+                intent.getStringExtra(ALERT_AUDIO_ALERT_KEY_EXTRA), duration, messageBody,
+                messageLanguage, enableAudio, enableVibrate, forceAudio);
+        if (mScheduler.schedule(request, getRemainingText())
+                == CellBroadcastAlertScheduler.SCHEDULE_PLAY) {
+            startAlert(request);
+        }
+        return START_STICKY;
+    }
+
+    /**
+     * Return the text of the current alert which hasn't been spoken yet, from the beginning of
+     * the chunk being played, or null if there is none.
+     */
+    private String getRemainingText() {
+        if (mScheduler.getCurrentAlert() == null || mMessageBody == null || !mEnableAudio) {
+            return null;
+        }
+        if (mState == STATE_SPEAKING && mSpeechBuffer != null) {
+            String text = mSpeechBuffer.getText(mSpeechChunk);
+            return text.isEmpty() ? null : text;
+        }
+        return mMessageBody;
+    }
+
+    /**
+     * Start playing the current alert of the scheduler, replacing the alert playing. If both
+     * alerts play the attention signal, it keeps playing instead of being restarted.
+     */
+    private void startAlert(AlertRequest request) {
+        boolean keepTone = request.mResumeText == null && request.mEnableAudio
+                && mState == STATE_ALERTING && mAlertTone != null;
+        if (keepTone) {
+            mHandler.removeMessages(ALERT_SOUND_FINISHED);
+            mVibrator.cancel();
+        } else {
+            // stop() checks to see if we are already playing.
+            stop();
+        }
+
+        mMessageBody = request.mResumeText != null ? request.mResumeText
+                : request.mMessageBody;
+        mMessageLanguage = request.mMessageLanguage;
+        mEnableAudio = request.mEnableAudio;
+        mEnableVibrate = request.mEnableVibrate;
+        mSpeechUtteranceId = TTS_UTTERANCE_ID + request.mSequence;
+        if (request.mForceAudio) {
+            changeAudioManagerForWeaPresidential();
+        }
+
+        // the synthesis of the previous alert is no longer needed
+        releaseSpeechBuffer();
         if (mMessageBody != null && mEnableAudio) {
-            if (mTts == null) {
-                mTts = new TextToSpeech(this, this);
+            if (!mTtsAcquired) {
+                // usually warmed up already, so onInit() is called right away
+                mTtsAcquired = true;
+                CellBroadcastTtsManager.getInstance(this).acquire(this);
             } else if (mTtsEngineReady) {
                 setTtsLanguage();
             }
         }
 
-        if (mEnableAudio || mEnableVibrate) {
-            play(duration);     // in milliseconds
+        if (request.mResumeText != null) {
+            if (DBG) log("Resuming the speech of an interrupted alert");
+            mHandler.sendMessageDelayed(mHandler.obtainMessage(ALERT_PAUSE_FINISHED),
+                    PAUSE_DURATION_BEFORE_SPEAKING_MSEC);
+            mState = STATE_PAUSING;
         } else {
-            stopSelf();
-            return START_NOT_STICKY;
+            play(request.mDuration, keepTone);     // in milliseconds
         }
+        // synthesize the text while the alert sound plays
+        startSpeechSynthesis();
 
         // Record the initial call state here so that the new alarm has the
         // newest state.
         mInitialCallState = mTelephonyManager.getCallState();
+    }
 
-        return START_STICKY;
+    /**
+     * Stop an alert dismissed by the user. The alert playing is only finished if it is the
+     * one stopped, and the service only stops once no alert is left.
+     */
+    private void handleStopAlert(String alertKey) {
+        if (mScheduler.stop(alertKey) == CellBroadcastAlertScheduler.STOP_CURRENT) {
+            stop();
+            finishAlert();
+        } else if (mScheduler.getCurrentAlert() == null) {
+            stopSelf();
+        }
+    }
+
+    /** Play the next queued alert, or stop the service if there is none. */
+    private void finishAlert() {
+        AlertRequest next = mScheduler.next();
+        if (next != null) {
+            startAlert(next);
+        } else {
+            stopSelf();
+            mState = STATE_IDLE;
+        }
     }
 
     /**
@@ -375,7 +662,10 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
      * mOldRingerMode and mOldStreamVolume will be updated to record orginal settings.
      */
     private void changeAudioManagerForWeaPresidential() {
-        mAudioManagerIsChanged = false;
+        if (mAudioManagerIsChanged) {
+            // still changed for the previous alert: keep the original settings
+            return;
+        }
 
         //save original RingerMode and force it to normal
         mOldRingerMode = mAudioManager.getRingerMode();
@@ -422,11 +712,9 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
     /**
      * Start playing the alert sound, and send delayed message when it's time to stop.
      * @param duration the alert sound duration in milliseconds
+     * @param keepTone whether the attention signal of the previous alert is still playing
      */
-    private void play(int duration) {
-        // stop() checks to see if we are already playing.
-        stop();
-
+    private void play(int duration, boolean keepTone) {
         if (DBG) log("play()");
 
         // Start the vibration first.
@@ -434,42 +722,26 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
             mVibrator.vibrate(sVibratePattern, -1);
         }
 
-        if (mEnableAudio) {
-            // future optimization: reuse media player object
-            mMediaPlayer = new MediaPlayer();
-            mMediaPlayer.setOnErrorListener(new OnErrorListener() {
-                public boolean onError(MediaPlayer mp, int what, int extra) {
-                    loge("Error occurred while playing audio.");
-                    mp.stop();
-                    mp.release();
-                    mMediaPlayer = null;
-                    return true;
-                }
-            });
-
-            mMediaPlayer.setOnCompletionListener(new OnCompletionListener() {
-                @Override
-                public void onCompletion(MediaPlayer mp) {
-                    mMediaPlayer.start();
-                }
-            });
-            try {
-                // Check if we are in a call. If we are, play the alert
-                // sound at a low volume to not disrupt the call.
-                if (mTelephonyManager.getCallState()
-                        != TelephonyManager.CALL_STATE_IDLE) {
-                    log("in call: reducing volume");
-                    mMediaPlayer.setVolume(IN_CALL_VOLUME, IN_CALL_VOLUME);
-                }
+        if (mEnableAudio && !keepTone) {
+            // Check if we are in a call. If we are, play the alert
+            // sound at a low volume to not disrupt the call.
+            float volume = 1.0f;
+            if (mTelephonyManager.getCallState() != TelephonyManager.CALL_STATE_IDLE) {
+                log("in call: reducing volume");
+                volume = IN_CALL_VOLUME;
+            }
 
-                // start playing alert audio (unless master volume is vibrate only or silent).
-                setDataSourceFromResource(getResources(), mMediaPlayer,
-                        R.raw.attention_signal);
+            CellBroadcastAlertTone tone = CellBroadcastAlertTone.getInstance();
+            if (tone != null) {
                 mAudioManager.requestAudioFocus(null, AudioManager.STREAM_NOTIFICATION,
                         AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
-                startAlarm(mMediaPlayer);
-            } catch (Exception ex) {
-                loge("Failed to play alert sound: " + ex);
+                if (tone.play(volume)) {
+                    mAlertTone = tone;
+                }
+            }
+            if (mAlertTone == null) {
+                // not decoded yet, or the track failed: play the file
+                playFromResource(volume);
             }
         }
         if (getResources().getBoolean(
@@ -480,6 +752,42 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         mState = STATE_ALERTING;
     }
 
+    /**
+     * Play the attention signal with a new MediaPlayer, preparing it on this thread.
+     * @param volume the gain, from 0 to 1
+     */
+    private void playFromResource(float volume) {
+        mMediaPlayer = new MediaPlayer();
+        mMediaPlayer.setOnErrorListener(new OnErrorListener() {
+            public boolean onError(MediaPlayer mp, int what, int extra) {
+                loge("Error occurred while playing audio.");
+                mp.stop();
+                mp.release();
+                mMediaPlayer = null;
+                return true;
+            }
+        });
+
+        mMediaPlayer.setOnCompletionListener(new OnCompletionListener() {
+            @Override
+            public void onCompletion(MediaPlayer mp) {
+                mMediaPlayer.start();
+            }
+        });
+        try {
+            mMediaPlayer.setVolume(volume, volume);
+
+            // start playing alert audio (unless master volume is vibrate only or silent).
+            setDataSourceFromResource(getResources(), mMediaPlayer,
+                    R.raw.attention_signal);
+            mAudioManager.requestAudioFocus(null, AudioManager.STREAM_NOTIFICATION,
+                    AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
+            startAlarm(mMediaPlayer);
+        } catch (Exception ex) {
+            loge("Failed to play alert sound: " + ex);
+        }
+    }
+
     // Do the common stuff when starting the alarm.
     private static void startAlarm(MediaPlayer player)
             throws java.io.IOException, IllegalArgumentException, IllegalStateException {
@@ -530,6 +838,10 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
 
         if (mState == STATE_ALERTING) {
             // Stop audio playing
+            if (mAlertTone != null) {
+                mAlertTone.stop();
+                mAlertTone = null;
+            }
             if (mMediaPlayer != null) {
                 try {
                     mMediaPlayer.stop();
@@ -547,6 +859,8 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
                     R.bool.config_regional_presidential_wea_with_tone_vibrate)) {
                 restoreAudioManagerIfChanged(); //restore user setting after presidental WEA
             }
+        } else if (mState == STATE_SPEAKING && mSpeechPlayer != null) {
+            releaseSpeechPlayer();
         } else if (mState == STATE_SPEAKING && mTts != null) {
             try {
                 mTts.stop();
@@ -559,6 +873,51 @@ public class CellBroadcastAlertAudio extends Service implements TextToSpeech.OnI
         mState = STATE_IDLE;
     }
 
+    /**
+     * Return the playback priority of an alert: presidential, then extreme, then severe and
+     * ETWS, then child abduction, then test alerts.
+     */
+    static int getAlertPriority(CellBroadcastMessage message) {
+        if (message.isEtwsMessage()) {
+            return message.isEtwsTestMessage() ? PRIORITY_TEST : PRIORITY_SEVERE;
+        }
+        if (message.isCmasMessage()) {
+            switch (message.getCmasMessageClass()) {
+                case SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT:
+                    return PRIORITY_PRESIDENTIAL;
+                case SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT:
+                    return PRIORITY_EXTREME;
+                case SmsCbCmasInfo.CMAS_CLASS_CHILD_ABDUCTION_EMERGENCY:
+                    return PRIORITY_AMBER;
+                case SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST:
+                case SmsCbCmasInfo.CMAS_CLASS_CMAS_EXERCISE:
+                case SmsCbCmasInfo.CMAS_CLASS_OPERATOR_DEFINED_USE:
+                    return PRIORITY_TEST;
+                default:
+                    break;
+            }
+        }
+        return PRIORITY_SEVERE;
+    }
+
+    /**
+     * Stop the sound and speech of an alert, leaving the other alerts playing or queued.
+     * @param message the alert, or null to stop the alert playing
+     */
+    static void stopAlert(Context context, CellBroadcastMessage message) {
+        Intent intent = new Intent(context, CellBroadcastAlertAudio.class);
+        intent.setAction(ACTION_STOP_ALERT_AUDIO);
+        if (message != null) {
+            intent.putExtra(ALERT_AUDIO_ALERT_KEY_EXTRA, getAlertKey(message));
+        }
+        context.startService(intent);
+    }
+
+    /** Return the key identifying the repeats of an alert. */
+    static String getAlertKey(CellBroadcastMessage message) {
+        return message.getServiceCategory() + ":" + message.getMessageBody();
+    }
+
     private static void log(String msg) {
         Log.d(TAG, msg);
     }
@@ -408,8 +408,9 @@ public class CellBroadcastAlertFullScreen extends Activity {
      * service if necessary.
      */
     void dismiss() {
-        // Stop playing alert sound/vibration/speech (if started)
-        stopService(new Intent(this, CellBroadcastAlertAudio.class));
+        // Stop playing the sound/vibration/speech of this alert (if started); the other
+        // alerts keep playing or queued
+        CellBroadcastAlertAudio.stopAlert(this, getLatestMessage());
 
         // Cancel any pending alert reminder
         CellBroadcastAlertReminder.cancelAlertReminder();
@@ -425,8 +426,8 @@ public class CellBroadcastAlertFullScreen extends Activity {
         final long deliveryTime = lastMessage.getDeliveryTime();
 
         // Mark broadcast as read on a background thread.
-        new CellBroadcastContentProvider.AsyncCellBroadcastTask(getContentResolver())
-                .execute(new CellBroadcastContentProvider.CellBroadcastOperation() {
+        CellBroadcastOperationQueue.getInstance(this).submit(
+                new CellBroadcastContentProvider.CellBroadcastOperation() {
                     @Override
                     public boolean execute(CellBroadcastContentProvider provider) {
                         return provider.markBroadcastRead(
@@ -492,8 +493,8 @@ public class CellBroadcastAlertFullScreen extends Activity {
                 case KeyEvent.KEYCODE_VOLUME_MUTE:
                 case KeyEvent.KEYCODE_CAMERA:
                 case KeyEvent.KEYCODE_FOCUS:
-                    // Stop playing alert sound/vibration/speech (if started)
-                    stopService(new Intent(this, CellBroadcastAlertAudio.class));
+                    // Stop playing the sound/vibration/speech of this alert (if started)
+                    CellBroadcastAlertAudio.stopAlert(this, message);
                     return true;
 
                 default:
@@ -117,6 +117,10 @@ public class CellBroadcastAlertReminder extends Service {
                         CellBroadcastSettings.ALERT_SOUND_DEFAULT_DURATION)) * 1000;
         }
         audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_DURATION_EXTRA, duration);
+        audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_PRIORITY_EXTRA,
+                CellBroadcastAlertAudio.getAlertPriority(message));
+        audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_ALERT_KEY_EXTRA,
+                CellBroadcastAlertAudio.getAlertKey(message));
 
         if (!getResources().getBoolean(
                 R.bool.config_regional_presidential_wea_with_tone_vibrate)
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.util.Log;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Decides the order in which {@link CellBroadcastAlertAudio} plays overlapping alerts. An
+ * alert interrupts the alert playing if it has a higher priority, and the speech of the
+ * interrupted alert is resumed after it; otherwise it is queued, and alerts of the same
+ * priority play in order of arrival. The repeats of an alert playing or queued are dropped.
+ * Stopping an alert, when the user dismisses it, leaves the other alerts playing or queued.
+ */
+class CellBroadcastAlertScheduler {
+    private static final String TAG = "CellBroadcastAlertScheduler";
+
+    /** The alert is to be played now, replacing the alert playing, if any. */
+    static final int SCHEDULE_PLAY = 0;
+    /** The alert is queued after the alert playing. */
+    static final int SCHEDULE_QUEUED = 1;
+    /** The alert is already playing or queued. */
+    static final int SCHEDULE_DROPPED = 2;
+
+    /** The stopped alert was playing; {@link #next} returns the alert to play instead. */
+    static final int STOP_CURRENT = 0;
+    /** The stopped alert was queued, and is removed from the queue. */
+    static final int STOP_QUEUED = 1;
+    /** The stopped alert is neither playing nor queued. */
+    static final int STOP_NOT_FOUND = 2;
+
+    /** The alert playing, or null if none. */
+    private AlertRequest mCurrentAlert;
+    /** Alerts waiting for the current one to finish, highest priority first. */
+    private final PriorityQueue<AlertRequest> mPendingAlerts = new PriorityQueue<AlertRequest>(
+            4, new Comparator<AlertRequest>() {
+                @Override
+                public int compare(AlertRequest a, AlertRequest b) {
+                    if (a.mPriority != b.mPriority) {
+                        return b.mPriority - a.mPriority;
+                    }
+                    return Long.compare(a.mSequence, b.mSequence);
+                }
+            });
+    private long mNextSequence;
+
+    /** Return a request for an alert received now. */
+    AlertRequest newRequest(int priority, String alertKey, int duration, String messageBody,
+            String messageLanguage, boolean enableAudio, boolean enableVibrate,
+            boolean forceAudio) {
+        return new AlertRequest(priority, alertKey, mNextSequence++, duration, messageBody,
+                messageLanguage, enableAudio, enableVibrate, forceAudio, null);
+    }
+
+    /**
+     * Schedule an alert.
+     * @param remainingText the text of the alert playing which hasn't been spoken yet, or
+     *  null if there is none
+     * @return {@link #SCHEDULE_PLAY} if the alert becomes the current alert,
+     *  {@link #SCHEDULE_QUEUED} or {@link #SCHEDULE_DROPPED}
+     */
+    int schedule(AlertRequest request, String remainingText) {
+        AlertRequest current = mCurrentAlert;
+        if (current == null) {
+            mCurrentAlert = request;
+            return SCHEDULE_PLAY;
+        }
+        if (request.isSameAlert(current)) {
+            if (DBG) log("Alert already playing: " + request.mAlertKey);
+            return SCHEDULE_DROPPED;
+        }
+        for (AlertRequest pending : mPendingAlerts) {
+            if (request.isSameAlert(pending)) {
+                if (DBG) log("Alert already queued: " + request.mAlertKey);
+                return SCHEDULE_DROPPED;
+            }
+        }
+        if (request.mPriority > current.mPriority) {
+            if (DBG) log("Alert of priority " + request.mPriority + " interrupts priority "
+                    + current.mPriority);
+            if (remainingText != null) {
+                mPendingAlerts.add(current.resumeFrom(remainingText));
+            }
+            mCurrentAlert = request;
+            return SCHEDULE_PLAY;
+        }
+        if (DBG) log("Queuing alert of priority " + request.mPriority);
+        mPendingAlerts.add(request);
+        return SCHEDULE_QUEUED;
+    }
+
+    /**
+     * Stop an alert, removing it from the queue, including the resumption of its speech if it
+     * was interrupted.
+     * @param alertKey the key of the alert, or null to stop the current alert
+     * @return {@link #STOP_CURRENT} if the alert is playing, in which case the caller
+     *  finishes it with {@link #next}, {@link #STOP_QUEUED} or {@link #STOP_NOT_FOUND}
+     */
+    int stop(String alertKey) {
+        boolean queued = false;
+        if (alertKey != null) {
+            for (Iterator<AlertRequest> it = mPendingAlerts.iterator(); it.hasNext(); ) {
+                if (alertKey.equals(it.next().mAlertKey)) {
+                    it.remove();
+                    queued = true;
+                }
+            }
+        }
+        if (mCurrentAlert != null
+                && (alertKey == null || alertKey.equals(mCurrentAlert.mAlertKey))) {
+            if (DBG) log("Stopping the alert playing");
+            return STOP_CURRENT;
+        }
+        if (DBG && queued) log("Stopped a queued alert");
+        return queued ? STOP_QUEUED : STOP_NOT_FOUND;
+    }
+
+    /**
+     * Finish the current alert.
+     * @return the next alert, which becomes the current alert, or null if none is queued
+     */
+    AlertRequest next() {
+        mCurrentAlert = mPendingAlerts.poll();
+        if (DBG && mCurrentAlert != null) {
+            log("Playing queued alert of priority " + mCurrentAlert.mPriority);
+        }
+        return mCurrentAlert;
+    }
+
+    /** Return the alert playing, or null if none. */
+    AlertRequest getCurrentAlert() {
+        return mCurrentAlert;
+    }
+
+    /** Drop the current and queued alerts. */
+    void clear() {
+        mPendingAlerts.clear();
+        mCurrentAlert = null;
+    }
+
+    /** An alert to play, with its settings read when it was received. */
+    static class AlertRequest {
+        final int mPriority;
+        final String mAlertKey;
+        /** The order of arrival, to play alerts of the same priority in order. */
+        final long mSequence;
+        final int mDuration;
+        final String mMessageBody;
+        final String mMessageLanguage;
+        final boolean mEnableAudio;
+        final boolean mEnableVibrate;
+        final boolean mForceAudio;
+        /** The text left to speak of an interrupted alert, resumed without its sound. */
+        final String mResumeText;
+
+        private AlertRequest(int priority, String alertKey, long sequence, int duration,
+                String messageBody, String messageLanguage, boolean enableAudio,
+                boolean enableVibrate, boolean forceAudio, String resumeText) {
+            mPriority = priority;
+            mAlertKey = alertKey;
+            mSequence = sequence;
+            mDuration = duration;
+            mMessageBody = messageBody;
+            mMessageLanguage = messageLanguage;
+            mEnableAudio = enableAudio;
+            mEnableVibrate = enableVibrate;
+            mForceAudio = forceAudio;
+            mResumeText = resumeText;
+        }
+
+        /** Return the request resuming the speech of this alert from the given text. */
+        AlertRequest resumeFrom(String text) {
+            return new AlertRequest(mPriority, mAlertKey, mSequence, mDuration, mMessageBody,
+                    mMessageLanguage, mEnableAudio, mEnableVibrate, false, text);
+        }
+
+        boolean isSameAlert(AlertRequest other) {
+            return mAlertKey != null && mAlertKey.equals(other.mAlertKey);
+        }
+    }
+
+    private static void log(String msg) {
+        Log.d(TAG, msg);
+    }
+}
@@ -377,6 +377,13 @@ public class CellBroadcastAlertService extends Service {
         if (getResources().getBoolean(R.bool.config_regional_disable_cb_message))
             return;
 
+        if (CellBroadcastConfigService.isEmergencyAlertMessage(cbm)
+                && SubscriptionManager.getBooleanSubscriptionProperty(cbm.getSubId(),
+                        SubscriptionManager.CB_ALERT_SPEECH, true, this)) {
+            // bind the engine while the alert is stored and the tone plays
+            CellBroadcastTtsManager.getInstance(this).warmUp();
+        }
+
         // If this is an ETWS message, then we want to include the body message to be a factor for
         // duplicate detection. We found that some Japanese carriers send ETWS messages
         // with the same serial number, therefore the subsequent messages were all ignored.
@@ -425,19 +432,24 @@ public class CellBroadcastAlertService extends Service {
         alertIntent.putExtra("message", cbm);
 
         // write to database on a background thread
-        new CellBroadcastContentProvider.AsyncCellBroadcastTask(getContentResolver())
-                .execute(new CellBroadcastContentProvider.CellBroadcastOperation() {
+        CellBroadcastOperationQueue.getInstance(this).submit(
+                new CellBroadcastContentProvider.CellBroadcastOperation() {
                     @Override
                     public boolean execute(CellBroadcastContentProvider provider) {
-                        if (provider.insertNewBroadcast(cbm)) {
-                            // new message, show the alert or notification on UI thread
+                        return provider.insertNewBroadcast(cbm);
+                    }
+                }, new CellBroadcastOperationQueue.Callback() {
+                    @Override
+                    public void onOperationComplete(boolean changed, long queueMillis,
+                            long executeMillis) {
+                        Log.d(TAG, "new broadcast stored after " + queueMillis + " ms in queue, "
+                                + executeMillis + " ms in database");
+                        if (changed) {
+                            // new message, show the alert or notification
                             startService(alertIntent);
-                            return true;
-                        } else {
-                            return false;
                         }
                     }
-                });
+                }, getMainLooper());
     }
 
     private void showNewAlert(Intent intent) {
@@ -583,6 +595,10 @@ public class CellBroadcastAlertService extends Service {
                     * 1000;
         }
         audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_DURATION_EXTRA, duration);
+        audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_PRIORITY_EXTRA,
+                CellBroadcastAlertAudio.getAlertPriority(message));
+        audioIntent.putExtra(CellBroadcastAlertAudio.ALERT_AUDIO_ALERT_KEY_EXTRA,
+                CellBroadcastAlertAudio.getAlertKey(message));
 
         if (!getResources().getBoolean(
                 R.bool.config_regional_presidential_wea_with_tone_vibrate)
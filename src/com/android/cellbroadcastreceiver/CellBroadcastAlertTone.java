@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The attention signal, decoded once to PCM and held in a looping static AudioTrack, so an
+ * alert starts sounding without opening, parsing and decoding the file on the main thread.
+ * {@link #preload} prepares it in the background when the process starts. Until it is
+ * ready, or if the file can't be decoded, {@link #getInstance} returns null and the caller
+ * plays the file with MediaPlayer instead.
+ */
+class CellBroadcastAlertTone {
+    private static final String TAG = "CellBroadcastAlertTone";
+
+    /** Time to wait for a decoder buffer, in microseconds. */
+    private static final long DECODE_TIMEOUT_US = 10000;
+
+    private static CellBroadcastAlertTone sInstance;
+    private static boolean sLoading;
+
+    private final AudioTrack mTrack;
+    private final int mFrameCount;
+
+    private CellBroadcastAlertTone(AudioTrack track, int frameCount) {
+        mTrack = track;
+        mFrameCount = frameCount;
+    }
+
+    /** Prepare the attention signal on a background thread, unless it's already done. */
+    static synchronized void preload(Context context) {
+        if (sInstance != null || sLoading) {
+            return;
+        }
+        sLoading = true;
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                CellBroadcastAlertTone tone = load(appContext);
+                synchronized (CellBroadcastAlertTone.class) {
+                    sInstance = tone;
+                    sLoading = false;
+                }
+            }
+        });
+    }
+
+    /** Return the attention signal, or null if it isn't ready. */
+    static synchronized CellBroadcastAlertTone getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Decode the attention signal and create its track.
+     * @return the tone, or null if it couldn't be decoded or played
+     */
+    static CellBroadcastAlertTone load(Context context) {
+        long start = SystemClock.elapsedRealtime();
+        AssetFileDescriptor afd = context.getResources().openRawResourceFd(
+                R.raw.attention_signal);
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(afd.getFileDescriptor(), afd.getStartOffset(),
+                    afd.getLength());
+            MediaFormat format = extractor.getTrackFormat(0);
+            extractor.selectTrack(0);
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            byte[] chunk = new byte[0];
+            boolean inputDone = false;
+            boolean outputDone = false;
+            while (!outputDone) {
+                if (!inputDone) {
+                    int index = codec.dequeueInputBuffer(DECODE_TIMEOUT_US);
+                    if (index >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(index), 0);
+                        if (size < 0) {
+                            codec.queueInputBuffer(index, 0, 0, 0,
+                                    MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(index, 0, size, extractor.getSampleTime(),
+                                    0);
+                            extractor.advance();
+                        }
+                    }
+                }
+                int index = codec.dequeueOutputBuffer(info, DECODE_TIMEOUT_US);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (index >= 0) {
+                    ByteBuffer buffer = codec.getOutputBuffer(index);
+                    if (chunk.length < info.size) {
+                        chunk = new byte[info.size];
+                    }
+                    buffer.get(chunk, 0, info.size);
+                    pcm.write(chunk, 0, info.size);
+                    codec.releaseOutputBuffer(index, false);
+                    outputDone = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+                }
+            }
+
+            CellBroadcastAlertTone tone = createTone(pcm.toByteArray(), sampleRate, channels);
+            Log.d(TAG, "attention signal ready in " + (SystemClock.elapsedRealtime() - start)
+                    + " ms");
+            return tone;
+        } catch (IOException | RuntimeException e) {
+            // MediaCodec and AudioTrack report most failures as IllegalStateException
+            Log.e(TAG, "can't decode attention signal: " + e);
+            return null;
+        } finally {
+            if (codec != null) {
+                codec.release();
+            }
+            extractor.release();
+            try {
+                afd.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private static CellBroadcastAlertTone createTone(byte[] pcm, int sampleRate,
+            int channels) {
+        int frameCount = pcm.length / (2 * channels);
+        if (frameCount == 0) {
+            Log.e(TAG, "attention signal is empty");
+            return null;
+        }
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_NOTIFICATION, sampleRate,
+                channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO,
+                AudioFormat.ENCODING_PCM_16BIT, pcm.length, AudioTrack.MODE_STATIC);
+        if (track.write(pcm, 0, pcm.length) != pcm.length
+                || track.getState() != AudioTrack.STATE_INITIALIZED
+                || track.setLoopPoints(0, frameCount, -1) != AudioTrack.SUCCESS) {
+            Log.e(TAG, "can't create attention signal track");
+            track.release();
+            return null;
+        }
+        return new CellBroadcastAlertTone(track, frameCount);
+    }
+
+    /**
+     * Start playing the signal from its beginning, looping until {@link #stop}.
+     * @param volume the gain, from 0 to 1
+     * @return true if the signal is playing
+     */
+    synchronized boolean play(float volume) {
+        try {
+            mTrack.setVolume(volume);
+            mTrack.play();
+            return true;
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "can't play attention signal: " + e);
+            return false;
+        }
+    }
+
+    /** Stop the signal and rewind it for the next alert. */
+    synchronized void stop() {
+        try {
+            mTrack.pause();
+            mTrack.reloadStaticData();
+            mTrack.setLoopPoints(0, mFrameCount, -1);
+        } catch (IllegalStateException e) {
+            Log.e(TAG, "can't stop attention signal: " + e);
+        }
+    }
+
+    /** Return the number of frames played since the last start, for tests. */
+    synchronized int getPlaybackHeadPosition() {
+        return mTrack.getPlaybackHeadPosition();
+    }
+
+    /** Release the track; the tone can't be played afterwards. */
+    synchronized void release() {
+        mTrack.release();
+    }
+}
@@ -29,9 +29,14 @@
 
 package com.android.cellbroadcastreceiver;
 
+/**
+ * A range of cell broadcast channel ids [from, to] with a name and an enabled state.
+ * A single channel is a range where from == to.
+ */
 public class CellBroadcastChannel {
     private int mKeyId;
     private int mCategory;
+    private int mCategoryEnd;
     private String mChannelName;
     private boolean mEnabled;
 
@@ -41,20 +46,28 @@ public class CellBroadcastChannel {
     public CellBroadcastChannel(CellBroadcastChannel chanel) {
         mKeyId = chanel.getKeyId();
         mCategory = chanel.getChannelId();
+        mCategoryEnd = chanel.getChannelIdEnd();
         mChannelName = chanel.getChannelName();
         mEnabled = chanel.getChannelStatus();
     }
 
     public CellBroadcastChannel(int keyId, int numberId, String name,
             boolean state) {
+        this(keyId, numberId, numberId, name, state);
+    }
+
+    public CellBroadcastChannel(int keyId, int fromId, int toId, String name,
+            boolean state) {
         mKeyId = keyId;
-        mCategory = numberId;
+        mCategory = fromId;
+        mCategoryEnd = toId;
         mChannelName = name;
         mEnabled = state;
     }
 
     public CellBroadcastChannel(int numberId, String name, boolean state) {
         mCategory = numberId;
+        mCategoryEnd = numberId;
         mChannelName = name;
         mEnabled = state;
     }
@@ -67,12 +80,29 @@ public class CellBroadcastChannel {
         mKeyId = id;
     }
 
+    /** Returns the first channel id of the range. */
     public int getChannelId() {
         return mCategory;
     }
 
+    /** Sets the range to the single channel id. */
     public void setChannelId(int id) {
         mCategory = id;
+        mCategoryEnd = id;
+    }
+
+    /** Returns the last channel id of the range (inclusive). */
+    public int getChannelIdEnd() {
+        return mCategoryEnd;
+    }
+
+    public void setChannelRange(int fromId, int toId) {
+        mCategory = fromId;
+        mCategoryEnd = toId;
+    }
+
+    public boolean contains(int id) {
+        return id >= mCategory && id <= mCategoryEnd;
     }
 
     public String getChannelName() {
@@ -90,4 +120,40 @@ public class CellBroadcastChannel {
     public void setChannelStatus(boolean state) {
         mEnabled = state;
     }
+
+    /**
+     * Returns the range as "from" or "from-to", the format used for the channel sets
+     * saved in the shared preferences.
+     */
+    public String getRangeString() {
+        return toRangeString(mCategory, mCategoryEnd);
+    }
+
+    static String toRangeString(int fromId, int toId) {
+        if (fromId == toId) {
+            return String.valueOf(fromId);
+        }
+        return fromId + "-" + toId;
+    }
+
+    /**
+     * Parses a string written by {@link #getRangeString()}.
+     * @return a two element array holding the first and last channel id
+     * @throws NumberFormatException if the string is not a valid range
+     */
+    static int[] parseRangeString(String range) {
+        int separator = range.indexOf('-', 1);
+        if (separator < 0) {
+            int id = Integer.parseInt(range.trim());
+            return new int[] { id, id };
+        }
+        return new int[] { Integer.parseInt(range.substring(0, separator).trim()),
+                Integer.parseInt(range.substring(separator + 1).trim()) };
+    }
+
+    @Override
+    public String toString() {
+        return "CellBroadcastChannel{key=" + mKeyId + ", range=" + getRangeString()
+                + ", name=" + mChannelName + ", enabled=" + mEnabled + '}';
+    }
 }
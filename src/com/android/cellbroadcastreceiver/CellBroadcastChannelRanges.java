@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Sorted list of non-overlapping channel ranges used by the custom channel settings.
+ *
+ * Changing the state of part of a range splits it, and adjacent ranges with the same name
+ * and state are merged back together, so the number of entries scales with the number of
+ * distinct ranges rather than the number of channel ids. Every change is recorded so the
+ * caller can write only the affected rows back to the channel table.
+ *
+ * Ranges are keyed by their first channel id, which is unique in the channel table, in a
+ * SparseArray: looking up a channel number is a binary search rather than a scan of the
+ * whole list, and adding or removing a range shifts the entries after it. The list holds
+ * one entry per distinct range, a few dozen at most, which keeps both cheap.
+ */
+class CellBroadcastChannelRanges {
+
+    private final SparseArray<CellBroadcastChannel> mRanges = new SparseArray<CellBroadcastChannel>();
+
+    /** Ranges that are not in the channel table yet. */
+    private final LinkedHashSet<CellBroadcastChannel> mInserted =
+            new LinkedHashSet<CellBroadcastChannel>();
+
+    /** Ranges already in the channel table that have been changed. */
+    private final LinkedHashSet<CellBroadcastChannel> mUpdated =
+            new LinkedHashSet<CellBroadcastChannel>();
+
+    /** Key ids of the rows to delete from the channel table. */
+    private final ArrayList<Integer> mDeletedKeyIds = new ArrayList<Integer>();
+
+    /**
+     * Replace the content of this list with the ranges read from the channel table.
+     * Pending changes are discarded.
+     */
+    void load(List<CellBroadcastChannel> channels) {
+        clear();
+        for (CellBroadcastChannel channel : channels) {
+            mRanges.put(channel.getChannelId(), channel);
+        }
+    }
+
+    void clear() {
+        mRanges.clear();
+        mInserted.clear();
+        mUpdated.clear();
+        mDeletedKeyIds.clear();
+    }
+
+    int size() {
+        return mRanges.size();
+    }
+
+    CellBroadcastChannel get(int index) {
+        return mRanges.valueAt(index);
+    }
+
+    /** Returns the ranges in channel id order. */
+    List<CellBroadcastChannel> asList() {
+        int size = mRanges.size();
+        ArrayList<CellBroadcastChannel> list = new ArrayList<CellBroadcastChannel>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(mRanges.valueAt(i));
+        }
+        return list;
+    }
+
+    /** Returns the range starting at the channel id, or null. */
+    CellBroadcastChannel getByStart(int id) {
+        return mRanges.get(id);
+    }
+
+    /** Returns the range containing the channel id, or null. */
+    CellBroadcastChannel find(int id) {
+        CellBroadcastChannel range = mRanges.get(id);
+        if (range != null) {
+            return range;
+        }
+        int index = lowerBound(id);
+        if (index < mRanges.size() && mRanges.valueAt(index).contains(id)) {
+            return mRanges.valueAt(index);
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if any range other than {@code except} shares a channel id with [from, to].
+     */
+    boolean overlaps(int from, int to, CellBroadcastChannel except) {
+        CellBroadcastChannel start = mRanges.get(from);
+        if (start != null && start != except) {
+            return true;
+        }
+        for (int i = lowerBound(from); i < mRanges.size(); i++) {
+            CellBroadcastChannel range = mRanges.valueAt(i);
+            if (range.getChannelId() > to) {
+                break;
+            }
+            if (range != except) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Add a new range. The caller must make sure it does not overlap an existing range. */
+    void add(CellBroadcastChannel channel) {
+        mRanges.put(channel.getChannelId(), channel);
+        mInserted.add(channel);
+        mergeAdjacent();
+    }
+
+    /** Remove a range. */
+    void remove(CellBroadcastChannel channel) {
+        if (mRanges.get(channel.getChannelId()) == channel) {
+            mRanges.remove(channel.getChannelId());
+            markDeleted(channel);
+        }
+    }
+
+    /**
+     * Change the name, bounds and state of a range in this list. The caller must make sure
+     * the new bounds do not overlap another range.
+     */
+    void edit(CellBroadcastChannel channel, String name, int from, int to, boolean enabled) {
+        if (mRanges.get(channel.getChannelId()) != channel) {
+            return;
+        }
+        mRanges.remove(channel.getChannelId());
+        channel.setChannelName(name);
+        channel.setChannelRange(from, to);
+        channel.setChannelStatus(enabled);
+        mRanges.put(from, channel);
+        markUpdated(channel);
+        mergeAdjacent();
+    }
+
+    /**
+     * Set the state of every channel id in [from, to]. Ranges crossing the boundaries are
+     * split, gaps are filled with new ranges named {@code defaultName}, and adjacent ranges
+     * with the same name and state are merged afterwards.
+     */
+    void setState(int from, int to, boolean enabled, String defaultName) {
+        int next = from;
+        int i = lowerBound(from);
+        while (next <= to) {
+            CellBroadcastChannel range = i < mRanges.size() ? mRanges.valueAt(i) : null;
+            if (range == null || range.getChannelId() > next) {
+                // Fill the gap up to the next range (or to the end of the request).
+                int gapEnd = (range == null) ? to : Math.min(to, range.getChannelId() - 1);
+                CellBroadcastChannel gap =
+                        new CellBroadcastChannel(0, next, gapEnd, defaultName, enabled);
+                mRanges.put(next, gap);
+                mInserted.add(gap);
+                next = gapEnd + 1;
+                i++;
+                continue;
+            }
+
+            if (range.getChannelStatus() != enabled) {
+                if (range.getChannelId() < next) {
+                    // Keep the head in the existing row, continue with the tail.
+                    CellBroadcastChannel tail = splitAt(range, next);
+                    range = tail;
+                    i++;
+                }
+                if (range.getChannelIdEnd() > to) {
+                    splitAt(range, to + 1);
+                }
+                range.setChannelStatus(enabled);
+                markUpdated(range);
+            }
+            next = range.getChannelIdEnd() + 1;
+            i++;
+        }
+        mergeAdjacent();
+    }
+
+    boolean hasPendingChanges() {
+        return !mInserted.isEmpty() || !mUpdated.isEmpty() || !mDeletedKeyIds.isEmpty();
+    }
+
+    /** Ranges to insert, in the order their row ids are expected back. */
+    List<CellBroadcastChannel> getPendingInserts() {
+        return new ArrayList<CellBroadcastChannel>(mInserted);
+    }
+
+    List<CellBroadcastChannel> getPendingUpdates() {
+        return new ArrayList<CellBroadcastChannel>(mUpdated);
+    }
+
+    List<Integer> getPendingDeletes() {
+        return new ArrayList<Integer>(mDeletedKeyIds);
+    }
+
+    /** Forget the recorded changes once they have been written to the channel table. */
+    void clearPendingChanges() {
+        mInserted.clear();
+        mUpdated.clear();
+        mDeletedKeyIds.clear();
+    }
+
+    /**
+     * Split the range so that it ends at {@code at - 1}, and insert a new range [at, end]
+     * right after it.
+     * @return the new range
+     */
+    private CellBroadcastChannel splitAt(CellBroadcastChannel range, int at) {
+        CellBroadcastChannel tail = new CellBroadcastChannel(0, at, range.getChannelIdEnd(),
+                range.getChannelName(), range.getChannelStatus());
+        range.setChannelRange(range.getChannelId(), at - 1);
+        markUpdated(range);
+        mRanges.put(at, tail);
+        mInserted.add(tail);
+        return tail;
+    }
+
+    private void mergeAdjacent() {
+        for (int i = mRanges.size() - 1; i > 0; i--) {
+            CellBroadcastChannel previous = mRanges.valueAt(i - 1);
+            CellBroadcastChannel current = mRanges.valueAt(i);
+            if (previous.getChannelIdEnd() + 1 == current.getChannelId()
+                    && previous.getChannelStatus() == current.getChannelStatus()
+                    && TextUtils.equals(previous.getChannelName(), current.getChannelName())) {
+                previous.setChannelRange(previous.getChannelId(), current.getChannelIdEnd());
+                markUpdated(previous);
+                mRanges.removeAt(i);
+                markDeleted(current);
+            }
+        }
+    }
+
+    private void markUpdated(CellBroadcastChannel channel) {
+        if (!mInserted.contains(channel)) {
+            mUpdated.add(channel);
+        }
+    }
+
+    private void markDeleted(CellBroadcastChannel channel) {
+        if (!mInserted.remove(channel)) {
+            mUpdated.remove(channel);
+            mDeletedKeyIds.add(channel.getKeyId());
+        }
+    }
+
+    /** Returns the index of the first range whose last channel id is >= id. */
+    private int lowerBound(int id) {
+        int low = 0;
+        int high = mRanges.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mRanges.valueAt(mid).getChannelIdEnd() < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -116,19 +116,31 @@ public class CellBroadcastConfigService extends IntentService {
      * @return true if the message is an emergency alert; false otherwise
      */
     static boolean isEmergencyAlertMessage(CellBroadcastMessage message) {
-        if (message.isEmergencyAlertMessage()) {
+        return isEmergencyAlertMessage(message.isEmergencyAlertMessage(),
+                message.getServiceCategory(), message.getSubId());
+    }
+
+    /**
+     * Returns true if a message with the given priority and service category should be
+     * treated as an emergency alert, without creating the message.
+     * @param emergencyPriority true if the message has emergency priority
+     * @param messageId the service category of the message
+     * @param subId the subscription the message was received on
+     */
+    static boolean isEmergencyAlertMessage(boolean emergencyPriority, int messageId,
+            int subId) {
+        if (emergencyPriority) {
             return true;
         }
 
         // Check for system property defining the emergency channel ranges to enable
-        String emergencyIdRange = (CellBroadcastReceiver.phoneIsCdma(message.getSubId())) ?
+        String emergencyIdRange = (CellBroadcastReceiver.phoneIsCdma(subId)) ?
                 "" : SystemProperties.get(EMERGENCY_BROADCAST_RANGE_GSM);
 
         if (TextUtils.isEmpty(emergencyIdRange)) {
             return false;
         }
         try {
-            int messageId = message.getServiceCategory();
             for (String channelRange : emergencyIdRange.split(",")) {
                 int dashIndex = channelRange.indexOf('-');
                 if (dashIndex != -1) {
@@ -450,12 +462,14 @@ public class CellBroadcastConfigService extends IntentService {
                             disabledChannels);
                     for (String channel : enabledChannels) {
                         if (DBG) Log.d(TAG, "enabling cell broadcast: channel(" + channel + ")");
-                        manager.enableCellBroadcast(Integer.parseInt(channel),
+                        int[] range = CellBroadcastChannel.parseRangeString(channel);
+                        manager.enableCellBroadcastRange(range[0], range[1],
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                     }
                     for (String channel : disabledChannels) {
                         if (DBG)Log.d(TAG, "disabling cell broadcast: channel(" + channel + ")");
-                        manager.disableCellBroadcast(Integer.parseInt(channel),
+                        int[] range = CellBroadcastChannel.parseRangeString(channel);
+                        manager.disableCellBroadcastRange(range[0], range[1],
                                 SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
                     }
                 }
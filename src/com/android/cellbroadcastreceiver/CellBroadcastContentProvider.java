@@ -19,27 +19,44 @@ package com.android.cellbroadcastreceiver;
 import android.app.AppOpsManager;
 import android.content.Context;
 import android.content.ContentProvider;
-import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
-import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.telephony.CellBroadcastMessage;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ContentProvider for the database of received cell broadcasts.
@@ -56,12 +73,110 @@ public class CellBroadcastContentProvider extends ContentProvider {
     /** Content URI for notifying observers. */
     static final Uri CONTENT_URI = Uri.parse("content://cellbroadcasts/");
 
-    /** Content URI for notifying observers. */
+    /**
+     * Content URI to query the broadcasts with presidential alerts first. Its cursors are
+     * notified on {@link #CONTENT_URI}, since the changes are notified on row URIs which are
+     * not below this URI.
+     */
     static final Uri PRESIDENT_PIN_URI = Uri.parse("content://cellbroadcasts/presidentpin/");
 
+    /**
+     * Content URI notified, with the row ID appended, when a broadcast is inserted. Changes
+     * to a single broadcast are notified on its row URI, {@code content://cellbroadcasts/<id>},
+     * and changes to many broadcasts on {@link #CONTENT_URI}.
+     */
+    static final Uri INSERTED_URI = Uri.parse("content://cellbroadcasts/inserted/");
+
+    /**
+     * Content URI to search the message bodies, with the search text in the {@code q}
+     * parameter and an optional {@code limit}. Results have the {@link #SEARCH_SNIPPET} and
+     * {@link #SEARCH_RANK} columns in addition to the broadcast columns, and are ordered by
+     * rank unless a sort order is given. See {@link #getSearchUri}.
+     */
+    static final Uri SEARCH_URI = Uri.parse("content://cellbroadcasts/search/");
+
+    /** Search parameter holding the text to search for. */
+    static final String QUERY_PARAMETER_SEARCH = "q";
+
+    /** Search result column with the text around the matches. */
+    static final String SEARCH_SNIPPET = "snippet";
+
+    /** Search result column with the number of matches in the message body. */
+    static final String SEARCH_RANK = "rank";
+
+    /**
+     * Content URI to read the number of broadcasts, with one row per service category and
+     * the {@link Telephony.CellBroadcasts#SERVICE_CATEGORY}, {@link #COUNT_TOTAL} and
+     * {@link #COUNT_UNREAD} columns. The counts are kept by the database as broadcasts
+     * change, so reading them doesn't scan the broadcasts. Observers of {@link #CONTENT_URI}
+     * are notified when they change.
+     */
+    static final Uri COUNTS_URI = Uri.parse("content://cellbroadcasts/counts/");
+
+    /** Counts column with the number of broadcasts. */
+    static final String COUNT_TOTAL = CellBroadcastDatabaseHelper.COUNTER_TOTAL;
+
+    /** Counts column with the number of unread broadcasts. */
+    static final String COUNT_UNREAD = CellBroadcastDatabaseHelper.COUNTER_UNREAD;
+
+    /**
+     * Content URI to read the whole broadcast history, oldest first, as a stream opened with
+     * {@link ContentResolver#openInputStream}. The format is set by
+     * {@link #QUERY_PARAMETER_FORMAT}:
+     * <ul>
+     * <li>{@link #EXPORT_FORMAT_CSV}, the default: CSV as in RFC 4180, with a header line of
+     * {@link #EXPORT_COLUMNS} and an empty field for null.</li>
+     * <li>{@link #EXPORT_FORMAT_BINARY}: the number of columns as an int, their names, then
+     * each row as a field per column. A field is its {@link Cursor#getType} type as a byte,
+     * followed by a long, a double, or the length of the UTF-8 string or blob as an int and
+     * its bytes, and by nothing for null.</li>
+     * </ul>
+     * Numbers are big-endian, as written by {@link DataOutputStream}.
+     */
+    static final Uri EXPORT_URI = Uri.parse("content://cellbroadcasts/export/");
+
+    /** Query parameter with the format of {@link #EXPORT_URI}. */
+    static final String QUERY_PARAMETER_FORMAT = "format";
+    static final String EXPORT_FORMAT_CSV = "csv";
+    static final String EXPORT_FORMAT_BINARY = "binary";
+
+    /** Columns of {@link #EXPORT_URI}, starting with the sort key. */
+    static final String[] EXPORT_COLUMNS = {
+            Telephony.CellBroadcasts._ID,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.CMAS_CATEGORY,
+            Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE,
+            Telephony.CellBroadcasts.CMAS_SEVERITY,
+            Telephony.CellBroadcasts.CMAS_URGENCY,
+            Telephony.CellBroadcasts.CMAS_CERTAINTY,
+            Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
+            Telephony.CellBroadcasts.PLMN,
+            Telephony.CellBroadcasts.LAC,
+            Telephony.CellBroadcasts.CID,
+            Telephony.CellBroadcasts.SERIAL_NUMBER,
+            Telephony.CellBroadcasts.LANGUAGE_CODE,
+            Telephony.CellBroadcasts.MESSAGE_FORMAT,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            Telephony.CellBroadcasts.MESSAGE_BODY,
+    };
+
     /** Content URI for channel customized */
     private static final Uri CHANNEL_URI =  Uri.parse("content://cellbroadcasts/channel/");
 
+    /**
+     * Query parameters to read {@link #CONTENT_URI} one page at a time. The page is ordered
+     * by delivery time and row ID, and starts after the row given by {@code after_time} and
+     * {@code after_id}, if any. See {@link #getPageUri}.
+     */
+    static final String QUERY_PARAMETER_LIMIT = "limit";
+    static final String QUERY_PARAMETER_AFTER_TIME = "after_time";
+    static final String QUERY_PARAMETER_AFTER_ID = "after_id";
+    static final String QUERY_PARAMETER_ASCENDING = "ascending";
+
     /** URI matcher type to get all cell broadcasts. */
     private static final int CB_ALL = 0;
 
@@ -76,29 +191,113 @@ public class CellBroadcastContentProvider extends ContentProvider {
 
     private static final String CB_CHANNEL_TYPE ="vnd.android.cursor.item/chanel";
 
+    /** MIME types of the export formats. */
+    private static final String EXPORT_CSV_TYPE = "text/csv";
+    private static final String EXPORT_BINARY_TYPE = "application/octet-stream";
+
     private static final int CB_CHANNEL_ID = 2;
 
     private static final int CB_PRESIDENT_PIN = 3;
 
+    private static final int CB_SEARCH = 4;
+
+    private static final int CB_COUNTS = 5;
+
+    private static final int CB_EXPORT = 6;
+
+    /** Rows read per query by an export, which never holds more in memory. */
+    private static final int EXPORT_BATCH_SIZE = 500;
+
+    private static final int EXPORT_BUFFER_SIZE = 8192;
+
     /** The projection and the index for query the channel */
     private static final String[] PROJECTION_CHANNEL
-            = new String[] { "_id", "name", "number", "enable" };
+            = new String[] { "_id", "name", "number", "enable", "number_end" };
     private static final int INDEX_NAME = 1;
     private static final int INDEX_CATEGORY = 2;
     private static final int INDEX_ENALBE = 3;
+    private static final int INDEX_CATEGORY_END = 4;
 
     private static final int ENABLE_VALUE_TRUE = 1;
 
+    /** Columns bound by the compiled insert statement, in binding order. */
+    private static final String[] INSERT_BROADCAST_COLUMNS = {
+            Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
+            Telephony.CellBroadcasts.PLMN,
+            Telephony.CellBroadcasts.LAC,
+            Telephony.CellBroadcasts.CID,
+            Telephony.CellBroadcasts.SERIAL_NUMBER,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.LANGUAGE_CODE,
+            CellBroadcastDatabaseHelper.BODY_ID,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            Telephony.CellBroadcasts.MESSAGE_FORMAT,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.CMAS_CATEGORY,
+            Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE,
+            Telephony.CellBroadcasts.CMAS_SEVERITY,
+            Telephony.CellBroadcasts.CMAS_URGENCY,
+            Telephony.CellBroadcasts.CMAS_CERTAINTY,
+    };
+
+    /** Indices of the compiled statements in {@link #mStatements}. */
+    private static final int STATEMENT_INSERT_BROADCAST = 0;
+    private static final int STATEMENT_MARK_READ_BY_ID = 1;
+    private static final int STATEMENT_MARK_READ_BY_DELIVERY_TIME = 2;
+    private static final int STATEMENT_DELETE_BY_ID = 3;
+    private static final int STATEMENT_DELETE_ALL = 4;
+    private static final int STATEMENT_MARK_DELETED_BY_ID = 5;
+    private static final int STATEMENT_MARK_ALL_DELETED = 6;
+    private static final int STATEMENT_DELETE_EXPIRED_MARKED = 7;
+    private static final int STATEMENT_DELETE_OLDER_THAN = 8;
+    private static final int STATEMENT_DELETE_OVER_LIMIT = 9;
+    private static final int STATEMENT_DELETE_CATEGORY_OVER_LIMIT = 10;
+    private static final int STATEMENT_COUNT = 11;
+
+    /** PRAGMA auto_vacuum value of a database in incremental mode. */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
     static {
         sUriMatcher.addURI(CB_AUTHORITY, null, CB_ALL);
         sUriMatcher.addURI(CB_AUTHORITY, "#", CB_ALL_ID);
         sUriMatcher.addURI(CB_AUTHORITY, "channel", CB_CHANNEL_ID);
         sUriMatcher.addURI(CB_AUTHORITY, "presidentpin", CB_PRESIDENT_PIN);
+        sUriMatcher.addURI(CB_AUTHORITY, "search", CB_SEARCH);
+        sUriMatcher.addURI(CB_AUTHORITY, "counts", CB_COUNTS);
+        sUriMatcher.addURI(CB_AUTHORITY, "export", CB_EXPORT);
     }
 
     /** The database for this content provider. */
-    private SQLiteOpenHelper mOpenHelper;
-    private static final long TIME12HOURS = 12*60*60*1000;
+    private CellBroadcastDatabaseHelper mOpenHelper;
+
+    /** Set while applyBatch() is running on this thread, to defer notifyChange() to the end. */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<Boolean>();
+
+    /**
+     * URIs changed by the internal methods on this thread, notified by
+     * CellBroadcastOperationQueue when the operation is done.
+     */
+    private final ThreadLocal<ArrayList<Uri>> mChangedUris = new ThreadLocal<ArrayList<Uri>>();
+
+    /**
+     * Statements for the internal write methods, compiled once against {@link #mStatementDb}.
+     * A statement holds its bound arguments, so callers must synchronize on it while binding
+     * and executing.
+     */
+    private final SQLiteStatement[] mStatements = new SQLiteStatement[STATEMENT_COUNT];
+    private SQLiteDatabase mStatementDb;
+
+    /**
+     * Version of the channel table, incremented after every write to it, and once more when
+     * the transaction of the write ends.
+     */
+    private final AtomicLong mChannelVersion = new AtomicLong();
+
+    /** The channel table as last read; current while its version is {@link #mChannelVersion}. */
+    private volatile ChannelSnapshot mChannelSnapshot;
     /**
      * Initialize content provider.
      * @return true if the provider was successfully loaded, false otherwise
@@ -124,7 +323,7 @@ public class CellBroadcastContentProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
             String sortOrder) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-        qb.setTables(CellBroadcastDatabaseHelper.TABLE_NAME);
+        qb.setTables(CellBroadcastDatabaseHelper.VIEW_NAME);
 
         int match = sUriMatcher.match(uri);
 
@@ -139,14 +338,26 @@ public class CellBroadcastContentProvider extends ContentProvider {
                 break;
 
             case CB_CHANNEL_ID:
+                if (TextUtils.isEmpty(selection)
+                        && PROJECTION_CHANNEL[INDEX_CATEGORY].equals(sortOrder)) {
+                    // the whole table by channel number, as the settings read it
+                    Cursor c = getChannelSnapshot().query(projection);
+                    if (c != null) {
+                        c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+                        return c;
+                    }
+                }
                 qb.setTables(CellBroadcastDatabaseHelper.CHANNEL_TABLE);
                 break;
 
             case CB_PRESIDENT_PIN:
-                SQLiteDatabase tempDB = mOpenHelper.getReadableDatabase();
-                Cursor cs = tempDB.rawQuery(genPresidentPin(projection, selection, sortOrder), null);
-                cs.setNotificationUri(getContext().getContentResolver(), PRESIDENT_PIN_URI);
-                return cs;
+                return queryPresidentPin(projection, selection, selectionArgs, sortOrder);
+
+            case CB_SEARCH:
+                return querySearch(uri, projection, selection, selectionArgs, sortOrder);
+
+            case CB_COUNTS:
+                return queryCounts(projection, selection, selectionArgs, sortOrder);
 
             default:
                 Log.e(TAG, "Invalid query: " + uri);
@@ -160,35 +371,331 @@ public class CellBroadcastContentProvider extends ContentProvider {
             orderBy = Telephony.CellBroadcasts.DEFAULT_SORT_ORDER;
         }
 
+        String limit = null;
+        if (match == CB_ALL && uri.getQueryParameter(QUERY_PARAMETER_LIMIT) != null) {
+            limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+            boolean ascending = uri.getBooleanQueryParameter(QUERY_PARAMETER_ASCENDING, false);
+            String direction = ascending ? " ASC" : " DESC";
+            orderBy = Telephony.CellBroadcasts.DELIVERY_TIME + direction + ","
+                    + Telephony.CellBroadcasts._ID + direction;
+            String afterTime = uri.getQueryParameter(QUERY_PARAMETER_AFTER_TIME);
+            String afterId = uri.getQueryParameter(QUERY_PARAMETER_AFTER_ID);
+            try {
+                Integer.parseInt(limit);
+                if (afterTime != null && afterId != null) {
+                    // written as a range on delivery time, so the index can seek to the page
+                    String op = ascending ? ">" : "<";
+                    String keyset = Telephony.CellBroadcasts.DELIVERY_TIME + op + "=? AND ("
+                            + Telephony.CellBroadcasts.DELIVERY_TIME + op + "? OR "
+                            + Telephony.CellBroadcasts._ID + op + "?)";
+                    selection = TextUtils.isEmpty(selection)
+                            ? keyset : "(" + selection + ") AND " + keyset;
+                    selectionArgs = concatArgs(selectionArgs, new String[] {
+                            String.valueOf(Long.parseLong(afterTime)),
+                            String.valueOf(Long.parseLong(afterTime)),
+                            String.valueOf(Long.parseLong(afterId)) });
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page parameters: " + uri);
+            }
+        }
+
+        SQLiteDatabase db = mOpenHelper.getHistoryDatabase();
+        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy,
+                limit);
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        }
+        return c;
+    }
+
+    /**
+     * Return the URI of the first page of broadcasts.
+     * @param limit the maximum number of rows
+     * @param ascending true to start with the oldest broadcast, false with the newest
+     */
+    static Uri getPageUri(int limit, boolean ascending) {
+        return CONTENT_URI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .appendQueryParameter(QUERY_PARAMETER_ASCENDING, String.valueOf(ascending))
+                .build();
+    }
+
+    /**
+     * Return the URI of the page of broadcasts that follows the given row.
+     * @param limit the maximum number of rows
+     * @param ascending true to read towards newer broadcasts, false towards older ones
+     * @param afterTime the delivery time of the last row of the previous page
+     * @param afterId the row ID of the last row of the previous page
+     */
+    static Uri getPageUri(int limit, boolean ascending, long afterTime, long afterId) {
+        return getPageUri(limit, ascending).buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_AFTER_TIME, String.valueOf(afterTime))
+                .appendQueryParameter(QUERY_PARAMETER_AFTER_ID, String.valueOf(afterId))
+                .build();
+    }
+
+    /**
+     * Query the broadcasts with presidential alerts first. Each half is read in index order
+     * (see {@link CellBroadcastDatabaseHelper}), so no sort is needed. The selection is bound
+     * rather than inlined, and the SQL only depends on the projection, selection and sort
+     * order, so the connection reuses the prepared statement on every reload.
+     */
+    private Cursor queryPresidentPin(String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        SQLiteDatabase db = mOpenHelper.getHistoryDatabase();
+        Cursor c = db.rawQuery(buildPresidentPinQuery(projection, selection, sortOrder),
+                concatArgs(selectionArgs, selectionArgs));
+        if (c != null) {
+            // the row and inserted URIs are descendants of CONTENT_URI, not of this URI
+            c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        }
+        return c;
+    }
+
+    static String buildPresidentPinQuery(String[] projection, String selection,
+            String sortOrder) {
+        String columns = (projection == null) ? "*" : TextUtils.join(",", projection);
+        String where = TextUtils.isEmpty(selection) ? "" : "(" + selection + ") AND ";
+        String orderBy = TextUtils.isEmpty(sortOrder)
+                ? Telephony.CellBroadcasts.DEFAULT_SORT_ORDER : sortOrder;
+        String cmasClass = Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS;
+        String table = CellBroadcastDatabaseHelper.VIEW_NAME;
+        // rows without a CMAS class match neither half, as before
+        return "SELECT * FROM (SELECT " + columns + " FROM " + table + " WHERE " + where
+                + cmasClass + "=0 ORDER BY " + orderBy + ") UNION ALL SELECT * FROM (SELECT "
+                + columns + " FROM " + table + " WHERE " + where + cmasClass + "<>0 ORDER BY "
+                + orderBy + ")";
+    }
+
+    /**
+     * Search the message bodies through the full-text index. The search text is bound as a
+     * MATCH argument built by {@link #buildMatchQuery}, so it can't change the query.
+     */
+    private Cursor querySearch(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        String limit = uri.getQueryParameter(QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            try {
+                limit = String.valueOf(Integer.parseInt(limit));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit: " + uri);
+            }
+        }
+        String match = buildMatchQuery(uri.getQueryParameter(QUERY_PARAMETER_SEARCH));
+        SQLiteDatabase db = mOpenHelper.getHistoryDatabase();
+        Cursor c = db.rawQuery(buildSearchQuery(projection, selection, sortOrder, limit),
+                concatArgs(new String[] { match }, selectionArgs));
+        if (c != null) {
+            c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
+        }
+        return c;
+    }
+
+    /**
+     * Read the counters table. It has a row per service category received, so this is
+     * cheap whatever the number of broadcasts.
+     */
+    private Cursor queryCounts(String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        Cursor c = qb.query(db, projection, selection, selectionArgs, null, null, orderBy);
+        Cursor c = db.query(CellBroadcastDatabaseHelper.COUNTERS_TABLE, projection, selection,
+                selectionArgs, null, null, sortOrder);
         if (c != null) {
+            // the counters change with the broadcasts
             c.setNotificationUri(getContext().getContentResolver(), CONTENT_URI);
         }
         return c;
     }
 
-    private String genPresidentPin(String[] projection,String selection,String strOrder) {
-        String strProject = "";
-        if (projection == null) return "";
-        for(int iIndex = 0; iIndex < projection.length; iIndex++) {
-            strProject += projection[iIndex];
-            if ( (iIndex >= 0) && (iIndex < projection.length -1)) {
-                strProject += ",";
+    /**
+     * Return the snapshot of the channel table, reading the table if it has been written
+     * since the last snapshot.
+     */
+    private ChannelSnapshot getChannelSnapshot() {
+        long version = mChannelVersion.get();
+        ChannelSnapshot snapshot = mChannelSnapshot;
+        if (snapshot == null || snapshot.mVersion != version) {
+            // a write during the read increments the version, so this snapshot is only used
+            // once, by this caller
+            snapshot = ChannelSnapshot.read(mOpenHelper.getReadableDatabase(), version);
+            mChannelSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    /** Invalidate the snapshot of the channel table. */
+    private void invalidateChannelSnapshot() {
+        mChannelVersion.incrementAndGet();
+    }
+
+    /**
+     * Immutable copy of the channel table, ordered by channel number. The table changes only
+     * when the user edits the channel settings, and is read in full after every change.
+     */
+    static final class ChannelSnapshot {
+        final long mVersion;
+        private final Object[][] mRows;
+
+        private ChannelSnapshot(long version, Object[][] rows) {
+            mVersion = version;
+            mRows = rows;
+        }
+
+        /** Read the channel table. */
+        static ChannelSnapshot read(SQLiteDatabase db, long version) {
+            Cursor c = db.query(CellBroadcastDatabaseHelper.CHANNEL_TABLE, PROJECTION_CHANNEL,
+                    null, null, null, null, PROJECTION_CHANNEL[INDEX_CATEGORY] + ","
+                    + PROJECTION_CHANNEL[0]);
+            try {
+                Object[][] rows = new Object[c.getCount()][];
+                for (int i = 0; c.moveToNext(); i++) {
+                    Object[] row = new Object[PROJECTION_CHANNEL.length];
+                    for (int column = 0; column < row.length; column++) {
+                        switch (c.getType(column)) {
+                            case Cursor.FIELD_TYPE_INTEGER:
+                                row[column] = c.getLong(column);
+                                break;
+                            case Cursor.FIELD_TYPE_FLOAT:
+                                row[column] = c.getDouble(column);
+                                break;
+                            case Cursor.FIELD_TYPE_STRING:
+                                row[column] = c.getString(column);
+                                break;
+                            case Cursor.FIELD_TYPE_BLOB:
+                                row[column] = c.getBlob(column);
+                                break;
+                            default:
+                                row[column] = null;
+                                break;
+                        }
+                    }
+                    rows[i] = row;
+                }
+                return new ChannelSnapshot(version, rows);
+            } finally {
+                c.close();
+            }
+        }
+
+        /**
+         * Return the channels with the given columns.
+         * @param projection the columns, or null for all
+         * @return the cursor, or null if a column is not in the channel table
+         */
+        MatrixCursor query(String[] projection) {
+            if (projection == null) {
+                projection = PROJECTION_CHANNEL;
+            }
+            int[] columns = new int[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                columns[i] = -1;
+                for (int column = 0; column < PROJECTION_CHANNEL.length; column++) {
+                    if (PROJECTION_CHANNEL[column].equals(projection[i])) {
+                        columns[i] = column;
+                        break;
+                    }
+                }
+                if (columns[i] < 0) {
+                    return null;
+                }
+            }
+            MatrixCursor cursor = new MatrixCursor(projection, mRows.length);
+            for (Object[] row : mRows) {
+                Object[] values = new Object[columns.length];
+                for (int i = 0; i < columns.length; i++) {
+                    values[i] = row[columns[i]];
+                }
+                cursor.addRow(values);
+            }
+            return cursor;
+        }
+    }
+
+    /**
+     * Return the number of unread broadcasts, from the counters table.
+     */
+    static int getUnreadCount(ContentResolver resolver) {
+        Cursor c = resolver.query(COUNTS_URI, new String[] { "sum(" + COUNT_UNREAD + ")" },
+                null, null, null);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Return the full-text query for the text typed by the user: every word must appear in
+     * the body, as a word or the start of one. Each word is quoted, so quotes and operators
+     * in the text are searched for rather than interpreted.
+     */
+    static String buildMatchQuery(String text) {
+        StringBuilder match = new StringBuilder();
+        if (text != null) {
+            for (String word : text.replace('"', ' ').trim().split("\\s+")) {
+                if (!word.isEmpty()) {
+                    if (match.length() > 0) {
+                        match.append(' ');
+                    }
+                    match.append('"').append(word).append("*\"");
+                }
             }
         }
-        String strClass =  Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS;
-        String strTab = CellBroadcastDatabaseHelper.TABLE_NAME;
-        String strSel = "SELECT * FROM (SELECT ";
-        String strPresidentCon = " WHERE (" + selection + ") AND " + strClass
-                + " = 0 ORDER BY " + strOrder;
-        String strgenCon = " WHERE (" + selection + ") AND " + strClass
-                + " <> 0 ORDER BY " + strOrder;
-        String strPresident = strSel + strProject + " FROM " + strTab + strPresidentCon +") AS A";
-        String strGen = strSel + strProject + " FROM " + strTab + strgenCon +") AS B";
-        String strSQL = strPresident + " UNION ALL " + strGen;
-        return strSQL;
+        // an empty query matches nothing
+        return match.toString();
+    }
+
+    /**
+     * Return the search query. The snippet and the rank are computed in the full-text
+     * query, which must be the one to use MATCH; the rank is the number of matches, counted
+     * from the four numbers per match returned by offsets(). The index is on the bodies
+     * table, so a match is joined to every broadcast with that body.
+     */
+    static String buildSearchQuery(String[] projection, String selection, String sortOrder,
+            String limit) {
+        String columns = (projection == null) ? "*" : TextUtils.join(",", projection);
+        String table = CellBroadcastDatabaseHelper.VIEW_NAME;
+        String search = CellBroadcastDatabaseHelper.SEARCH_TABLE;
+        String offsets = "offsets(" + search + ")";
+        String where = TextUtils.isEmpty(selection) ? "" : " WHERE " + selection;
+        String orderBy = TextUtils.isEmpty(sortOrder) ? SEARCH_RANK + " DESC,"
+                + Telephony.CellBroadcasts.DELIVERY_TIME + " DESC" : sortOrder;
+        return "SELECT " + columns + " FROM " + table + " JOIN (SELECT docid,snippet(" + search
+                + ",'','','\u2026',-1,10) AS " + SEARCH_SNIPPET + ",(length(" + offsets
+                + ")-length(replace(" + offsets + ",' ',''))+1)/4 AS " + SEARCH_RANK + " FROM "
+                + search + " WHERE " + search + " MATCH ?) AS matches ON " + table + "."
+                + CellBroadcastDatabaseHelper.BODY_ID + "=matches.docid" + where + " ORDER BY "
+                + orderBy + (limit != null ? " LIMIT " + limit : "");
+    }
+
+    /**
+     * Return the URI to search the message bodies for {@code text}.
+     * @param limit the maximum number of results
+     */
+    static Uri getSearchUri(String text, int limit) {
+        return SEARCH_URI.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_SEARCH, text)
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                .build();
+    }
+
+    private static String[] concatArgs(String[] first, String[] second) {
+        if (first == null || first.length == 0) {
+            return second;
+        }
+        if (second == null || second.length == 0) {
+            return first;
+        }
+        String[] args = new String[first.length + second.length];
+        System.arraycopy(first, 0, args, 0, first.length);
+        System.arraycopy(second, 0, args, first.length, second.length);
+        return args;
     }
+
     /**
      * Return the MIME type of the data at the specified URI.
      * @param uri the URI to query.
@@ -206,11 +713,169 @@ public class CellBroadcastContentProvider extends ContentProvider {
 
             case CB_CHANNEL_ID:
                 return CB_CHANNEL_TYPE;
+
+            case CB_EXPORT:
+                return EXPORT_FORMAT_BINARY.equals(getExportFormat(uri))
+                        ? EXPORT_BINARY_TYPE : EXPORT_CSV_TYPE;
             default:
                 return null;
         }
     }
 
+    /**
+     * Open a pipe streaming the broadcast history in the format of {@link #EXPORT_URI}. The
+     * rows are read in batches on a background thread as the caller reads the pipe.
+     * @param uri {@link #EXPORT_URI}, with its format
+     * @param mode "r", as the export is read-only
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != CB_EXPORT || !"r".equals(mode)) {
+            throw new FileNotFoundException("Cannot open " + uri + " in mode " + mode);
+        }
+        return openPipeHelper(uri, getType(uri), null, getExportFormat(uri),
+                new PipeDataWriter<String>() {
+                    @Override
+                    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri,
+                            String mimeType, Bundle opts, String format) {
+                        // the pipe helper closes the descriptor when this returns
+                        OutputStream out = new BufferedOutputStream(
+                                new FileOutputStream(output.getFileDescriptor()),
+                                EXPORT_BUFFER_SIZE);
+                        try {
+                            exportBroadcasts(out, EXPORT_FORMAT_BINARY.equals(format));
+                        } catch (IOException e) {
+                            // the reader closed the pipe
+                            Log.w(TAG, "export stopped: " + e);
+                        } catch (SQLException e) {
+                            Log.e(TAG, "export failed: " + e);
+                        }
+                    }
+                });
+    }
+
+    private static String getExportFormat(Uri uri) {
+        String format = uri.getQueryParameter(QUERY_PARAMETER_FORMAT);
+        if (format == null) {
+            return EXPORT_FORMAT_CSV;
+        }
+        if (!EXPORT_FORMAT_CSV.equals(format) && !EXPORT_FORMAT_BINARY.equals(format)) {
+            throw new IllegalArgumentException("Unknown export format: " + uri);
+        }
+        return format;
+    }
+
+    /**
+     * Write the broadcasts that the list shows, oldest first. They are read by keyset, so
+     * each batch is a short read of the delivery time index, and a broadcast received during
+     * the export is included.
+     */
+    private void exportBroadcasts(OutputStream out, boolean binary) throws IOException {
+        Writer csv = binary ? null : new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        DataOutputStream data = binary ? new DataOutputStream(out) : null;
+        if (binary) {
+            data.writeInt(EXPORT_COLUMNS.length);
+            for (String column : EXPORT_COLUMNS) {
+                writeBinaryBytes(data, column.getBytes(StandardCharsets.UTF_8));
+            }
+        } else {
+            csv.write(TextUtils.join(",", EXPORT_COLUMNS));
+            csv.write("\r\n");
+        }
+
+        // soft-deleted broadcasts are gone as far as the user can tell
+        String filter = getContext().getResources().getBoolean(
+                R.bool.config_regional_wea_duplicated_check_deleted_records)
+                ? Telephony.CellBroadcasts.MESSAGE_DELETED + "=0" : null;
+        String keyset = Telephony.CellBroadcasts.DELIVERY_TIME + ">=? AND ("
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ">? OR "
+                + Telephony.CellBroadcasts._ID + ">?)";
+        String orderBy = Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                + Telephony.CellBroadcasts._ID;
+        SQLiteDatabase db = mOpenHelper.getHistoryDatabase();
+        String selection = filter;
+        String[] selectionArgs = null;
+        int count;
+        do {
+            Cursor c = db.query(CellBroadcastDatabaseHelper.VIEW_NAME, EXPORT_COLUMNS,
+                    selection, selectionArgs, null, null, orderBy,
+                    String.valueOf(EXPORT_BATCH_SIZE));
+            try {
+                count = c.getCount();
+                while (c.moveToNext()) {
+                    if (binary) {
+                        writeBinaryRow(data, c);
+                    } else {
+                        writeCsvRow(csv, c);
+                    }
+                }
+                if (c.moveToLast()) {
+                    String lastTime = c.getString(1);
+                    selection = filter == null ? keyset : filter + " AND " + keyset;
+                    selectionArgs = new String[] { lastTime, lastTime, c.getString(0) };
+                }
+            } finally {
+                c.close();
+            }
+        } while (count == EXPORT_BATCH_SIZE);
+
+        if (binary) {
+            data.flush();
+        } else {
+            csv.flush();
+        }
+    }
+
+    private static void writeCsvRow(Writer out, Cursor c) throws IOException {
+        for (int i = 0; i < c.getColumnCount(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            String value = c.getString(i);
+            if (value == null) {
+                continue;
+            }
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0 || value.indexOf('\r') >= 0
+                    || value.indexOf('\n') >= 0) {
+                out.write('"');
+                out.write(value.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(value);
+            }
+        }
+        out.write("\r\n");
+    }
+
+    private static void writeBinaryRow(DataOutputStream out, Cursor c) throws IOException {
+        for (int i = 0; i < c.getColumnCount(); i++) {
+            int type = c.getType(i);
+            out.writeByte(type);
+            switch (type) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    out.writeLong(c.getLong(i));
+                    break;
+                case Cursor.FIELD_TYPE_FLOAT:
+                    out.writeDouble(c.getDouble(i));
+                    break;
+                case Cursor.FIELD_TYPE_STRING:
+                    writeBinaryBytes(out, c.getString(i).getBytes(StandardCharsets.UTF_8));
+                    break;
+                case Cursor.FIELD_TYPE_BLOB:
+                    writeBinaryBytes(out, c.getBlob(i));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static void writeBinaryBytes(DataOutputStream out, byte[] bytes)
+            throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
     /**
      * Insert a new row. This throws an exception, as the database can only be modified by
      * calling custom methods in this class, and not via the ContentProvider interface.
@@ -223,31 +888,17 @@ public class CellBroadcastContentProvider extends ContentProvider {
         Uri result = null;
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int match = sUriMatcher.match(uri);
-        ContentValues values;
         long rowID;
-        String table = null;
 
         Log.d(TAG, " insert match = "+match);
         switch (match) {
         case CB_CHANNEL_ID:
-            table = CellBroadcastDatabaseHelper.CHANNEL_TABLE;
-            if (initialValues != null) {
-                values = new ContentValues(initialValues);
-            } else {
-                values = new ContentValues();
-            }
-            if (!values.containsKey(PROJECTION_CHANNEL[INDEX_NAME])) {
-                values.put(PROJECTION_CHANNEL[INDEX_NAME], "");
-            }
-            if (!values.containsKey(PROJECTION_CHANNEL[INDEX_CATEGORY])) {
-                values.put(PROJECTION_CHANNEL[INDEX_CATEGORY], "");
-            }
-            if (!values.containsKey(PROJECTION_CHANNEL[INDEX_ENALBE])) {
-                values.put(PROJECTION_CHANNEL[INDEX_ENALBE], false);
-            }
-            rowID = db.insert(table, null, values);
+            rowID = insertChannel(db, initialValues);
+            invalidateChannelSnapshot();
             if (rowID > 0) {
-                notifyChange();
+                if (!isApplyingBatch()) {
+                    notifyChange();
+                }
                 result = Uri.parse("content://channel/" + rowID);
             }
             break;
@@ -258,6 +909,103 @@ public class CellBroadcastContentProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Insert several channel rows in a single transaction, and notify observers once when
+     * the transaction has been committed.
+     * @param uri the content:// URI of the insertion request.
+     * @param values an array of column_name/value sets to add to the database.
+     * @return the number of rows inserted.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        int match = sUriMatcher.match(uri);
+        if (match != CB_CHANNEL_ID) {
+            throw new UnsupportedOperationException("bulkInsert not supported");
+        }
+
+        int count = 0;
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues initialValues : values) {
+                if (insertChannel(db, initialValues) > 0) {
+                    count++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            invalidateChannelSnapshot();
+        }
+
+        if (count > 0 && !isApplyingBatch()) {
+            notifyChange();
+        }
+        return count;
+    }
+
+    /**
+     * Apply a batch of operations in a single transaction. The per-operation notifications
+     * are suppressed and replaced by a single notifyChange() after the batch is committed.
+     * @param operations the operations to apply
+     * @return the results of the applied operations
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mApplyingBatch.set(true);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mApplyingBatch.set(false);
+            // a read during the batch may have seen the uncommitted rows
+            invalidateChannelSnapshot();
+        }
+        if (results.length > 0) {
+            notifyChange();
+        }
+        return results;
+    }
+
+    private boolean isApplyingBatch() {
+        return mApplyingBatch.get() != null && mApplyingBatch.get();
+    }
+
+    /**
+     * Insert a single channel row, filling in defaults for any missing column. A row with the
+     * same channel number is replaced, so inserting a channel twice never duplicates it.
+     * @return the row ID of the newly inserted row, or -1 if an error occurred
+     */
+    private long insertChannel(SQLiteDatabase db, ContentValues initialValues) {
+        ContentValues values;
+        if (initialValues != null) {
+            values = new ContentValues(initialValues);
+        } else {
+            values = new ContentValues();
+        }
+        if (!values.containsKey(PROJECTION_CHANNEL[INDEX_NAME])) {
+            values.put(PROJECTION_CHANNEL[INDEX_NAME], "");
+        }
+        if (!values.containsKey(PROJECTION_CHANNEL[INDEX_CATEGORY])) {
+            values.put(PROJECTION_CHANNEL[INDEX_CATEGORY], "");
+        }
+        if (!values.containsKey(PROJECTION_CHANNEL[INDEX_ENALBE])) {
+            values.put(PROJECTION_CHANNEL[INDEX_ENALBE], false);
+        }
+        if (!values.containsKey(PROJECTION_CHANNEL[INDEX_CATEGORY_END])) {
+            // a single channel
+            values.put(PROJECTION_CHANNEL[INDEX_CATEGORY_END],
+                    values.getAsInteger(PROJECTION_CHANNEL[INDEX_CATEGORY]));
+        }
+        return db.insertWithOnConflict(CellBroadcastDatabaseHelper.CHANNEL_TABLE, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
     /**
      * Delete one or more rows. This throws an exception, as the database can only be modified by
      * calling custom methods in this class, and not via the ContentProvider interface.
@@ -267,15 +1015,13 @@ public class CellBroadcastContentProvider extends ContentProvider {
      */
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        int deletedRows = 0;
-        Uri deleteUri = null;
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-
-        deletedRows = deleteOnce(uri, selection, selectionArgs);
-        notifyChange();
-
+        int deletedRows = deleteOnce(uri, selection, selectionArgs);
+        if (!isApplyingBatch()) {
+            notifyChange();
+        }
         return deletedRows;
     }
+
     public int deleteOnce(Uri uri, String where, String[] whereArgs) {
         int count = 0;
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -283,15 +1029,16 @@ public class CellBroadcastContentProvider extends ContentProvider {
         switch (match) {
             case CB_CHANNEL_ID:
                 count = db.delete(CellBroadcastDatabaseHelper.CHANNEL_TABLE, where, whereArgs);
+                invalidateChannelSnapshot();
                 break;
 
             default:
                 throw new UnsupportedOperationException("Cannot delete that URL: "
                         + uri);
         }
-        notifyChange();
         return count;
     }
+
     /**
      * Update one or more rows. This throws an exception, as the database can only be modified by
      * calling custom methods in this class, and not via the ContentProvider interface.
@@ -308,44 +1055,95 @@ public class CellBroadcastContentProvider extends ContentProvider {
         int match = sUriMatcher.match(uri);
         switch (match) {
             case CB_CHANNEL_ID:
-               count = db.update(CellBroadcastDatabaseHelper.CHANNEL_TABLE, values, selection,
-                    selectionArgs);
+               // like insertChannel(), replace a stale row holding the new channel number
+               // instead of failing on the unique index
+               count = db.updateWithOnConflict(CellBroadcastDatabaseHelper.CHANNEL_TABLE, values,
+                    selection, selectionArgs, SQLiteDatabase.CONFLICT_REPLACE);
+               invalidateChannelSnapshot();
                break;
 
             default:
                throw new UnsupportedOperationException("Cannot update that URL: "
                     + uri);
         }
-        notifyChange();
+        if (!isApplyingBatch()) {
+            notifyChange();
+        }
         return count;
     }
 
     /**
      * Internal method to insert a new Cell Broadcast into the database and notify observers.
+     * The message body is stored once in the bodies table, however many broadcasts repeat it.
      * @param message the message to insert
      * @return true if the broadcast is new, false if it's a duplicate broadcast.
      */
     boolean insertNewBroadcast(CellBroadcastMessage message) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        ContentValues cv = message.getContentValues();
 
         // Note: this method previously queried the database for duplicate message IDs, but this
         // is not compatible with CMAS carrier requirements and could also cause other emergency
         // alerts, e.g. ETWS, to not display if the database is filled with old messages.
         // Use duplicate message ID detection in CellBroadcastAlertService instead of DB query.
 
-        long rowId = db.insert(CellBroadcastDatabaseHelper.TABLE_NAME, null, cv);
-        if (rowId == -1) {
-            Log.e(TAG, "failed to insert new broadcast into database");
-            // Return true on DB write failure because we still want to notify the user.
-            // The CellBroadcastMessage will be passed with the intent, so the message will be
-            // displayed in the emergency alert dialog, or the dialog that is displayed when
-            // the user selects the notification for a non-emergency broadcast, even if the
-            // broadcast could not be written to the database.
+        db.beginTransaction();
+        try {
+            long rowId = insertBroadcast(db, message.getContentValues());
+            db.setTransactionSuccessful();
+            addChangedUri(ContentUris.withAppendedId(INSERTED_URI, rowId));
+            return true;
+        } catch (SQLException e) {
+            Log.e(TAG, "insert failed: " + e);
+        } finally {
+            db.endTransaction();
         }
+        Log.e(TAG, "failed to insert new broadcast into database");
+        // Return true on DB write failure because we still want to notify the user.
+        // The CellBroadcastMessage will be passed with the intent, so the message will be
+        // displayed in the emergency alert dialog, or the dialog that is displayed when
+        // the user selects the notification for a non-emergency broadcast, even if the
+        // broadcast could not be written to the database.
         return true;    // broadcast is not a duplicate
     }
 
+    /**
+     * Insert a broadcast referring to its body in the bodies table. Must be called in a
+     * transaction, with the content values of a message, so a failed insert leaves no body
+     * behind.
+     * @return the row ID of the broadcast
+     * @throws SQLException if the broadcast could not be inserted
+     */
+    private long insertBroadcast(SQLiteDatabase db, ContentValues cv) {
+        String body = cv.getAsString(Telephony.CellBroadcasts.MESSAGE_BODY);
+        cv.remove(Telephony.CellBroadcasts.MESSAGE_BODY);
+        if (body != null) {
+            cv.put(CellBroadcastDatabaseHelper.BODY_ID,
+                    CellBroadcastDatabaseHelper.getBodyId(db, body));
+        }
+
+        int boundColumns = 0;
+        for (String column : INSERT_BROADCAST_COLUMNS) {
+            if (cv.containsKey(column)) {
+                boundColumns++;
+            }
+        }
+        if (boundColumns != cv.size()) {
+            // the message has a column the compiled statement doesn't know about
+            return db.insertOrThrow(CellBroadcastDatabaseHelper.TABLE_NAME, null, cv);
+        }
+        SQLiteStatement statement = getStatement(db, STATEMENT_INSERT_BROADCAST);
+        synchronized (statement) {
+            try {
+                for (int i = 0; i < INSERT_BROADCAST_COLUMNS.length; i++) {
+                    bindValue(statement, i + 1, cv.get(INSERT_BROADCAST_COLUMNS[i]));
+                }
+                return statement.executeInsert();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
     /**
      * Internal method to delete a cell broadcast by row ID and notify observers.
      * @param rowId the row ID of the broadcast to delete
@@ -354,10 +1152,9 @@ public class CellBroadcastContentProvider extends ContentProvider {
     boolean deleteBroadcast(long rowId) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        int rowCount = db.delete(CellBroadcastDatabaseHelper.TABLE_NAME,
-                Telephony.CellBroadcasts._ID + "=?",
-                new String[]{Long.toString(rowId)});
+        int rowCount = executeUpdateDelete(getStatement(db, STATEMENT_DELETE_BY_ID), rowId);
         if (rowCount != 0) {
+            addChangedUri(ContentUris.withAppendedId(CONTENT_URI, rowId));
             return true;
         } else {
             Log.e(TAG, "failed to delete broadcast at row " + rowId);
@@ -372,8 +1169,9 @@ public class CellBroadcastContentProvider extends ContentProvider {
     boolean deleteAllBroadcasts() {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        int rowCount = db.delete(CellBroadcastDatabaseHelper.TABLE_NAME, null, null);
+        int rowCount = executeUpdateDelete(getStatement(db, STATEMENT_DELETE_ALL));
         if (rowCount != 0) {
+            addChangedUri(CONTENT_URI);
             return true;
         } else {
             Log.e(TAG, "failed to delete all broadcasts");
@@ -381,15 +1179,15 @@ public class CellBroadcastContentProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Internal method to hide a broadcast from the list, keeping it for the duplicate check.
+     * The maintenance job deletes it later, see {@link #deleteMarkedBroadcasts}.
+     */
     boolean markItemDeleted(long rowId) {
-        deleteAllMarked();
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        ContentValues value = new ContentValues(1);
-        value.put(Telephony.CellBroadcasts.MESSAGE_DELETED, 1);
-        int rowCount = db.update(CellBroadcastDatabaseHelper.TABLE_NAME, value,
-                Telephony.CellBroadcasts._ID + "=?",
-                new String[]{Long.toString(rowId)});
+        int rowCount = executeUpdateDelete(getStatement(db, STATEMENT_MARK_DELETED_BY_ID), rowId);
         if (rowCount != 0) {
+            addChangedUri(ContentUris.withAppendedId(CONTENT_URI, rowId));
             return true;
         } else {
             Log.e(TAG, "failed to delete broadcast at row " + rowId);
@@ -397,13 +1195,12 @@ public class CellBroadcastContentProvider extends ContentProvider {
         }
     }
 
+    /** Internal method to hide all broadcasts from the list, as {@link #markItemDeleted}. */
     boolean markAllItemsDeleted() {
-        deleteAllMarked();
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        ContentValues value = new ContentValues(1);
-        value.put(Telephony.CellBroadcasts.MESSAGE_DELETED, 1);
-        int rowCount = db.update(CellBroadcastDatabaseHelper.TABLE_NAME, value, Telephony.CellBroadcasts.MESSAGE_DELETED + "=0", null);
+        int rowCount = executeUpdateDelete(getStatement(db, STATEMENT_MARK_ALL_DELETED));
         if (rowCount != 0) {
+            addChangedUri(CONTENT_URI);
             return true;
         } else {
             Log.e(TAG, "failed to delete all broadcasts");
@@ -411,14 +1208,6 @@ public class CellBroadcastContentProvider extends ContentProvider {
         }
     }
 
-    void deleteAllMarked() {
-        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        String strWhere = Telephony.CellBroadcasts.MESSAGE_DELETED + "=1 AND "+Telephony.CellBroadcasts.DELIVERY_TIME + "<?";
-        long time = System.currentTimeMillis();
-        String strExpired = Long.toString(time - TIME12HOURS);
-        db.delete(CellBroadcastDatabaseHelper.TABLE_NAME, strWhere,new String[]{strExpired});
-    }
-
     /**
      * Internal method to mark a broadcast as read and notify observers. The broadcast can be
      * identified by delivery time (for new alerts) or by row ID. The caller is responsible for
@@ -431,13 +1220,44 @@ public class CellBroadcastContentProvider extends ContentProvider {
     boolean markBroadcastRead(String columnName, long columnValue) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        ContentValues cv = new ContentValues(1);
-        cv.put(Telephony.CellBroadcasts.MESSAGE_READ, 1);
+        int rowCount;
+        if (Telephony.CellBroadcasts._ID.equals(columnName)) {
+            rowCount = executeUpdateDelete(getStatement(db, STATEMENT_MARK_READ_BY_ID),
+                    columnValue);
+            if (rowCount != 0) {
+                addChangedUri(ContentUris.withAppendedId(CONTENT_URI, columnValue));
+            }
+        } else if (Telephony.CellBroadcasts.DELIVERY_TIME.equals(columnName)) {
+            // look up the rows first, so only they are notified; the transaction keeps
+            // the rows looked up and the rows updated the same
+            long[] rowIds;
+            db.beginTransaction();
+            try {
+                rowIds = queryUnreadRowIds(db, columnValue);
+                rowCount = executeUpdateDelete(
+                        getStatement(db, STATEMENT_MARK_READ_BY_DELIVERY_TIME), columnValue);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (rowCount != 0) {
+                for (long rowId : rowIds) {
+                    addChangedUri(ContentUris.withAppendedId(CONTENT_URI, rowId));
+                }
+            }
+        } else {
+            ContentValues cv = new ContentValues(1);
+            cv.put(Telephony.CellBroadcasts.MESSAGE_READ, 1);
 
-        String whereClause = columnName + "=?";
-        String[] whereArgs = new String[]{Long.toString(columnValue)};
+            String whereClause = columnName + "=?";
+            String[] whereArgs = new String[]{Long.toString(columnValue)};
 
-        int rowCount = db.update(CellBroadcastDatabaseHelper.TABLE_NAME, cv, whereClause, whereArgs);
+            rowCount = db.update(CellBroadcastDatabaseHelper.TABLE_NAME, cv, whereClause,
+                    whereArgs);
+            if (rowCount != 0) {
+                addChangedUri(CONTENT_URI);
+            }
+        }
         if (rowCount != 0) {
             return true;
         } else {
@@ -446,59 +1266,247 @@ public class CellBroadcastContentProvider extends ContentProvider {
         }
     }
 
-    /** Callback for users of AsyncCellBroadcastOperation. */
-    interface CellBroadcastOperation {
-        /**
-         * Perform an operation using the specified provider.
-         * @param provider the CellBroadcastContentProvider to use
-         * @return true if any rows were changed, false otherwise
-         */
-        boolean execute(CellBroadcastContentProvider provider);
+    /** Return the IDs of the unread broadcasts with the given delivery time. */
+    private static long[] queryUnreadRowIds(SQLiteDatabase db, long deliveryTime) {
+        Cursor c = db.query(CellBroadcastDatabaseHelper.TABLE_NAME,
+                new String[] { Telephony.CellBroadcasts._ID },
+                Telephony.CellBroadcasts.DELIVERY_TIME + "=? AND "
+                        + Telephony.CellBroadcasts.MESSAGE_READ + "=0",
+                new String[] { Long.toString(deliveryTime) }, null, null, null);
+        try {
+            long[] rowIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                rowIds[i] = c.getLong(0);
+            }
+            return rowIds;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void addChangedUri(Uri uri) {
+        ArrayList<Uri> uris = mChangedUris.get();
+        if (uris == null) {
+            uris = new ArrayList<Uri>();
+            mChangedUris.set(uris);
+        }
+        uris.add(uri);
+    }
+
+    /**
+     * Return the URIs changed by the internal methods on this thread since the last call,
+     * or null if there are none.
+     */
+    ArrayList<Uri> takeChangedUris() {
+        ArrayList<Uri> uris = mChangedUris.get();
+        mChangedUris.remove();
+        return uris;
+    }
+
+    /**
+     * Internal method to delete up to {@code limit} broadcasts marked deleted and received
+     * before {@code cutoffTime}, oldest first. Used by the maintenance job; the broadcasts
+     * are no longer shown, so observers are not notified.
+     * @return the number of broadcasts deleted
+     */
+    int deleteMarkedBroadcasts(long cutoffTime, int limit) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        return executeUpdateDelete(getStatement(db, STATEMENT_DELETE_EXPIRED_MARKED),
+                cutoffTime, limit);
+    }
+
+    /**
+     * Internal method to delete up to {@code limit} broadcasts received before
+     * {@code cutoffTime}, oldest first. Used by the maintenance job to enforce the maximum age.
+     * @return the number of broadcasts deleted
+     */
+    int deleteBroadcastsOlderThan(long cutoffTime, int limit) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        return executeUpdateDelete(getStatement(db, STATEMENT_DELETE_OLDER_THAN), cutoffTime,
+                limit);
+    }
+
+    /**
+     * Internal method to delete up to {@code limit} of the oldest broadcasts beyond the most
+     * recent {@code maxRows}.
+     * @return the number of broadcasts deleted
+     */
+    int deleteBroadcastsOverLimit(int maxRows, int limit) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        return executeUpdateDelete(getStatement(db, STATEMENT_DELETE_OVER_LIMIT), limit,
+                maxRows);
     }
 
     /**
-     * Async task to call this content provider's internal methods on a background thread.
-     * The caller supplies the CellBroadcastOperation object to call for this provider.
+     * Internal method to delete up to {@code limit} of the oldest broadcasts of a service
+     * category beyond the most recent {@code maxRows} of that category.
+     * @return the number of broadcasts deleted
      */
-    static class AsyncCellBroadcastTask extends AsyncTask<CellBroadcastOperation, Void, Void> {
-        /** Reference to this app's content resolver. */
-        private ContentResolver mContentResolver;
+    int deleteBroadcastsOverLimit(int serviceCategory, int maxRows, int limit) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        return executeUpdateDelete(getStatement(db, STATEMENT_DELETE_CATEGORY_OVER_LIMIT),
+                serviceCategory, limit, maxRows);
+    }
 
-        AsyncCellBroadcastTask(ContentResolver contentResolver) {
-            mContentResolver = contentResolver;
+    /**
+     * Internal method to give up to {@code maxPages} free pages back to the file system.
+     * A database not yet in incremental auto-vacuum mode is converted first, with a full
+     * VACUUM; this must not be called inside a transaction. A new database is converted on
+     * the first maintenance run, while it is still small.
+     * @return true if free pages remain, false if the file is compact or compaction failed
+     */
+    boolean compactDatabase(int maxPages) {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        try {
+            if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                    != AUTO_VACUUM_INCREMENTAL) {
+                Log.d(TAG, "converting database to incremental auto-vacuum");
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+                return false;
+            }
+            // every page released by incremental_vacuum is reported as a result row
+            Cursor c = db.rawQuery("PRAGMA incremental_vacuum(" + maxPages + ")", null);
+            try {
+                c.getCount();
+            } finally {
+                c.close();
+            }
+            return DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0;
+        } catch (SQLException e) {
+            // e.g. no room for the copy made by VACUUM; tried again on the next run
+            Log.e(TAG, "compaction failed: " + e);
+            return false;
         }
+    }
 
-        /**
-         * Perform a generic operation on the CellBroadcastContentProvider.
-         * @param params the CellBroadcastOperation object to call for this provider
-         * @return void
-         */
-        @Override
-        protected Void doInBackground(CellBroadcastOperation... params) {
-            ContentProviderClient cpc = mContentResolver.acquireContentProviderClient(
-                    CellBroadcastContentProvider.CB_AUTHORITY);
-            CellBroadcastContentProvider provider = (CellBroadcastContentProvider)
-                    cpc.getLocalContentProvider();
-
-            if (provider != null) {
-                try {
-                    boolean changed = params[0].execute(provider);
-                    if (changed) {
-                        Log.d(TAG, "database changed: notifying observers...");
-                        mContentResolver.notifyChange(CONTENT_URI, null, false);
+    /**
+     * Return the compiled statement at {@code index}, compiling it on first use. Statements
+     * are recompiled if the helper has reopened the database.
+     */
+    private SQLiteStatement getStatement(SQLiteDatabase db, int index) {
+        synchronized (mStatements) {
+            if (mStatementDb != db) {
+                for (int i = 0; i < STATEMENT_COUNT; i++) {
+                    if (mStatements[i] != null) {
+                        mStatements[i].close();
+                        mStatements[i] = null;
                     }
-                } finally {
-                    cpc.release();
                 }
-            } else {
-                Log.e(TAG, "getLocalContentProvider() returned null");
+                mStatementDb = db;
+            }
+            if (mStatements[index] == null) {
+                mStatements[index] = db.compileStatement(getStatementSql(index));
             }
+            return mStatements[index];
+        }
+    }
 
-            mContentResolver = null;    // free reference to content resolver
-            return null;
+    private static String getStatementSql(int index) {
+        final String table = CellBroadcastDatabaseHelper.TABLE_NAME;
+        switch (index) {
+            case STATEMENT_INSERT_BROADCAST: {
+                StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+                StringBuilder args = new StringBuilder();
+                for (int i = 0; i < INSERT_BROADCAST_COLUMNS.length; i++) {
+                    if (i > 0) {
+                        sql.append(',');
+                        args.append(',');
+                    }
+                    sql.append(INSERT_BROADCAST_COLUMNS[i]);
+                    args.append('?');
+                }
+                return sql.append(") VALUES (").append(args).append(')').toString();
+            }
+            case STATEMENT_MARK_READ_BY_ID:
+                return "UPDATE " + table + " SET " + Telephony.CellBroadcasts.MESSAGE_READ
+                        + "=1 WHERE " + Telephony.CellBroadcasts._ID + "=?";
+            case STATEMENT_MARK_READ_BY_DELIVERY_TIME:
+                return "UPDATE " + table + " SET " + Telephony.CellBroadcasts.MESSAGE_READ
+                        + "=1 WHERE " + Telephony.CellBroadcasts.DELIVERY_TIME + "=?";
+            case STATEMENT_DELETE_BY_ID:
+                return "DELETE FROM " + table + " WHERE " + Telephony.CellBroadcasts._ID + "=?";
+            case STATEMENT_DELETE_ALL:
+                return "DELETE FROM " + table;
+            case STATEMENT_MARK_DELETED_BY_ID:
+                return "UPDATE " + table + " SET " + Telephony.CellBroadcasts.MESSAGE_DELETED
+                        + "=1 WHERE " + Telephony.CellBroadcasts._ID + "=?";
+            case STATEMENT_MARK_ALL_DELETED:
+                return "UPDATE " + table + " SET " + Telephony.CellBroadcasts.MESSAGE_DELETED
+                        + "=1 WHERE " + Telephony.CellBroadcasts.MESSAGE_DELETED + "=0";
+            case STATEMENT_DELETE_EXPIRED_MARKED:
+                return "DELETE FROM " + table + " WHERE " + Telephony.CellBroadcasts._ID
+                        + " IN (SELECT " + Telephony.CellBroadcasts._ID + " FROM " + table
+                        + " WHERE " + Telephony.CellBroadcasts.MESSAGE_DELETED + "=1 AND "
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + "<? ORDER BY "
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + " LIMIT ?)";
+            case STATEMENT_DELETE_OLDER_THAN:
+                return "DELETE FROM " + table + " WHERE " + Telephony.CellBroadcasts._ID
+                        + " IN (SELECT " + Telephony.CellBroadcasts._ID + " FROM " + table
+                        + " WHERE " + Telephony.CellBroadcasts.DELIVERY_TIME + "<? ORDER BY "
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + " LIMIT ?)";
+            case STATEMENT_DELETE_OVER_LIMIT:
+                // the oldest of the rows beyond the limit, at most a batch; a negative LIMIT
+                // would mean no limit
+                return "DELETE FROM " + table + " WHERE " + Telephony.CellBroadcasts._ID
+                        + " IN (SELECT " + Telephony.CellBroadcasts._ID + " FROM " + table
+                        + " ORDER BY " + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                        + Telephony.CellBroadcasts._ID + " LIMIT max(0, min(?, (SELECT count(*)"
+                        + " FROM " + table + ")-?)))";
+            case STATEMENT_DELETE_CATEGORY_OVER_LIMIT:
+                return "DELETE FROM " + table + " WHERE " + Telephony.CellBroadcasts._ID
+                        + " IN (SELECT " + Telephony.CellBroadcasts._ID + " FROM " + table
+                        + " WHERE " + Telephony.CellBroadcasts.SERVICE_CATEGORY + "=?1 ORDER BY "
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                        + Telephony.CellBroadcasts._ID + " LIMIT max(0, min(?2, (SELECT count(*)"
+                        + " FROM " + table + " WHERE " + Telephony.CellBroadcasts.SERVICE_CATEGORY
+                        + "=?1)-?3)))";
+            default:
+                throw new IllegalArgumentException("Unknown statement: " + index);
         }
     }
 
+    /**
+     * Bind the arguments and run an UPDATE or DELETE statement.
+     * @return the number of rows affected
+     */
+    private static int executeUpdateDelete(SQLiteStatement statement, long... args) {
+        synchronized (statement) {
+            try {
+                for (int i = 0; i < args.length; i++) {
+                    statement.bindLong(i + 1, args[i]);
+                }
+                return statement.executeUpdateDelete();
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof String) {
+            statement.bindString(index, (String) value);
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    /** An operation on the provider, run by {@link CellBroadcastOperationQueue}. */
+    interface CellBroadcastOperation {
+        /**
+         * Perform an operation using the specified provider.
+         * @param provider the CellBroadcastContentProvider to use
+         * @return true if any rows were changed, false otherwise
+         */
+        boolean execute(CellBroadcastContentProvider provider);
+    }
+
     private void notifyChange() {
         Log.i(TAG, "Notify change");
         Context context = getContext();
@@ -511,10 +1519,14 @@ public class CellBroadcastContentProvider extends ContentProvider {
                     PROJECTION_CHANNEL[INDEX_CATEGORY]);
             if (cursor != null) {
                 while (cursor.moveToNext()) {
+                    int from = cursor.getInt(INDEX_CATEGORY);
+                    int to = cursor.isNull(INDEX_CATEGORY_END)
+                            ? from : cursor.getInt(INDEX_CATEGORY_END);
+                    String range = CellBroadcastChannel.toRangeString(from, to);
                     if (cursor.getInt(INDEX_ENALBE) == ENABLE_VALUE_TRUE) {
-                        enabledChannels.add(cursor.getString(INDEX_CATEGORY));
+                        enabledChannels.add(range);
                     } else {
-                        disabledChannels.add(cursor.getString(INDEX_CATEGORY));
+                        disabledChannels.add(range);
                     }
                 }
             } else {
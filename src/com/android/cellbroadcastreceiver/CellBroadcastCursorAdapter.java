@@ -18,20 +18,118 @@ package com.android.cellbroadcastreceiver;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.telephony.CellBroadcastMessage;
+import android.graphics.drawable.Drawable;
+import android.provider.Telephony;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 
 /**
- * The back-end data adapter for {@link CellBroadcastListActivity}.
+ * The back-end data adapter for {@link CellBroadcastListActivity}. Row IDs are stable, and
+ * each list item keeps the broadcast it shows, so after a reload only the rows that
+ * changed are rebound.
  */
 public class CellBroadcastCursorAdapter extends CursorAdapter {
 
+    /** Maximum number of characters of the message body shown in the list. */
+    static final int BODY_PREVIEW_LENGTH = 200;
+
+    /**
+     * The columns bound to a list item: enough for the title, date, read state and a
+     * preview of the body. The full broadcast is loaded by ID when it is opened.
+     */
+    static final String[] SUMMARY_COLUMNS = {
+            Telephony.CellBroadcasts._ID,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            "substr(" + Telephony.CellBroadcasts.MESSAGE_BODY + ",1," + BODY_PREVIEW_LENGTH
+                    + ") AS " + Telephony.CellBroadcasts.MESSAGE_BODY,
+    };
+
+    /**
+     * The summary columns of a search result, with the text around the matches as the
+     * body preview.
+     */
+    static final String[] SEARCH_COLUMNS = {
+            Telephony.CellBroadcasts._ID,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            CellBroadcastContentProvider.SEARCH_SNIPPET + " AS "
+                    + Telephony.CellBroadcasts.MESSAGE_BODY,
+    };
+
+    /**
+     * Indexes of {@link #SUMMARY_COLUMNS} in a cursor, resolved once per cursor.
+     */
+    static class SummaryColumns {
+        final int id;
+        final int serviceCategory;
+        final int priority;
+        final int etwsWarningType;
+        final int cmasMessageClass;
+        final int deliveryTime;
+        final int read;
+        final int body;
+
+        SummaryColumns(Cursor cursor) {
+            id = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID);
+            serviceCategory = cursor.getColumnIndexOrThrow(
+                    Telephony.CellBroadcasts.SERVICE_CATEGORY);
+            priority = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts.MESSAGE_PRIORITY);
+            etwsWarningType = cursor.getColumnIndexOrThrow(
+                    Telephony.CellBroadcasts.ETWS_WARNING_TYPE);
+            cmasMessageClass = cursor.getColumnIndexOrThrow(
+                    Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS);
+            deliveryTime = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts.DELIVERY_TIME);
+            read = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts.MESSAGE_READ);
+            body = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts.MESSAGE_BODY);
+        }
+    }
+
+    private final LayoutInflater mInflater;
+
+    // loaded once and shared by all list items
+    private final Drawable.ConstantState mReadBackground;
+    private final Drawable.ConstantState mUnreadBackground;
+
+    private SummaryColumns mColumns;
+
+    // changed when the same rows are about to be shown with other content
+    private int mContentGeneration;
+
     public CellBroadcastCursorAdapter(Context context, Cursor cursor) {
         // don't set FLAG_AUTO_REQUERY or FLAG_REGISTER_CONTENT_OBSERVER
         super(context, cursor, 0);
+        mInflater = LayoutInflater.from(context);
+        mReadBackground = context.getDrawable(R.drawable.list_item_background_read)
+                .getConstantState();
+        mUnreadBackground = context.getDrawable(R.drawable.list_item_background_unread)
+                .getConstantState();
+    }
+
+    /**
+     * Rebind every row on the next bind, even rows that show the same broadcast as before.
+     * Call this when swapping in a cursor from another query, e.g. when switching between
+     * the list and the search results, whose body columns differ.
+     */
+    void invalidateContent() {
+        mContentGeneration++;
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        // resolved again on the next bind
+        mColumns = null;
+        return super.swapCursor(newCursor);
     }
 
     /**
@@ -44,14 +142,8 @@ public class CellBroadcastCursorAdapter extends CursorAdapter {
      */
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
-        CellBroadcastMessage message = CellBroadcastMessage.createFromCursor(cursor);
-
-        LayoutInflater factory = LayoutInflater.from(context);
-        CellBroadcastListItem listItem = (CellBroadcastListItem) factory.inflate(
-                    R.layout.cell_broadcast_list_item, parent, false);
-
-        listItem.bind(message);
-        return listItem;
+        // bound by bindView()
+        return mInflater.inflate(R.layout.cell_broadcast_list_item, parent, false);
     }
 
     /**
@@ -63,8 +155,11 @@ public class CellBroadcastCursorAdapter extends CursorAdapter {
      */
     @Override
     public void bindView(View view, Context context, Cursor cursor) {
-        CellBroadcastMessage message = CellBroadcastMessage.createFromCursor(cursor);
+        if (mColumns == null) {
+            mColumns = new SummaryColumns(cursor);
+        }
         CellBroadcastListItem listItem = (CellBroadcastListItem) view;
-        listItem.bind(message);
+        listItem.bind(cursor, mColumns, mContentGeneration, mReadBackground,
+                mUnreadBackground);
     }
 }
@@ -16,12 +16,16 @@
 
 package com.android.cellbroadcastreceiver;
 
+import android.app.ActivityManager;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
 import android.provider.Telephony;
 import android.telephony.SmsCbCmasInfo;
 import android.telephony.SmsCbEtwsInfo;
@@ -43,6 +47,28 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
     static final String DATABASE_NAME = "cell_broadcasts.db";
     static final String TABLE_NAME = "broadcasts";
     static final String CHANNEL_TABLE = "channel";
+    /**
+     * Message bodies, stored once each. The row ID is the fingerprint of the body (see
+     * {@link #getBodyId}), or a sequential ID for a body moved by a database upgrade, and the
+     * reference count is the number of broadcasts using it.
+     */
+    static final String BODIES_TABLE = "bodies";
+    /** Bodies table column with the number of broadcasts referring to the body. */
+    static final String BODY_REF_COUNT = "ref_count";
+    /** Broadcasts table column with the row ID of the body in {@link #BODIES_TABLE}. */
+    static final String BODY_ID = "body_id";
+    /** The broadcasts with their message body, for reading. */
+    static final String VIEW_NAME = "broadcasts_view";
+    /** Full-text index of the message bodies in {@link #BODIES_TABLE}. */
+    static final String SEARCH_TABLE = "bodies_fts";
+    /** Full-text index of version 16 and 17, on the bodies in {@link #TABLE_NAME}. */
+    private static final String SEARCH_TABLE_V16 = "broadcasts_fts";
+    /** Number of broadcasts and unread broadcasts per service category. */
+    static final String COUNTERS_TABLE = "counters";
+    /** Counters table column with the number of broadcasts. */
+    static final String COUNTER_TOTAL = "total";
+    /** Counters table column with the number of unread broadcasts. */
+    static final String COUNTER_UNREAD = "unread";
     /** Temporary table for upgrading the database version. */
     static final String TEMP_TABLE_NAME = "old_broadcasts";
 
@@ -51,15 +77,182 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
      * Database version 2-9: (reserved for OEM database customization)
      * Database version 10: adds ETWS and CMAS columns and CDMA support
      * Database version 11: adds delivery time index
-	 * Database version 12: add a field to check duplicate in deleted messages
+     * Database version 12: add a field to check duplicate in deleted messages
+     * Database version 13: adds channel range end column
+     * Database version 14: adds unique channel number index
+     * Database version 15: replaces delivery time index with composite query indices
+     * Database version 16: adds full-text search table for message bodies
+     * Database version 17: adds counters table
+     * Database version 18: moves message bodies to a table shared by identical broadcasts
      */
-    static final int DATABASE_VERSION = 12;
+    static final int DATABASE_VERSION = 18;
+
+    /** Columns of the broadcasts table shown by the view, besides the message body. */
+    private static final String[] VIEW_COLUMNS = {
+            Telephony.CellBroadcasts._ID,
+            Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
+            Telephony.CellBroadcasts.PLMN,
+            Telephony.CellBroadcasts.LAC,
+            Telephony.CellBroadcasts.CID,
+            Telephony.CellBroadcasts.SERIAL_NUMBER,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.LANGUAGE_CODE,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            Telephony.CellBroadcasts.MESSAGE_FORMAT,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.CMAS_CATEGORY,
+            Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE,
+            Telephony.CellBroadcasts.CMAS_SEVERITY,
+            Telephony.CellBroadcasts.CMAS_URGENCY,
+            Telephony.CellBroadcasts.CMAS_CERTAINTY,
+            BODY_ID,
+    };
+
+    /** Prepared statements cached per connection; the list and dedup queries reuse theirs. */
+    private static final int MAX_SQL_CACHE_SIZE = 50;
+
     private boolean mDuplicateCheckDeletedRecords = false;
 
+    private final Context mContext;
+
+    /**
+     * The storage settings of the primary connection and of the history connection, or null
+     * for the SQLite defaults.
+     */
+    private final StorageProfile mStorageProfile;
+
+    /** The read-only connection of the history reads, opened on first use. */
+    private SQLiteDatabase mHistoryDatabase;
+
     CellBroadcastDatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
-        mDuplicateCheckDeletedRecords =
-            context.getResources().getBoolean(R.bool.config_regional_wea_duplicated_check_deleted_records);
+        this(context, DATABASE_NAME, context.getResources().getBoolean(
+                R.bool.config_regional_wea_duplicated_check_deleted_records),
+                StorageProfile.forDevice(context));
+    }
+
+    /**
+     * Constructor for tests, with the SQLite storage defaults.
+     * @param name the database file name, or null for an in-memory database
+     * @param duplicateCheckDeletedRecords whether to add the deleted message column
+     */
+    CellBroadcastDatabaseHelper(Context context, String name,
+            boolean duplicateCheckDeletedRecords) {
+        this(context, name, duplicateCheckDeletedRecords, null);
+    }
+
+    /**
+     * Constructor for tests.
+     * @param name the database file name, or null for an in-memory database
+     * @param duplicateCheckDeletedRecords whether to add the deleted message column
+     * @param storageProfile the storage settings, or null for the SQLite defaults
+     */
+    CellBroadcastDatabaseHelper(Context context, String name,
+            boolean duplicateCheckDeletedRecords, StorageProfile storageProfile) {
+        super(context, name, null, DATABASE_VERSION);
+        mContext = context;
+        mDuplicateCheckDeletedRecords = duplicateCheckDeletedRecords;
+        mStorageProfile = storageProfile;
+        // Let the list loader and the duplicate check read while a new broadcast is written,
+        // and avoid a journal sync per inserted broadcast.
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setMaxSqlCacheSize(MAX_SQL_CACHE_SIZE);
+        if (mStorageProfile != null) {
+            mStorageProfile.apply(db);
+        }
+    }
+
+    /**
+     * Return the database for the history reads: the broadcast list, the search and the
+     * export. With write-ahead logging, a query outside a transaction runs on a pooled
+     * connection, which SQLiteDatabase opens without calling {@link #onConfigure}, so these
+     * reads go through a read-only database of a single connection, with the storage
+     * profile applied. It sees every committed write, like the pooled connections, and its
+     * queries run one at a time. Without a profile, or for an in-memory database, this is
+     * {@link #getReadableDatabase}.
+     */
+    public synchronized SQLiteDatabase getHistoryDatabase() {
+        if (mStorageProfile == null || getDatabaseName() == null) {
+            return getReadableDatabase();
+        }
+        if (mHistoryDatabase == null || !mHistoryDatabase.isOpen()) {
+            // creates or upgrades the database first
+            getWritableDatabase();
+            SQLiteDatabase db = SQLiteDatabase.openDatabase(
+                    mContext.getDatabasePath(getDatabaseName()).getPath(), null,
+                    SQLiteDatabase.OPEN_READONLY);
+            db.setMaxSqlCacheSize(MAX_SQL_CACHE_SIZE);
+            mStorageProfile.apply(db);
+            mHistoryDatabase = db;
+        }
+        return mHistoryDatabase;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (mHistoryDatabase != null) {
+            mHistoryDatabase.close();
+            mHistoryDatabase = null;
+        }
+        super.close();
+    }
+
+    /**
+     * Storage settings of the database, chosen by device RAM class from the
+     * {@code config_db_*} resources: memory-mapped reads and a larger page cache where memory
+     * allows, and the SQLite defaults otherwise.
+     * <p>
+     * These are connection settings. They are applied to the primary connection, which
+     * serves the writes, the upgrades and the maintenance job, and to the history connection
+     * (see {@link #getHistoryDatabase}).
+     */
+    static final class StorageProfile {
+        /** Bytes of the database file read through memory mapping, 0 for none. */
+        final long mmapSize;
+        /** Page cache size in KiB. */
+        final int cacheSizeKb;
+        /** Whether temporary tables and indices are kept in memory. */
+        final boolean tempStoreMemory;
+
+        StorageProfile(long mmapSize, int cacheSizeKb, boolean tempStoreMemory) {
+            this.mmapSize = mmapSize;
+            this.cacheSizeKb = cacheSizeKb;
+            this.tempStoreMemory = tempStoreMemory;
+        }
+
+        /** Return the profile for the RAM class of the device. */
+        static StorageProfile forDevice(Context context) {
+            Resources res = context.getResources();
+            boolean lowRam = ((ActivityManager) context.getSystemService(
+                    Context.ACTIVITY_SERVICE)).isLowRamDevice();
+            return new StorageProfile(1024L * res.getInteger(lowRam
+                            ? R.integer.config_db_mmap_size_kb_low_ram
+                            : R.integer.config_db_mmap_size_kb),
+                    res.getInteger(lowRam ? R.integer.config_db_cache_size_kb_low_ram
+                            : R.integer.config_db_cache_size_kb),
+                    res.getBoolean(lowRam ? R.bool.config_db_temp_store_memory_low_ram
+                            : R.bool.config_db_temp_store_memory));
+        }
+
+        void apply(SQLiteDatabase db) {
+            // returns the new size, so it can't go through execSQL()
+            DatabaseUtils.longForQuery(db, "PRAGMA mmap_size = " + mmapSize, null);
+            // a negative cache size is in KiB rather than pages
+            db.execSQL("PRAGMA cache_size = -" + cacheSizeKb);
+            db.execSQL("PRAGMA temp_store = " + (tempStoreMemory ? "MEMORY" : "DEFAULT"));
+        }
+
+        @Override
+        public String toString() {
+            return "StorageProfile{mmap=" + mmapSize + ", cache=" + cacheSizeKb + "KiB, temp="
+                    + (tempStoreMemory ? "memory" : "default") + "}";
+        }
     }
 
     @Override
@@ -84,7 +277,8 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
                 + Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE + " INTEGER,"
                 + Telephony.CellBroadcasts.CMAS_SEVERITY + " INTEGER,"
                 + Telephony.CellBroadcasts.CMAS_URGENCY + " INTEGER,"
-                + Telephony.CellBroadcasts.CMAS_CERTAINTY + " INTEGER);");
+                + Telephony.CellBroadcasts.CMAS_CERTAINTY + " INTEGER,"
+                + BODY_ID + " INTEGER);");
 
         if(mDuplicateCheckDeletedRecords) {
             //adds deleted index to judge whether the message is deleted
@@ -96,37 +290,346 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
                    + "_id"+" INTEGER PRIMARY KEY AUTOINCREMENT,"
                    + "name"+" TEXT,"
                    + "number"+" INTEGER,"
+                   + "number_end"+" INTEGER,"
                    + "enable"+" BOOLEAN);");
-        createDeliveryTimeIndex(db);
+        createQueryIndexes(db);
+        createChannelNumberIndex(db);
+        createBodiesTable(db);
+        createCountersTable(db);
     }
 
     private void createDeliveryTimeIndex(SQLiteDatabase db) {
         db.execSQL("CREATE INDEX IF NOT EXISTS deliveryTimeIndex ON " + TABLE_NAME
                 + " (" + Telephony.CellBroadcasts.DELIVERY_TIME + ");");
-        db.execSQL("CREATE INDEX IF NOT EXISTS deliveryTimeIndex ON " + CHANNEL_TABLE
-                + " (" + Telephony.CellBroadcasts.DELIVERY_TIME + ");");
     }
 
-    /** Columns to copy on database upgrade. */
-    private static final String[] COLUMNS_V1 = {
-            Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE,
-            Telephony.CellBroadcasts.SERIAL_NUMBER,
-            Telephony.CellBroadcasts.V1_MESSAGE_CODE,
-            Telephony.CellBroadcasts.V1_MESSAGE_IDENTIFIER,
-            Telephony.CellBroadcasts.LANGUAGE_CODE,
-            Telephony.CellBroadcasts.MESSAGE_BODY,
-            Telephony.CellBroadcasts.DELIVERY_TIME,
-            Telephony.CellBroadcasts.MESSAGE_READ,
+    /**
+     * Indices for the predicates of the app's queries:
+     * <ul>
+     * <li>delivery time first, for markBroadcastRead(), the 12-hour duplicate check and the
+     * retention job, followed by the columns the duplicate check projects</li>
+     * <li>CMAS message class, for the presidential alert pinning query</li>
+     * <li>deleted flag, for the list when deleted messages are kept for duplicate checks</li>
+     * </ul>
+     * The composite delivery time index makes the single column one redundant.
+     */
+    private void createQueryIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS deliveryTimeDuplicateIndex ON " + TABLE_NAME
+                + " (" + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                + Telephony.CellBroadcasts.SERVICE_CATEGORY + ","
+                + Telephony.CellBroadcasts.SERIAL_NUMBER + ","
+                + Telephony.CellBroadcasts.PLMN + ","
+                + Telephony.CellBroadcasts.LAC + ","
+                + Telephony.CellBroadcasts.CID + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS cmasClassDeliveryTimeIndex ON " + TABLE_NAME
+                + " (" + Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS + ","
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ");");
+        if (mDuplicateCheckDeletedRecords) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS deletedDeliveryTimeIndex ON " + TABLE_NAME
+                    + " (" + Telephony.CellBroadcasts.MESSAGE_DELETED + ","
+                    + Telephony.CellBroadcasts.DELIVERY_TIME + ");");
+        }
+        db.execSQL("DROP INDEX IF EXISTS deliveryTimeIndex;");
+    }
+
+    /**
+     * Drop the full-text index of version 16, which read the bodies from the broadcasts table.
+     */
+    private static void dropSearchTableV16(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + SEARCH_TABLE_V16 + "_insert;");
+        db.execSQL("DROP TRIGGER IF EXISTS " + SEARCH_TABLE_V16 + "_delete;");
+        db.execSQL("DROP TRIGGER IF EXISTS " + SEARCH_TABLE_V16 + "_update_before;");
+        db.execSQL("DROP TRIGGER IF EXISTS " + SEARCH_TABLE_V16 + "_update_after;");
+        db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE_V16 + ";");
+    }
+
+    /**
+     * The message bodies, each stored once however many broadcasts repeat it, and the view
+     * that joins them back to the broadcasts.
+     * <ul>
+     * <li>Triggers on the broadcasts table count the references to each body, and delete a
+     * body when its last broadcast is deleted.</li>
+     * <li>The full-text index reads the bodies from the bodies table, so a repeated body is
+     * indexed once; a body is never updated, only inserted and deleted.</li>
+     * <li>The view reads a body left in the broadcasts table if the broadcast has none in
+     * the bodies table.</li>
+     * </ul>
+     */
+    private void createBodiesTable(SQLiteDatabase db) {
+        String id = Telephony.CellBroadcasts._ID;
+        String body = Telephony.CellBroadcasts.MESSAGE_BODY;
+        db.execSQL("CREATE TABLE " + BODIES_TABLE + " ("
+                + id + " INTEGER PRIMARY KEY,"
+                + body + " TEXT NOT NULL,"
+                + BODY_REF_COUNT + " INTEGER NOT NULL DEFAULT 0);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS bodyIdIndex ON " + TABLE_NAME
+                + " (" + BODY_ID + ");");
+
+        String addRef = "UPDATE " + BODIES_TABLE + " SET " + BODY_REF_COUNT + " = "
+                + BODY_REF_COUNT + " + 1 WHERE " + id + " = new." + BODY_ID + ";";
+        String removeRef = "UPDATE " + BODIES_TABLE + " SET " + BODY_REF_COUNT + " = "
+                + BODY_REF_COUNT + " - 1 WHERE " + id + " = old." + BODY_ID + "; DELETE FROM "
+                + BODIES_TABLE + " WHERE " + id + " = old." + BODY_ID + " AND "
+                + BODY_REF_COUNT + " <= 0;";
+        db.execSQL("CREATE TRIGGER " + BODIES_TABLE + "_ref_insert AFTER INSERT ON "
+                + TABLE_NAME + " BEGIN " + addRef + " END;");
+        db.execSQL("CREATE TRIGGER " + BODIES_TABLE + "_ref_delete AFTER DELETE ON "
+                + TABLE_NAME + " BEGIN " + removeRef + " END;");
+        db.execSQL("CREATE TRIGGER " + BODIES_TABLE + "_ref_update AFTER UPDATE OF " + BODY_ID
+                + " ON " + TABLE_NAME + " WHEN old." + BODY_ID + " IS NOT new." + BODY_ID
+                + " BEGIN " + addRef + " " + removeRef + " END;");
+
+        db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE + " USING fts4(content=\""
+                + BODIES_TABLE + "\", " + body + ", tokenize=unicode61);");
+        db.execSQL("CREATE TRIGGER " + SEARCH_TABLE + "_insert AFTER INSERT ON " + BODIES_TABLE
+                + " BEGIN INSERT INTO " + SEARCH_TABLE + " (docid, " + body + ") VALUES (new."
+                + id + ", new." + body + "); END;");
+        db.execSQL("CREATE TRIGGER " + SEARCH_TABLE + "_delete BEFORE DELETE ON " + BODIES_TABLE
+                + " BEGIN DELETE FROM " + SEARCH_TABLE + " WHERE docid = old." + id + "; END;");
+
+        StringBuilder columns = new StringBuilder();
+        for (String column : VIEW_COLUMNS) {
+            columns.append(TABLE_NAME).append('.').append(column).append(',');
+        }
+        if (mDuplicateCheckDeletedRecords) {
+            columns.append(TABLE_NAME).append('.')
+                    .append(Telephony.CellBroadcasts.MESSAGE_DELETED).append(',');
+        }
+        db.execSQL("CREATE VIEW " + VIEW_NAME + " AS SELECT " + columns + "coalesce("
+                + BODIES_TABLE + "." + body + ", " + TABLE_NAME + "." + body + ") AS " + body
+                + " FROM " + TABLE_NAME + " LEFT JOIN " + BODIES_TABLE + " ON " + BODIES_TABLE
+                + "." + id + " = " + TABLE_NAME + "." + BODY_ID + ";");
+    }
+
+    /**
+     * Return the row ID of {@code body} in the bodies table, adding it if needed. The row ID
+     * is the fingerprint of the body, or the next free ID after it if another body has the
+     * same fingerprint. The caller should insert the broadcast referring to it in the same
+     * transaction.
+     */
+    static long getBodyId(SQLiteDatabase db, String body) {
+        long bodyId = fingerprint(body);
+        String[] args = new String[1];
+        while (true) {
+            args[0] = Long.toString(bodyId);
+            Cursor c = db.rawQuery("SELECT " + Telephony.CellBroadcasts.MESSAGE_BODY + " FROM "
+                    + BODIES_TABLE + " WHERE " + Telephony.CellBroadcasts._ID + " = ?", args);
+            try {
+                if (!c.moveToFirst()) {
+                    break;
+                }
+                if (body.equals(c.getString(0))) {
+                    return bodyId;
+                }
+            } finally {
+                c.close();
+            }
+            bodyId++;
+        }
+        ContentValues cv = new ContentValues(2);
+        cv.put(Telephony.CellBroadcasts._ID, bodyId);
+        cv.put(Telephony.CellBroadcasts.MESSAGE_BODY, body);
+        db.insertOrThrow(BODIES_TABLE, null, cv);
+        return bodyId;
+    }
+
+    /** Return the 64-bit FNV-1a hash of the characters of {@code body}. */
+    static long fingerprint(String body) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < body.length(); i++) {
+            hash ^= body.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Move the message bodies left in the broadcasts table to the bodies table, with one
+     * statement for the bodies and one for the broadcasts, so the upgrade doesn't run a query
+     * per broadcast. The fingerprint can't be computed in SQL, so the moved bodies get
+     * sequential row IDs: a broadcast received later with the same body as an upgraded one
+     * gets its own copy of the body.
+     */
+    private static void moveBodies(SQLiteDatabase db) {
+        String id = Telephony.CellBroadcasts._ID;
+        String body = Telephony.CellBroadcasts.MESSAGE_BODY;
+        // for the lookup of each broadcast's body, dropped once the bodies are moved
+        db.execSQL("CREATE INDEX " + BODIES_TABLE + "_move_index ON " + BODIES_TABLE + " ("
+                + body + ");");
+        db.execSQL("INSERT INTO " + BODIES_TABLE + " (" + body + ") SELECT DISTINCT " + body
+                + " FROM " + TABLE_NAME + " WHERE " + body + " IS NOT NULL AND " + body
+                + " NOT IN (SELECT " + body + " FROM " + BODIES_TABLE + ");");
+        // the reference counts are updated by the triggers
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + BODY_ID + " = (SELECT " + id + " FROM "
+                + BODIES_TABLE + " WHERE " + BODIES_TABLE + "." + body + " = " + TABLE_NAME
+                + "." + body + "), " + body + " = NULL WHERE " + body + " IS NOT NULL;");
+        db.execSQL("DROP INDEX " + BODIES_TABLE + "_move_index;");
+    }
+
+    /**
+     * Counters of the broadcasts per service category, kept up to date by triggers, so
+     * reading a count doesn't scan the broadcasts table. Broadcasts marked deleted are not
+     * counted.
+     */
+    private void createCountersTable(SQLiteDatabase db) {
+        String category = Telephony.CellBroadcasts.SERVICE_CATEGORY;
+        db.execSQL("CREATE TABLE " + COUNTERS_TABLE + " ("
+                + category + " INTEGER PRIMARY KEY,"
+                + COUNTER_TOTAL + " INTEGER NOT NULL DEFAULT 0,"
+                + COUNTER_UNREAD + " INTEGER NOT NULL DEFAULT 0);");
+
+        String addNew = "INSERT OR IGNORE INTO " + COUNTERS_TABLE + " (" + category
+                + ") VALUES (" + categoryOf("new") + "); " + updateCounters("new", "+");
+        String removeOld = updateCounters("old", "-");
+        String updatedColumns = Telephony.CellBroadcasts.MESSAGE_READ + "," + category;
+        if (mDuplicateCheckDeletedRecords) {
+            updatedColumns += "," + Telephony.CellBroadcasts.MESSAGE_DELETED;
+        }
+        db.execSQL("CREATE TRIGGER " + COUNTERS_TABLE + "_insert AFTER INSERT ON " + TABLE_NAME
+                + " BEGIN " + addNew + " END;");
+        db.execSQL("CREATE TRIGGER " + COUNTERS_TABLE + "_delete AFTER DELETE ON " + TABLE_NAME
+                + " BEGIN " + removeOld + " END;");
+        db.execSQL("CREATE TRIGGER " + COUNTERS_TABLE + "_update AFTER UPDATE OF "
+                + updatedColumns + " ON " + TABLE_NAME + " BEGIN " + removeOld + " " + addNew
+                + " END;");
+
+        // count the existing broadcasts, if any
+        db.execSQL("INSERT INTO " + COUNTERS_TABLE + " SELECT " + categoryOf(TABLE_NAME)
+                + ", SUM(" + isCounted(TABLE_NAME) + "), SUM(" + isUnread(TABLE_NAME)
+                + ") FROM " + TABLE_NAME + " GROUP BY 1;");
+    }
+
+    /** Return the statement adding ({@code op} "+") or removing ("-") a counted row. */
+    private String updateCounters(String row, String op) {
+        return "UPDATE " + COUNTERS_TABLE + " SET "
+                + COUNTER_TOTAL + " = " + COUNTER_TOTAL + op + isCounted(row) + ", "
+                + COUNTER_UNREAD + " = " + COUNTER_UNREAD + op + isUnread(row)
+                + " WHERE " + Telephony.CellBroadcasts.SERVICE_CATEGORY + " = "
+                + categoryOf(row) + ";";
+    }
+
+    private static String categoryOf(String row) {
+        // a null category would make the counters table assign a new key
+        return "ifnull(" + row + "." + Telephony.CellBroadcasts.SERVICE_CATEGORY + ", -1)";
+    }
+
+    private String isCounted(String row) {
+        return mDuplicateCheckDeletedRecords
+                ? "(" + row + "." + Telephony.CellBroadcasts.MESSAGE_DELETED + " = 0)" : "1";
+    }
+
+    private String isUnread(String row) {
+        return "(ifnull(" + row + "." + Telephony.CellBroadcasts.MESSAGE_READ + ", 0) = 0 AND "
+                + isCounted(row) + ")";
+    }
+
+    /**
+     * A channel number is stored once; inserting it again replaces the existing row.
+     */
+    private void createChannelNumberIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS channelNumberIndex ON " + CHANNEL_TABLE
+                + " (number);");
+    }
+
+    /**
+     * The broadcast types of the version 1 message identifiers. Each row holds a message
+     * identifier, followed by the ETWS warning type, CMAS message class, severity, urgency
+     * and certainty it maps to, or {@link #V1_UNKNOWN} values.
+     */
+    private static final int[][] V1_MESSAGE_IDENTIFIERS = {
+            { SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_WARNING,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE,
+                    SmsCbCmasInfo.CMAS_CLASS_UNKNOWN, SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN, SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
+            { SmsCbConstants.MESSAGE_ID_ETWS_TSUNAMI_WARNING,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_TSUNAMI,
+                    SmsCbCmasInfo.CMAS_CLASS_UNKNOWN, SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN, SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
+            { SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_AND_TSUNAMI_WARNING,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE_AND_TSUNAMI,
+                    SmsCbCmasInfo.CMAS_CLASS_UNKNOWN, SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN, SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
+            { SmsCbConstants.MESSAGE_ID_ETWS_TEST_MESSAGE,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_TEST_MESSAGE,
+                    SmsCbCmasInfo.CMAS_CLASS_UNKNOWN, SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN, SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
+            { SmsCbConstants.MESSAGE_ID_ETWS_OTHER_EMERGENCY_TYPE,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_OTHER_EMERGENCY,
+                    SmsCbCmasInfo.CMAS_CLASS_UNKNOWN, SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN, SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT,
+                    SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN, SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT, SmsCbCmasInfo.CMAS_SEVERITY_EXTREME,
+                    SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE, SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_LIKELY,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT, SmsCbCmasInfo.CMAS_SEVERITY_EXTREME,
+                    SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE, SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_OBSERVED,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT, SmsCbCmasInfo.CMAS_SEVERITY_EXTREME,
+                    SmsCbCmasInfo.CMAS_URGENCY_EXPECTED, SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_LIKELY,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT, SmsCbCmasInfo.CMAS_SEVERITY_EXTREME,
+                    SmsCbCmasInfo.CMAS_URGENCY_EXPECTED, SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_IMMEDIATE_OBSERVED,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT, SmsCbCmasInfo.CMAS_SEVERITY_SEVERE,
+                    SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE, SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_IMMEDIATE_LIKELY,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT, SmsCbCmasInfo.CMAS_SEVERITY_SEVERE,
+                    SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE, SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_OBSERVED,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT, SmsCbCmasInfo.CMAS_SEVERITY_SEVERE,
+                    SmsCbCmasInfo.CMAS_URGENCY_EXPECTED, SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_LIKELY,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT, SmsCbCmasInfo.CMAS_SEVERITY_SEVERE,
+                    SmsCbCmasInfo.CMAS_URGENCY_EXPECTED, SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_CHILD_ABDUCTION_EMERGENCY,
+                    SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN, SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST,
+                    SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN, SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXERCISE,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_CMAS_EXERCISE,
+                    SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN, SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
+            { SmsCbConstants.MESSAGE_ID_CMAS_ALERT_OPERATOR_DEFINED_USE,
+                    SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CLASS_OPERATOR_DEFINED_USE,
+                    SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN, SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN,
+                    SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN },
     };
 
-    private static final int COLUMN_V1_GEOGRAPHICAL_SCOPE   = 0;
-    private static final int COLUMN_V1_SERIAL_NUMBER        = 1;
-    private static final int COLUMN_V1_MESSAGE_CODE         = 2;
-    private static final int COLUMN_V1_MESSAGE_IDENTIFIER   = 3;
-    private static final int COLUMN_V1_LANGUAGE_CODE        = 4;
-    private static final int COLUMN_V1_MESSAGE_BODY         = 5;
-    private static final int COLUMN_V1_DELIVERY_TIME        = 6;
-    private static final int COLUMN_V1_MESSAGE_READ         = 7;
+    /** The values of {@link #V1_MESSAGE_IDENTIFIERS} for an unknown type. */
+    private static final int[] V1_UNKNOWN = { 0, SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN,
+            SmsCbCmasInfo.CMAS_CLASS_UNKNOWN, SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN,
+            SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN, SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN };
+
+    /** The columns set from {@link #V1_MESSAGE_IDENTIFIERS}, in the same order. */
+    private static final String[] V1_TYPE_COLUMNS = {
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.CMAS_SEVERITY,
+            Telephony.CellBroadcasts.CMAS_URGENCY,
+            Telephony.CellBroadcasts.CMAS_CERTAINTY,
+    };
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
@@ -135,6 +638,7 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
         }
         // always log database upgrade
         log("Upgrading DB from version " + oldVersion + " to " + newVersion);
+        long start = SystemClock.elapsedRealtime();
 
         // Upgrade from V1 to V10
         if (oldVersion == 1) {
@@ -147,24 +651,21 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
                 // Step 2: create new table and indices
                 onCreate(db);
 
-                // Step 3: copy each message into the new table
-                Cursor cursor = db.query(TEMP_TABLE_NAME, COLUMNS_V1, null, null, null, null,
-                        null);
-                try {
-                    while (cursor.moveToNext()) {
-                        upgradeMessageV1ToV2(db, cursor);
-                    }
-                } finally {
-                    cursor.close();
-                }
+                // Step 3: copy the messages into the new table
+                db.execSQL(buildUpgradeV1Statement());
 
-                // Step 4: drop the original table and commit transaction
+                // Step 4: share the message bodies like newly received broadcasts
+                moveBodies(db);
+
+                // Step 5: drop the original table and commit transaction
                 db.execSQL("DROP TABLE " + TEMP_TABLE_NAME);
                 db.setTransactionSuccessful();
             } finally {
                 db.endTransaction();
             }
-            oldVersion = 10;    // skip to version 10
+            // onCreate() already created the tables and indices of the current version.
+            log("Upgraded DB in " + (SystemClock.elapsedRealtime() - start) + " ms");
+            return;
         }
 
         // Note to OEMs: if you have customized the database schema since V1, you will need to
@@ -178,173 +679,106 @@ public class CellBroadcastDatabaseHelper extends SQLiteOpenHelper {
             createDeliveryTimeIndex(db);
             oldVersion++;
         }
-        if(mDuplicateCheckDeletedRecords) {
-            if (oldVersion == 11) {
+        if (oldVersion == 11) {
+            if (mDuplicateCheckDeletedRecords) {
                 db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + Telephony.CellBroadcasts.MESSAGE_DELETED + " INTEGER NOT NULL DEFAULT 0;");
-                oldVersion++;
             }
+            oldVersion++;
         }
-    }
 
-    /**
-     * Upgrades a single broadcast message from version 1 to version 2.
-     */
-    private static void upgradeMessageV1ToV2(SQLiteDatabase db, Cursor cursor) {
-        int geographicalScope = cursor.getInt(COLUMN_V1_GEOGRAPHICAL_SCOPE);
-        int updateNumber = cursor.getInt(COLUMN_V1_SERIAL_NUMBER);
-        int messageCode = cursor.getInt(COLUMN_V1_MESSAGE_CODE);
-        int messageId = cursor.getInt(COLUMN_V1_MESSAGE_IDENTIFIER);
-        String languageCode = cursor.getString(COLUMN_V1_LANGUAGE_CODE);
-        String messageBody = cursor.getString(COLUMN_V1_MESSAGE_BODY);
-        long deliveryTime = cursor.getLong(COLUMN_V1_DELIVERY_TIME);
-        boolean isRead = (cursor.getInt(COLUMN_V1_MESSAGE_READ) != 0);
-
-        int serialNumber = ((geographicalScope & 0x03) << 14)
-                | ((messageCode & 0x3ff) << 4) | (updateNumber & 0x0f);
-
-        ContentValues cv = new ContentValues(16);
-        cv.put(Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE, geographicalScope);
-        cv.put(Telephony.CellBroadcasts.SERIAL_NUMBER, serialNumber);
-        cv.put(Telephony.CellBroadcasts.SERVICE_CATEGORY, messageId);
-        cv.put(Telephony.CellBroadcasts.LANGUAGE_CODE, languageCode);
-        cv.put(Telephony.CellBroadcasts.MESSAGE_BODY, messageBody);
-        cv.put(Telephony.CellBroadcasts.DELIVERY_TIME, deliveryTime);
-        cv.put(Telephony.CellBroadcasts.MESSAGE_READ, isRead);
-        cv.put(Telephony.CellBroadcasts.MESSAGE_FORMAT, SmsCbMessage.MESSAGE_FORMAT_3GPP);
-
-        int etwsWarningType = SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN;
-        int cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_UNKNOWN;
-        int cmasSeverity = SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN;
-        int cmasUrgency = SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN;
-        int cmasCertainty = SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN;
-        switch (messageId) {
-            case SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_WARNING:
-                etwsWarningType = SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_ETWS_TSUNAMI_WARNING:
-                etwsWarningType = SmsCbEtwsInfo.ETWS_WARNING_TYPE_TSUNAMI;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_ETWS_EARTHQUAKE_AND_TSUNAMI_WARNING:
-                etwsWarningType = SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE_AND_TSUNAMI;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_ETWS_TEST_MESSAGE:
-                etwsWarningType = SmsCbEtwsInfo.ETWS_WARNING_TYPE_TEST_MESSAGE;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_ETWS_OTHER_EMERGENCY_TYPE:
-                etwsWarningType = SmsCbEtwsInfo.ETWS_WARNING_TYPE_OTHER_EMERGENCY;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_OBSERVED:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT;
-                cmasSeverity = SmsCbCmasInfo.CMAS_SEVERITY_EXTREME;
-                cmasUrgency = SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE;
-                cmasCertainty = SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_LIKELY:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT;
-                cmasSeverity = SmsCbCmasInfo.CMAS_SEVERITY_EXTREME;
-                cmasUrgency = SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE;
-                cmasCertainty = SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_OBSERVED:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT;
-                cmasSeverity = SmsCbCmasInfo.CMAS_SEVERITY_EXTREME;
-                cmasUrgency = SmsCbCmasInfo.CMAS_URGENCY_EXPECTED;
-                cmasCertainty = SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_EXPECTED_LIKELY:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT;
-                cmasSeverity = SmsCbCmasInfo.CMAS_SEVERITY_EXTREME;
-                cmasUrgency = SmsCbCmasInfo.CMAS_URGENCY_EXPECTED;
-                cmasCertainty = SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_IMMEDIATE_OBSERVED:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT;
-                cmasSeverity = SmsCbCmasInfo.CMAS_SEVERITY_SEVERE;
-                cmasUrgency = SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE;
-                cmasCertainty = SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_IMMEDIATE_LIKELY:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT;
-                cmasSeverity = SmsCbCmasInfo.CMAS_SEVERITY_SEVERE;
-                cmasUrgency = SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE;
-                cmasCertainty = SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_OBSERVED:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT;
-                cmasSeverity = SmsCbCmasInfo.CMAS_SEVERITY_SEVERE;
-                cmasUrgency = SmsCbCmasInfo.CMAS_URGENCY_EXPECTED;
-                cmasCertainty = SmsCbCmasInfo.CMAS_CERTAINTY_OBSERVED;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_SEVERE_EXPECTED_LIKELY:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_SEVERE_THREAT;
-                cmasSeverity = SmsCbCmasInfo.CMAS_SEVERITY_SEVERE;
-                cmasUrgency = SmsCbCmasInfo.CMAS_URGENCY_EXPECTED;
-                cmasCertainty = SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_CHILD_ABDUCTION_EMERGENCY:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_CHILD_ABDUCTION_EMERGENCY;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_REQUIRED_MONTHLY_TEST:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_REQUIRED_MONTHLY_TEST;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXERCISE:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_CMAS_EXERCISE;
-                break;
-
-            case SmsCbConstants.MESSAGE_ID_CMAS_ALERT_OPERATOR_DEFINED_USE:
-                cmasMessageClass = SmsCbCmasInfo.CMAS_CLASS_OPERATOR_DEFINED_USE;
-                break;
+        if (oldVersion == 12) {
+            // existing rows hold a single channel each
+            db.execSQL("ALTER TABLE " + CHANNEL_TABLE + " ADD COLUMN number_end INTEGER;");
+            db.execSQL("UPDATE " + CHANNEL_TABLE + " SET number_end = number;");
+            oldVersion++;
         }
 
-        if (etwsWarningType != SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN
-                || cmasMessageClass != SmsCbCmasInfo.CMAS_CLASS_UNKNOWN) {
-            cv.put(Telephony.CellBroadcasts.MESSAGE_PRIORITY,
-                    SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY);
-        } else {
-            cv.put(Telephony.CellBroadcasts.MESSAGE_PRIORITY,
-                    SmsCbMessage.MESSAGE_PRIORITY_NORMAL);
+        if (oldVersion == 13) {
+            // keep the most recently added row of each channel number
+            db.execSQL("DELETE FROM " + CHANNEL_TABLE + " WHERE _id NOT IN (SELECT MAX(_id) FROM "
+                    + CHANNEL_TABLE + " GROUP BY number);");
+            createChannelNumberIndex(db);
+            oldVersion++;
         }
 
-        if (etwsWarningType != SmsCbEtwsInfo.ETWS_WARNING_TYPE_UNKNOWN) {
-            cv.put(Telephony.CellBroadcasts.ETWS_WARNING_TYPE, etwsWarningType);
+        if (oldVersion == 14) {
+            createQueryIndexes(db);
+            oldVersion++;
         }
-
-        if (cmasMessageClass != SmsCbCmasInfo.CMAS_CLASS_UNKNOWN) {
-            cv.put(Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS, cmasMessageClass);
+        if (oldVersion == 15) {
+            // the full-text index is created with the bodies table in version 18
+            oldVersion++;
         }
-
-        if (cmasSeverity != SmsCbCmasInfo.CMAS_SEVERITY_UNKNOWN) {
-            cv.put(Telephony.CellBroadcasts.CMAS_SEVERITY, cmasSeverity);
+        if (oldVersion == 16) {
+            createCountersTable(db);
+            oldVersion++;
         }
-
-        if (cmasUrgency != SmsCbCmasInfo.CMAS_URGENCY_UNKNOWN) {
-            cv.put(Telephony.CellBroadcasts.CMAS_URGENCY, cmasUrgency);
+        if (oldVersion == 17) {
+            // the bodies table has its own full-text index
+            dropSearchTableV16(db);
+            db.execSQL("ALTER TABLE " + TABLE_NAME + " ADD COLUMN " + BODY_ID + " INTEGER;");
+            createBodiesTable(db);
+            moveBodies(db);
+            oldVersion++;
         }
+        log("Upgraded DB in " + (SystemClock.elapsedRealtime() - start) + " ms");
+    }
 
-        if (cmasCertainty != SmsCbCmasInfo.CMAS_CERTAINTY_UNKNOWN) {
-            cv.put(Telephony.CellBroadcasts.CMAS_CERTAINTY, cmasCertainty);
+    /**
+     * Return the statement copying the version 1 broadcasts to the new table in one pass.
+     * The serial number is rebuilt from the scope, message code and update number, and the
+     * broadcast types come from the message identifier; null numbers are read as 0.
+     */
+    private static String buildUpgradeV1Statement() {
+        String messageId = "ifnull(" + Telephony.CellBroadcasts.V1_MESSAGE_IDENTIFIER + ", 0)";
+        String scope = "ifnull(" + Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE + ", 0)";
+
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        columns.append(Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE);
+        values.append(scope);
+        columns.append(',').append(Telephony.CellBroadcasts.SERIAL_NUMBER);
+        values.append(",((").append(scope).append(" & 3) << 14) | ((ifnull(")
+                .append(Telephony.CellBroadcasts.V1_MESSAGE_CODE).append(", 0) & 1023) << 4)")
+                .append(" | (ifnull(").append(Telephony.CellBroadcasts.SERIAL_NUMBER)
+                .append(", 0) & 15)");
+        columns.append(',').append(Telephony.CellBroadcasts.LANGUAGE_CODE);
+        values.append(',').append(Telephony.CellBroadcasts.LANGUAGE_CODE);
+        columns.append(',').append(Telephony.CellBroadcasts.MESSAGE_BODY);
+        values.append(',').append(Telephony.CellBroadcasts.MESSAGE_BODY);
+        columns.append(',').append(Telephony.CellBroadcasts.DELIVERY_TIME);
+        values.append(",ifnull(").append(Telephony.CellBroadcasts.DELIVERY_TIME).append(", 0)");
+        columns.append(',').append(Telephony.CellBroadcasts.MESSAGE_READ);
+        values.append(",ifnull(").append(Telephony.CellBroadcasts.MESSAGE_READ)
+                .append(", 0) != 0");
+        columns.append(',').append(Telephony.CellBroadcasts.MESSAGE_FORMAT);
+        values.append(',').append(SmsCbMessage.MESSAGE_FORMAT_3GPP);
+
+        // the message identifiers of emergency broadcasts, and the type columns
+        StringBuilder emergencyIds = new StringBuilder();
+        for (int[] type : V1_MESSAGE_IDENTIFIERS) {
+            emergencyIds.append(emergencyIds.length() == 0 ? "" : ",").append(type[0]);
+        }
+        columns.append(',').append(Telephony.CellBroadcasts.MESSAGE_PRIORITY);
+        values.append(",CASE WHEN ").append(messageId).append(" IN (").append(emergencyIds)
+                .append(") THEN ").append(SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY)
+                .append(" ELSE ").append(SmsCbMessage.MESSAGE_PRIORITY_NORMAL).append(" END");
+        columns.append(',').append(V1_TYPE_COLUMNS[0]);
+        values.append(',').append(messageId);
+        for (int i = 1; i < V1_TYPE_COLUMNS.length; i++) {
+            // unknown values are left null
+            StringBuilder cases = new StringBuilder();
+            for (int[] type : V1_MESSAGE_IDENTIFIERS) {
+                if (type[i] != V1_UNKNOWN[i]) {
+                    cases.append(" WHEN ").append(type[0]).append(" THEN ").append(type[i]);
+                }
+            }
+            columns.append(',').append(V1_TYPE_COLUMNS[i]);
+            values.append(",CASE ").append(messageId).append(cases).append(" END");
         }
 
-        db.insert(TABLE_NAME, null, cv);
+        return "INSERT INTO " + TABLE_NAME + " (" + columns + ") SELECT " + values + " FROM "
+                + TEMP_TABLE_NAME + " ORDER BY " + Telephony.CellBroadcasts._ID;
     }
 
     private static void log(String msg) {
@@ -23,6 +23,8 @@ import android.app.ListFragment;
 import android.app.LoaderManager;
 import android.app.NotificationManager;
 import android.content.Context;
+import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnClickListener;
@@ -30,10 +32,12 @@ import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.UserHandle;
 import android.provider.Telephony;
 import android.telephony.CellBroadcastMessage;
+import android.text.TextUtils;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -43,8 +47,10 @@ import android.view.MenuItem;
 import android.view.View;
 import android.view.View.OnCreateContextMenuListener;
 import android.view.ViewGroup;
+import android.widget.AbsListView;
 import android.widget.CursorAdapter;
 import android.widget.ListView;
+import android.widget.SearchView;
 
 import java.util.ArrayList;
 
@@ -81,14 +87,27 @@ public class CellBroadcastListActivity extends Activity {
         // IDs of the main menu items.
         private static final int MENU_DELETE_ALL           = 3;
         private static final int MENU_PREFERENCES          = 4;
+        private static final int MENU_SEARCH               = 5;
 
         // IDs of the context menu items (package local, accessed from inner DeleteThreadListener).
         static final int MENU_DELETE               = 0;
         static final int MENU_VIEW_DETAILS         = 1;
 
+        // Load the next or previous page when this many rows are left beyond the visible ones.
+        private static final int PREFETCH_ROWS = 10;
+
+        // Maximum number of search results shown.
+        private static final int SEARCH_RESULT_LIMIT = 200;
+
         // This is the Adapter being used to display the list's data.
         CursorAdapter mAdapter;
 
+        // The text searched for, or null to list all broadcasts.
+        private String mSearchText;
+
+        // The loader of the cursor shown.
+        private Loader<Cursor> mShownLoader;
+
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
@@ -110,6 +129,7 @@ public class CellBroadcastListActivity extends Activity {
             // Set context menu for long-press.
             ListView listView = getListView();
             listView.setOnCreateContextMenuListener(mOnCreateContextMenuListener);
+            listView.setOnScrollListener(mOnScrollListener);
 
             // Create a cursor adapter to display the loaded data.
             mAdapter = new CellBroadcastCursorAdapter(getActivity(), null);
@@ -122,6 +142,13 @@ public class CellBroadcastListActivity extends Activity {
 
         @Override
         public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
+            SearchView searchView = new SearchView(getActivity());
+            searchView.setOnQueryTextListener(mOnQueryTextListener);
+            menu.add(0, MENU_SEARCH, 0, R.string.menu_search)
+                    .setIcon(android.R.drawable.ic_menu_search)
+                    .setActionView(searchView)
+                    .setShowAsAction(MenuItem.SHOW_AS_ACTION_IF_ROOM
+                            | MenuItem.SHOW_AS_ACTION_COLLAPSE_ACTION_VIEW);
             menu.add(0, MENU_DELETE_ALL, 0, R.string.menu_delete_all).setIcon(
                     android.R.drawable.ic_menu_delete);
             if (UserHandle.myUserId() == UserHandle.USER_OWNER) {
@@ -138,7 +165,7 @@ public class CellBroadcastListActivity extends Activity {
         @Override
         public void onListItemClick(ListView l, View v, int position, long id) {
             CellBroadcastListItem cbli = (CellBroadcastListItem) v;
-            showDialogAndMarkRead(cbli.getMessage());
+            new LoadMessageTask(false).execute(cbli.getMessageId());
         }
 
         @Override
@@ -147,22 +174,108 @@ public class CellBroadcastListActivity extends Activity {
             if(getResources().getBoolean(R.bool.config_regional_wea_show_presidential_alert)) {
                 listUri = CellBroadcastContentProvider.PRESIDENT_PIN_URI;
             }
+            String selection = mDuplicateCheckDeletedRecords
+                    ? Telephony.CellBroadcasts.MESSAGE_DELETED + "=0" : null;
+            int updateThrottle =
+                    getResources().getInteger(R.integer.config_list_refresh_throttle_ms);
+            if (!TextUtils.isEmpty(mSearchText)) {
+                // best matches first, with the text around them as the preview
+                CursorLoader loader = new CursorLoader(getActivity(),
+                        CellBroadcastContentProvider.getSearchUri(mSearchText,
+                                SEARCH_RESULT_LIMIT),
+                        CellBroadcastCursorAdapter.SEARCH_COLUMNS, selection, null, null);
+                loader.setUpdateThrottle(updateThrottle);
+                return loader;
+            }
+            if (listUri == CellBroadcastContentProvider.CONTENT_URI) {
+                return new CellBroadcastPagingLoader(getActivity(),
+                        CellBroadcastCursorAdapter.SUMMARY_COLUMNS, selection, null,
+                        mDuplicateCheckDeletedRecords);
+            }
+            CursorLoader loader;
             if(mDuplicateCheckDeletedRecords) {
-               return new CursorLoader(getActivity(), listUri,
-                   Telephony.CellBroadcasts.QUERY_COLUMNS, Telephony.CellBroadcasts.MESSAGE_DELETED + "=0", null,
+               loader = new CursorLoader(getActivity(), listUri,
+                   CellBroadcastCursorAdapter.SUMMARY_COLUMNS, selection, null,
                    Telephony.CellBroadcasts.DELIVERY_TIME + " ASC");
+            } else {
+                loader = new CursorLoader(getActivity(), listUri,
+                        CellBroadcastCursorAdapter.SUMMARY_COLUMNS, null, null,
+                        Telephony.CellBroadcasts.DELIVERY_TIME + " DESC");
             }
-            return new CursorLoader(getActivity(), listUri,
-                    Telephony.CellBroadcasts.QUERY_COLUMNS, null, null,
-                    Telephony.CellBroadcasts.DELIVERY_TIME + " DESC");
+            loader.setUpdateThrottle(updateThrottle);
+            return loader;
         }
 
+        private final SearchView.OnQueryTextListener mOnQueryTextListener =
+                new SearchView.OnQueryTextListener() {
+                    @Override
+                    public boolean onQueryTextSubmit(String query) {
+                        // the results are already shown while typing
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onQueryTextChange(String newText) {
+                        String searchText = newText.trim();
+                        if (!searchText.equals(mSearchText == null ? "" : mSearchText)) {
+                            mSearchText = searchText;
+                            getLoaderManager().restartLoader(0, null,
+                                    CursorLoaderListFragment.this);
+                        }
+                        return true;
+                    }
+                };
+
+        private final AbsListView.OnScrollListener mOnScrollListener =
+                new AbsListView.OnScrollListener() {
+                    @Override
+                    public void onScrollStateChanged(AbsListView view, int scrollState) {
+                    }
+
+                    @Override
+                    public void onScroll(AbsListView view, int firstVisibleItem,
+                            int visibleItemCount, int totalItemCount) {
+                        Loader<Cursor> loader = getLoaderManager().getLoader(0);
+                        if (totalItemCount == 0
+                                || !(loader instanceof CellBroadcastPagingLoader)) {
+                            return;
+                        }
+                        CellBroadcastPagingLoader pagingLoader =
+                                (CellBroadcastPagingLoader) loader;
+                        if (firstVisibleItem + visibleItemCount
+                                >= totalItemCount - PREFETCH_ROWS) {
+                            pagingLoader.loadNextPage();
+                        } else if (firstVisibleItem < PREFETCH_ROWS) {
+                            pagingLoader.loadPreviousPage();
+                        }
+                    }
+                };
+
         @Override
         public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
             // Swap the new cursor in.  (The framework will take care of closing the
             // old cursor once we return.)
+            boolean wasEmpty = mAdapter.isEmpty();
+            if (loader != mShownLoader) {
+                // the list and the search results show different text for the same rows
+                ((CellBroadcastCursorAdapter) mAdapter).invalidateContent();
+                mShownLoader = loader;
+            }
+            // keep the visible rows in place when the paging window slides
+            int shift = CellBroadcastPagingLoader.getPositionShift(data);
+            ListView listView = getListView();
+            int firstVisible = listView.getFirstVisiblePosition();
+            View firstView = listView.getChildAt(0);
+            boolean keepPosition = shift != 0 && mAdapter.getCursor() != null;
             mAdapter.swapCursor(data);
-            getActivity().invalidateOptionsMenu();
+            if (keepPosition) {
+                listView.setSelectionFromTop(Math.max(0, firstVisible + shift),
+                        firstView != null ? firstView.getTop() : 0);
+            }
+            // the menu only depends on whether the list is empty
+            if (mAdapter.isEmpty() != wasEmpty) {
+                getActivity().invalidateOptionsMenu();
+            }
         }
 
         @Override
@@ -192,6 +305,49 @@ public class CellBroadcastListActivity extends Activity {
                     .show();
         }
 
+        /**
+         * Loads a broadcast by row ID in the background, since the list only holds the
+         * summary columns, then shows it in the alert dialog or the details dialog.
+         */
+        private class LoadMessageTask extends AsyncTask<Long, Void, CellBroadcastMessage> {
+            private final ContentResolver mResolver;
+            private final boolean mShowDetails;
+
+            LoadMessageTask(boolean showDetails) {
+                mResolver = getActivity().getContentResolver();
+                mShowDetails = showDetails;
+            }
+
+            @Override
+            protected CellBroadcastMessage doInBackground(Long... rowIds) {
+                Uri uri = ContentUris.withAppendedId(CellBroadcastContentProvider.CONTENT_URI,
+                        rowIds[0]);
+                Cursor c = mResolver.query(uri, Telephony.CellBroadcasts.QUERY_COLUMNS, null,
+                        null, null);
+                if (c == null) {
+                    return null;
+                }
+                try {
+                    return c.moveToFirst() ? CellBroadcastMessage.createFromCursor(c) : null;
+                } finally {
+                    c.close();
+                }
+            }
+
+            @Override
+            protected void onPostExecute(CellBroadcastMessage message) {
+                // the broadcast may have been deleted, or the list closed, in the meantime
+                if (message == null || !isAdded()) {
+                    return;
+                }
+                if (mShowDetails) {
+                    showBroadcastDetails(message);
+                } else {
+                    showDialogAndMarkRead(message);
+                }
+            }
+        }
+
         private final OnCreateContextMenuListener mOnCreateContextMenuListener =
                 new OnCreateContextMenuListener() {
                     @Override
@@ -214,7 +370,8 @@ public class CellBroadcastListActivity extends Activity {
                         break;
 
                     case MENU_VIEW_DETAILS:
-                        showBroadcastDetails(CellBroadcastMessage.createFromCursor(cursor));
+                        new LoadMessageTask(true).execute(cursor.getLong(
+                                cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID)));
                         break;
 
                     default:
@@ -281,8 +438,7 @@ public class CellBroadcastListActivity extends Activity {
             @Override
             public void onClick(DialogInterface dialog, int whichButton) {
                 // delete from database on a background thread
-                new CellBroadcastContentProvider.AsyncCellBroadcastTask(
-                        getActivity().getContentResolver()).execute(
+                CellBroadcastOperationQueue.getInstance(getActivity()).submit(
                         new CellBroadcastContentProvider.CellBroadcastOperation() {
                             @Override
                             public boolean execute(CellBroadcastContentProvider provider) {
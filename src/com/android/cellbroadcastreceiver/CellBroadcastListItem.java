@@ -17,23 +17,29 @@
 package com.android.cellbroadcastreceiver;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
-import android.telephony.CellBroadcastMessage;
-import android.text.Spannable;
-import android.text.SpannableStringBuilder;
-import android.text.style.StyleSpan;
+import android.telephony.SmsCbMessage;
+import android.text.format.DateUtils;
 import android.util.AttributeSet;
 import android.view.accessibility.AccessibilityEvent;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
 
 /**
- * This class manages the list item view for a single alert.
+ * This class manages the list item view for a single alert. It keeps what it shows, so
+ * binding the same broadcast again only updates what changed.
  */
 public class CellBroadcastListItem extends RelativeLayout {
 
-    private CellBroadcastMessage mCbMessage;
+    /** No broadcast bound yet. */
+    private static final long NO_MESSAGE = -1;
+
+    private long mMessageId = NO_MESSAGE;
+    private int mContentGeneration;
+    private long mDeliveryTime;
+    private boolean mRead;
 
     private TextView mChannelView;
     private TextView mMessageView;
@@ -43,8 +49,9 @@ public class CellBroadcastListItem extends RelativeLayout {
         super(context, attrs);
     }
 
-    CellBroadcastMessage getMessage() {
-        return mCbMessage;
+    /** Returns the row ID of the bound broadcast. */
+    long getMessageId() {
+        return mMessageId;
     }
 
     @Override
@@ -57,40 +64,57 @@ public class CellBroadcastListItem extends RelativeLayout {
     }
 
     /**
-     * Only used for header binding.
-     * @param message the message contents to bind
+     * Bind the current row of a cursor with {@link CellBroadcastCursorAdapter#SUMMARY_COLUMNS}.
+     * @param cursor the cursor, moved to the row to bind
+     * @param columns the column indexes of {@code cursor}
+     * @param contentGeneration changes when the content of a row may differ from before
+     * @param readBackground the background of read broadcasts
+     * @param unreadBackground the background of unread broadcasts
      */
-    public void bind(CellBroadcastMessage message) {
-        mCbMessage = message;
-
-        Drawable background = message.isRead() ?
-                getResources().getDrawable(R.drawable.list_item_background_read) :
-                getResources().getDrawable(R.drawable.list_item_background_unread);
-
-        setBackground(background);
+    void bind(Cursor cursor, CellBroadcastCursorAdapter.SummaryColumns columns,
+            int contentGeneration, Drawable.ConstantState readBackground,
+            Drawable.ConstantState unreadBackground) {
+        long messageId = cursor.getLong(columns.id);
+        boolean read = cursor.getInt(columns.read) != 0;
+        if (messageId != mMessageId || contentGeneration != mContentGeneration) {
+            // a broadcast only changes its read state, so the rest is set once per broadcast
+            mMessageId = messageId;
+            mContentGeneration = contentGeneration;
+            mDeliveryTime = cursor.getLong(columns.deliveryTime);
+            mChannelView.setText(getTitleResource(cursor, columns));
+            mDateView.setText(DateUtils.formatDateTime(getContext(), mDeliveryTime,
+                    DateUtils.FORMAT_NO_NOON_MIDNIGHT | DateUtils.FORMAT_SHOW_TIME
+                    | DateUtils.FORMAT_ABBREV_ALL | DateUtils.FORMAT_SHOW_DATE
+                    | DateUtils.FORMAT_CAP_AMPM));
+            mMessageView.setText(cursor.getString(columns.body));
+        } else if (read == mRead) {
+            return;
+        }
 
-        mChannelView.setText(CellBroadcastResources.getDialogTitleResource(message));
-        mDateView.setText(message.getDateString(getContext()));
-        mMessageView.setText(formatMessage(message));
+        mRead = read;
+        setBackground((read ? readBackground : unreadBackground).newDrawable(getResources()));
+        // Unread messages are shown in bold
+        mMessageView.setTypeface(null, read ? Typeface.NORMAL : Typeface.BOLD);
     }
 
-    private static CharSequence formatMessage(CellBroadcastMessage message) {
-        String body = message.getMessageBody();
-
-        SpannableStringBuilder buf = new SpannableStringBuilder(body);
-
-        // Unread messages are shown in bold
-        if (!message.isRead()) {
-            buf.setSpan(new StyleSpan(Typeface.BOLD), 0, buf.length(),
-                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-        return buf;
+    private static int getTitleResource(Cursor cursor,
+            CellBroadcastCursorAdapter.SummaryColumns columns) {
+        boolean emergency = cursor.getInt(columns.priority)
+                == SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY;
+        // the subscription is not stored, as with CellBroadcastMessage.createFromCursor()
+        return CellBroadcastResources.getDialogTitleResource(
+                cursor.isNull(columns.etwsWarningType)
+                        ? null : Integer.valueOf(cursor.getInt(columns.etwsWarningType)),
+                cursor.isNull(columns.cmasMessageClass)
+                        ? null : Integer.valueOf(cursor.getInt(columns.cmasMessageClass)),
+                emergency, cursor.getInt(columns.serviceCategory), 0);
     }
 
     @Override
     public boolean dispatchPopulateAccessibilityEvent(AccessibilityEvent event) {
         // Speak the date first, then channel name, then message body
-        event.getText().add(mCbMessage.getSpokenDateString(getContext()));
+        event.getText().add(DateUtils.formatDateTime(getContext(), mDeliveryTime,
+                DateUtils.FORMAT_SHOW_TIME | DateUtils.FORMAT_SHOW_DATE));
         mChannelView.dispatchPopulateAccessibilityEvent(event);
         mMessageView.dispatchPopulateAccessibilityEvent(event);
         return true;
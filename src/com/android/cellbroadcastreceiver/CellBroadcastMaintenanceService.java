@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.AsyncTask;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+/**
+ * Idle-time maintenance of the broadcast database. Deletes the broadcasts the user deleted
+ * that are no longer needed for the duplicate check, enforces the retention policy from
+ * config.xml (maximum age, maximum number of broadcasts, per-category quotas) in small
+ * batches, then releases the freed pages so the database file shrinks.
+ */
+public class CellBroadcastMaintenanceService extends JobService {
+    private static final String TAG = "CellBroadcastMaintenanceService";
+    private static final boolean DBG = false;
+
+    /** Job ID of the periodic maintenance job. */
+    static final int JOB_ID = 1;
+
+    private static final long MAINTENANCE_INTERVAL = 24 * 60 * 60 * 1000;
+    private static final long DAY_IN_MILLIS = 24 * 60 * 60 * 1000;
+
+    /** Time a broadcast marked deleted is kept for the duplicate check. */
+    private static final long MARKED_DELETED_RETENTION = 12 * 60 * 60 * 1000;
+
+    private MaintenanceTask mTask;
+
+    /**
+     * Schedule the maintenance job, unless it is already scheduled.
+     */
+    static void schedule(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, CellBroadcastMaintenanceService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(MAINTENANCE_INTERVAL)
+                .setPersisted(true)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        if (DBG) log("onStartJob");
+        mTask = new MaintenanceTask(params);
+        // don't queue behind (or hold up) the provider operations on the serial executor
+        mTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (DBG) log("onStopJob");
+        if (mTask != null) {
+            mTask.cancel(false);
+            mTask = null;
+        }
+        // the next batch runs at the next idle window
+        return true;
+    }
+
+    /**
+     * Retention limits read from resources. A limit of 0 is not enforced.
+     */
+    static class RetentionPolicy {
+        final int maxRows;
+        final long maxAge;
+        final int batchSize;
+        /** Whether deleted broadcasts are only marked, and must be purged here. */
+        final boolean purgeMarkedDeleted;
+        /** Maximum number of broadcasts kept, by service category. */
+        final SparseIntArray categoryQuotas = new SparseIntArray();
+
+        RetentionPolicy(Resources res) {
+            maxRows = res.getInteger(R.integer.config_retention_max_rows);
+            maxAge = res.getInteger(R.integer.config_retention_max_age_days) * DAY_IN_MILLIS;
+            batchSize = Math.max(1, res.getInteger(R.integer.config_retention_batch_size));
+            purgeMarkedDeleted = res.getBoolean(
+                    R.bool.config_regional_wea_duplicated_check_deleted_records);
+            for (String quota : res.getStringArray(R.array.config_retention_category_quotas)) {
+                String[] parts = quota.split(":");
+                try {
+                    int max = Integer.parseInt(parts[1].trim());
+                    if (max > 0) {
+                        categoryQuotas.put(Integer.parseInt(parts[0].trim()), max);
+                    }
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    Log.e(TAG, "invalid category quota: " + quota);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the retention steps one batch at a time until nothing is left to do or the job
+     * is stopped.
+     */
+    private class MaintenanceTask extends AsyncTask<Void, Void, Void> {
+        private final JobParameters mParams;
+
+        MaintenanceTask(JobParameters params) {
+            mParams = params;
+        }
+
+        @Override
+        protected Void doInBackground(Void... none) {
+            ContentResolver resolver = getContentResolver();
+            ContentProviderClient cpc = resolver.acquireContentProviderClient(
+                    CellBroadcastContentProvider.CB_AUTHORITY);
+            if (cpc == null) {
+                Log.e(TAG, "acquireContentProviderClient() returned null");
+                return null;
+            }
+            try {
+                CellBroadcastContentProvider provider = (CellBroadcastContentProvider)
+                        cpc.getLocalContentProvider();
+                if (provider == null) {
+                    Log.e(TAG, "getLocalContentProvider() returned null");
+                    return null;
+                }
+                RetentionPolicy policy = new RetentionPolicy(getResources());
+                purgeMarkedDeleted(provider, policy);
+                int deleted = enforceRetention(provider, policy);
+                if (deleted > 0) {
+                    resolver.notifyChange(CellBroadcastContentProvider.CONTENT_URI, null,
+                            false);
+                }
+                compact(provider, policy.batchSize);
+            } finally {
+                cpc.release();
+            }
+            return null;
+        }
+
+        private void purgeMarkedDeleted(CellBroadcastContentProvider provider,
+                RetentionPolicy policy) {
+            if (!policy.purgeMarkedDeleted) {
+                return;
+            }
+            long cutoff = System.currentTimeMillis() - MARKED_DELETED_RETENTION;
+            int total = 0;
+            int count;
+            do {
+                count = provider.deleteMarkedBroadcasts(cutoff, policy.batchSize);
+                total += count;
+            } while (count == policy.batchSize && !isCancelled());
+            if (DBG) log("purged " + total + " deleted broadcasts");
+        }
+
+        private int enforceRetention(CellBroadcastContentProvider provider,
+                RetentionPolicy policy) {
+            int total = 0;
+            int count;
+            if (policy.maxAge > 0) {
+                long cutoff = System.currentTimeMillis() - policy.maxAge;
+                do {
+                    count = provider.deleteBroadcastsOlderThan(cutoff, policy.batchSize);
+                    total += count;
+                } while (count == policy.batchSize && !isCancelled());
+            }
+            for (int i = 0; i < policy.categoryQuotas.size() && !isCancelled(); i++) {
+                do {
+                    count = provider.deleteBroadcastsOverLimit(policy.categoryQuotas.keyAt(i),
+                            policy.categoryQuotas.valueAt(i), policy.batchSize);
+                    total += count;
+                } while (count == policy.batchSize && !isCancelled());
+            }
+            if (policy.maxRows > 0) {
+                do {
+                    count = provider.deleteBroadcastsOverLimit(policy.maxRows,
+                            policy.batchSize);
+                    total += count;
+                } while (count == policy.batchSize && !isCancelled());
+            }
+            if (DBG) log("retention removed " + total + " broadcasts");
+            return total;
+        }
+
+        private void compact(CellBroadcastContentProvider provider, int pagesPerStep) {
+            while (!isCancelled() && provider.compactDatabase(pagesPerStep)) {
+                // release the next batch of free pages
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            jobFinished(mParams, false);
+        }
+    }
+
+    private static void log(String msg) {
+        Log.d(TAG, msg);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs {@link CellBroadcastContentProvider.CellBroadcastOperation}s on a background thread,
+ * in submission order, and reports each result on the looper chosen by the caller.
+ * <p>
+ * Operations submitted during the same pass of the main looper, such as the broadcasts of
+ * an alert flood, run as one batch: one background task, one provider lookup, and one change
+ * notification per changed URI once the batch is done. The result of each operation is
+ * reported as soon as it completes, so a new alert is not held back by the rest of its batch.
+ */
+class CellBroadcastOperationQueue {
+    private static final String TAG = "CellBroadcastOperationQueue";
+    private static final boolean DBG = false;
+
+    /** Receives the result of an operation. */
+    interface Callback {
+        /**
+         * @param changed the result of the operation, or false if the provider was not
+         *  available or the operation threw an exception
+         * @param queueMillis time from submission to the start of the operation
+         * @param executeMillis time taken by the operation
+         */
+        void onOperationComplete(boolean changed, long queueMillis, long executeMillis);
+    }
+
+    private static CellBroadcastOperationQueue sInstance;
+
+    private final ContentResolver mContentResolver;
+    private final Handler mBatchHandler;
+    private final Executor mExecutor;
+
+    /** Operations submitted since the last batch; guarded by itself. */
+    private final ArrayList<Entry> mPending = new ArrayList<Entry>();
+
+    private final Runnable mStartBatch = new Runnable() {
+        @Override
+        public void run() {
+            final ArrayList<Entry> batch;
+            synchronized (mPending) {
+                batch = new ArrayList<Entry>(mPending);
+                mPending.clear();
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runBatch(batch);
+                }
+            });
+        }
+    };
+
+    /** Return the queue of this process. */
+    static synchronized CellBroadcastOperationQueue getInstance(Context context) {
+        if (sInstance == null) {
+            // the serial executor keeps the order of the writes
+            sInstance = new CellBroadcastOperationQueue(context.getContentResolver(),
+                    context.getMainLooper(), AsyncTask.SERIAL_EXECUTOR);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param contentResolver the resolver to reach the provider and notify observers
+     * @param batchLooper the looper whose passes delimit the batches
+     * @param executor the executor running the batches
+     */
+    CellBroadcastOperationQueue(ContentResolver contentResolver, Looper batchLooper,
+            Executor executor) {
+        mContentResolver = contentResolver;
+        mBatchHandler = new Handler(batchLooper);
+        mExecutor = executor;
+    }
+
+    /** Submit an operation whose result is not needed. */
+    void submit(CellBroadcastContentProvider.CellBroadcastOperation operation) {
+        submit(operation, null, null);
+    }
+
+    /**
+     * Submit an operation.
+     * @param operation the operation to run on a background thread
+     * @param callback the callback to receive the result, or null
+     * @param looper the looper to call {@code callback} on
+     */
+    void submit(CellBroadcastContentProvider.CellBroadcastOperation operation,
+            Callback callback, Looper looper) {
+        Entry entry = new Entry(operation, callback,
+                callback != null ? new Handler(looper) : null);
+        synchronized (mPending) {
+            mPending.add(entry);
+            if (mPending.size() > 1) {
+                // the batch is already scheduled
+                return;
+            }
+        }
+        mBatchHandler.post(mStartBatch);
+    }
+
+    private void runBatch(ArrayList<Entry> batch) {
+        LinkedHashSet<Uri> changedUris = new LinkedHashSet<Uri>();
+        ContentProviderClient cpc = null;
+        try {
+            cpc = mContentResolver.acquireContentProviderClient(
+                    CellBroadcastContentProvider.CB_AUTHORITY);
+            CellBroadcastContentProvider provider = cpc == null ? null
+                    : (CellBroadcastContentProvider) cpc.getLocalContentProvider();
+            if (provider == null) {
+                Log.e(TAG, "getLocalContentProvider() returned null");
+            }
+            for (Entry entry : batch) {
+                entry.mStartTime = SystemClock.elapsedRealtime();
+                if (provider != null) {
+                    runOperation(provider, entry, changedUris);
+                }
+                entry.mEndTime = SystemClock.elapsedRealtime();
+                if (entry.mHandler != null) {
+                    entry.mHandler.post(entry);
+                }
+                if (DBG) {
+                    Log.d(TAG, "operation queued " + (entry.mStartTime - entry.mSubmitTime)
+                            + " ms, ran " + (entry.mEndTime - entry.mStartTime) + " ms");
+                }
+            }
+        } finally {
+            if (cpc != null) {
+                cpc.release();
+            }
+            // the changes made before a failure are committed, so always notify them
+            if (!changedUris.isEmpty()) {
+                Log.d(TAG, "database changed by " + batch.size()
+                        + " operations: notifying observers...");
+                for (Uri uri : changedUris) {
+                    mContentResolver.notifyChange(uri, null, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Run an operation, adding the URIs it changed to {@code changedUris}. An operation that
+     * throws is reported as not having changed anything, and the batch goes on.
+     */
+    private static void runOperation(CellBroadcastContentProvider provider, Entry entry,
+            LinkedHashSet<Uri> changedUris) {
+        try {
+            entry.mChanged = entry.mOperation.execute(provider);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "operation failed", e);
+            entry.mChanged = false;
+        }
+        ArrayList<Uri> uris = provider.takeChangedUris();
+        if (entry.mChanged) {
+            if (uris == null) {
+                changedUris.add(CellBroadcastContentProvider.CONTENT_URI);
+            } else {
+                changedUris.addAll(uris);
+            }
+        } else if (uris != null) {
+            // an operation can fail after committing some of its changes
+            changedUris.addAll(uris);
+        }
+    }
+
+    /** A submitted operation, which reports its result when run on its handler. */
+    private static class Entry implements Runnable {
+        final CellBroadcastContentProvider.CellBroadcastOperation mOperation;
+        final Callback mCallback;
+        final Handler mHandler;
+        final long mSubmitTime = SystemClock.elapsedRealtime();
+        long mStartTime;
+        long mEndTime;
+        boolean mChanged;
+
+        Entry(CellBroadcastContentProvider.CellBroadcastOperation operation, Callback callback,
+                Handler handler) {
+            mOperation = operation;
+            mCallback = callback;
+            mHandler = handler;
+        }
+
+        @Override
+        public void run() {
+            mCallback.onOperationComplete(mChanged, mStartTime - mSubmitTime,
+                    mEndTime - mStartTime);
+        }
+    }
+}
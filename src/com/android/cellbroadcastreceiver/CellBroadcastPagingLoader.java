@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.AsyncTaskLoader;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.ContentObserver;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Handler;
+import android.provider.Telephony;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads the broadcast list as a window of at most {@link #MAX_ROWS} rows, using the keyset
+ * pagination parameters of {@link CellBroadcastContentProvider}. The first page is loaded
+ * when the loader starts; {@link #loadNextPage} and {@link #loadPreviousPage} extend the
+ * window by a page, and slide it by a page once it is full, so only one cursor of bounded
+ * size is open. When the data changes, the rows of the window are reloaded with a single
+ * query, at most once per {@code config_list_refresh_throttle_ms}. Changes notified on the
+ * row URI of a broadcast outside the window, and inserts at the end of the list the window
+ * doesn't reach, don't reload it.
+ */
+public class CellBroadcastPagingLoader extends AsyncTaskLoader<Cursor> {
+
+    /** Number of rows per page. */
+    static final int PAGE_SIZE = 50;
+
+    /** Maximum number of rows in the window. */
+    static final int MAX_ROWS = 4 * PAGE_SIZE;
+
+    private static final int LOAD_RELOAD = 0;
+    private static final int LOAD_NEXT_PAGE = 1;
+    private static final int LOAD_PREVIOUS_PAGE = 2;
+
+    private static final String[] KEY_COLUMNS = new String[] {
+            Telephony.CellBroadcasts.DELIVERY_TIME, Telephony.CellBroadcasts._ID };
+
+    private static final String INSERTED_PATH =
+            CellBroadcastContentProvider.INSERTED_URI.getLastPathSegment();
+
+    private final ContentObserver mObserver;
+    private boolean mObserverRegistered;
+    private final CellBroadcastRefreshCoordinator mRefreshCoordinator;
+
+    private final String[] mProjection;
+    private final String mSelection;
+    private final String[] mSelectionArgs;
+    private final boolean mAscending;
+
+    /** The last result delivered; read by the background thread when loading a page. */
+    private volatile WindowCursor mCursor;
+
+    /** The load requested: a page while a page request is not yet delivered, else a reload. */
+    private volatile int mRequestedLoad = LOAD_RELOAD;
+
+    /**
+     * Set from a content change until the reload is delivered. Page requests are ignored
+     * meanwhile, so they don't cancel the reload and leave the change unapplied.
+     */
+    private boolean mReloadPending;
+
+    public CellBroadcastPagingLoader(Context context, String[] projection, String selection,
+            String[] selectionArgs, boolean ascending) {
+        super(context);
+        mProjection = projection;
+        mSelection = selection;
+        mSelectionArgs = selectionArgs;
+        mAscending = ascending;
+        mObserver = new ContentObserver(new Handler(context.getMainLooper())) {
+            @Override
+            public boolean deliverSelfNotifications() {
+                return true;
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                if (isChangeInWindow(uri)) {
+                    onContentChanged();
+                }
+            }
+        };
+        mRefreshCoordinator = new CellBroadcastRefreshCoordinator(context.getMainLooper(),
+                context.getResources().getInteger(R.integer.config_list_refresh_throttle_ms),
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // a reload replaces a pending page request
+                        mRequestedLoad = LOAD_RELOAD;
+                        mReloadPending = true;
+                        CellBroadcastPagingLoader.super.onContentChanged();
+                    }
+                });
+    }
+
+    /**
+     * Load the page after the last row of the window, unless everything has been loaded
+     * already or another load is pending.
+     */
+    public void loadNextPage() {
+        WindowCursor cursor = mCursor;
+        if (cursor != null && cursor.mHasMore) {
+            requestPage(LOAD_NEXT_PAGE);
+        }
+    }
+
+    /**
+     * Load the page before the first row of the window, if the window has slid past the
+     * start of the list and no other load is pending.
+     */
+    public void loadPreviousPage() {
+        WindowCursor cursor = mCursor;
+        if (cursor != null && cursor.mStartKey != null) {
+            requestPage(LOAD_PREVIOUS_PAGE);
+        }
+    }
+
+    private void requestPage(int load) {
+        if (!mReloadPending && mRequestedLoad == LOAD_RELOAD) {
+            mRequestedLoad = load;
+            forceLoad();
+        }
+    }
+
+    /**
+     * Return how many rows the window moved down the list in this result, compared to the
+     * previous one: a row at position {@code p} in the previous result is at position
+     * {@code p + shift} in this one.
+     */
+    static int getPositionShift(Cursor cursor) {
+        return cursor instanceof WindowCursor ? ((WindowCursor) cursor).mPositionShift : 0;
+    }
+
+    /**
+     * Return whether a change notified on {@code uri} may change the rows of the window.
+     */
+    private boolean isChangeInWindow(Uri uri) {
+        WindowCursor cursor = mCursor;
+        if (cursor == null || uri == null) {
+            return true;
+        }
+        List<String> segments = uri.getPathSegments();
+        try {
+            if (segments.size() == 1) {
+                // a single broadcast changed
+                return cursor.containsRow(Long.parseLong(segments.get(0)));
+            }
+            if (segments.size() == 2 && INSERTED_PATH.equals(segments.get(0))) {
+                // new broadcasts are the latest, at the end of an ascending list
+                return mAscending ? !cursor.mHasMore : cursor.mStartKey == null;
+            }
+        } catch (NumberFormatException e) {
+            // not a row URI
+        }
+        return true;
+    }
+
+    @Override
+    public Cursor loadInBackground() {
+        WindowCursor previous = mCursor;
+        int load = previous != null ? mRequestedLoad : LOAD_RELOAD;
+        ContentResolver resolver = getContext().getContentResolver();
+
+        // the window starts after the row with this key, or at the start of the list if null
+        long[] startKey = null;
+        int limit = PAGE_SIZE;
+        int positionShift = 0;
+        if (previous != null) {
+            startKey = previous.mStartKey;
+            int count = previous.getCount();
+            if (load == LOAD_NEXT_PAGE) {
+                limit = count + PAGE_SIZE;
+                if (limit > MAX_ROWS && previous.mFirstPageEndKey != null) {
+                    // drop the first page
+                    startKey = previous.mFirstPageEndKey;
+                    limit -= PAGE_SIZE;
+                    positionShift = -PAGE_SIZE;
+                }
+            } else if (load == LOAD_PREVIOUS_PAGE && previous.mFirstKey != null) {
+                // find the page before the window, in reverse order
+                Cursor before = resolver.query(CellBroadcastContentProvider.getPageUri(
+                        PAGE_SIZE + 1, !mAscending, previous.mFirstKey[0],
+                        previous.mFirstKey[1]), KEY_COLUMNS, mSelection, mSelectionArgs, null);
+                if (before == null) {
+                    return null;
+                }
+                try {
+                    if (before.moveToPosition(PAGE_SIZE)) {
+                        startKey = new long[] { before.getLong(0), before.getLong(1) };
+                        positionShift = PAGE_SIZE;
+                    } else {
+                        startKey = null;
+                        positionShift = before.getCount();
+                    }
+                } finally {
+                    before.close();
+                }
+                limit = Math.min(count + positionShift, MAX_ROWS);
+            } else {
+                // reload the rows of the window, so the list keeps its scroll position
+                limit = Math.max(PAGE_SIZE, count);
+            }
+        }
+
+        Uri uri = startKey != null
+                ? CellBroadcastContentProvider.getPageUri(limit, mAscending, startKey[0],
+                        startKey[1])
+                : CellBroadcastContentProvider.getPageUri(limit, mAscending);
+        Cursor cursor = resolver.query(uri, mProjection, mSelection, mSelectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        // fill the window here rather than on the UI thread
+        cursor.getCount();
+        return new WindowCursor(cursor, startKey, limit, positionShift);
+    }
+
+    @Override
+    public void deliverResult(Cursor cursor) {
+        if (isReset()) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        Cursor oldCursor = mCursor;
+        mCursor = (WindowCursor) cursor;
+        mRequestedLoad = LOAD_RELOAD;
+        mReloadPending = false;
+
+        if (isStarted()) {
+            super.deliverResult(cursor);
+        }
+
+        if (oldCursor != null && oldCursor != cursor && !oldCursor.isClosed()) {
+            oldCursor.close();
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        mRefreshCoordinator.onChange();
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(
+                    CellBroadcastContentProvider.CONTENT_URI, true, mObserver);
+            mObserverRegistered = true;
+        }
+        if (mCursor != null) {
+            deliverResult(mCursor);
+        }
+        // a reload cancelled by onStopLoading() is run again
+        if (takeContentChanged() || mCursor == null || mReloadPending) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+        if (!mReloadPending) {
+            mRequestedLoad = LOAD_RELOAD;
+        }
+    }
+
+    @Override
+    public void onCanceled(Cursor cursor) {
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mRefreshCoordinator.cancel();
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        if (mCursor != null && !mCursor.isClosed()) {
+            mCursor.close();
+        }
+        mCursor = null;
+        mRequestedLoad = LOAD_RELOAD;
+        mReloadPending = false;
+    }
+
+    /**
+     * The rows of the window, with the keys needed to move it. A key is the delivery time
+     * and id of a row.
+     */
+    private static class WindowCursor extends CursorWrapper {
+        /** The key of the row before the window, or null if it starts the list. */
+        final long[] mStartKey;
+        /** The key of the first row, or null if the window is empty. */
+        final long[] mFirstKey;
+        /** The key of the last row of the first page, or null if there is no full page. */
+        final long[] mFirstPageEndKey;
+        final boolean mHasMore;
+        final int mPositionShift;
+        /** The IDs of the rows, sorted. */
+        private final long[] mRowIds;
+
+        WindowCursor(Cursor cursor, long[] startKey, int limit, int positionShift) {
+            super(cursor);
+            mStartKey = startKey;
+            mHasMore = cursor.getCount() == limit;
+            mPositionShift = positionShift;
+            int timeColumn = cursor.getColumnIndexOrThrow(
+                    Telephony.CellBroadcasts.DELIVERY_TIME);
+            int idColumn = cursor.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID);
+            mFirstKey = getKey(cursor, 0, timeColumn, idColumn);
+            mFirstPageEndKey = getKey(cursor, PAGE_SIZE - 1, timeColumn, idColumn);
+            mRowIds = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToPosition(i); i++) {
+                mRowIds[i] = cursor.getLong(idColumn);
+            }
+            Arrays.sort(mRowIds);
+            cursor.moveToPosition(-1);
+        }
+
+        boolean containsRow(long rowId) {
+            return Arrays.binarySearch(mRowIds, rowId) >= 0;
+        }
+
+        private static long[] getKey(Cursor cursor, int position, int timeColumn,
+                int idColumn) {
+            if (!cursor.moveToPosition(position)) {
+                return null;
+            }
+            return new long[] { cursor.getLong(timeColumn), cursor.getLong(idColumn) };
+        }
+    }
+}
@@ -152,6 +152,9 @@ public class CellBroadcastReceiver extends BroadcastReceiver {
             } else {
                 Log.e(TAG, "caller missing READ_PHONE_STATE permission, returning");
             }
+        } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+            CellBroadcastTtsManager.warmUpIfEnabled(context,
+                    SubscriptionManager.getDefaultSmsSubId());
         } else {
             Log.w(TAG, "onReceive() unexpected action " + action);
         }
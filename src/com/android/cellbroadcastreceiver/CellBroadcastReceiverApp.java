@@ -38,6 +38,9 @@ public class CellBroadcastReceiverApp extends Application {
         super.onCreate();
         // TODO: fix strict mode violation from the following method call during app creation
         PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
+        CellBroadcastMaintenanceService.schedule(this);
+        // decode the attention signal before the first alert needs it
+        CellBroadcastAlertTone.preload(this);
     }
 
     /** List of unread non-emergency alerts to show when user selects the notification. */
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Folds change notifications into at most one refresh per throttle interval. The first
+ * change after a quiet interval refreshes at once; the changes that follow within the
+ * interval are folded into a single refresh at its end. All methods must be called on the
+ * looper thread given to the constructor, which also runs the refreshes.
+ */
+class CellBroadcastRefreshCoordinator {
+
+    private final Handler mHandler;
+    private final long mThrottle;
+    private final Runnable mRefresh;
+
+    private long mLastRefreshTime;
+    private boolean mRefreshPending;
+
+    private final Runnable mDeferredRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mRefreshPending = false;
+            refresh();
+        }
+    };
+
+    /**
+     * @param looper the looper to run the refreshes on
+     * @param throttle the minimum time between two refreshes, in milliseconds
+     * @param refresh the refresh to run
+     */
+    CellBroadcastRefreshCoordinator(Looper looper, long throttle, Runnable refresh) {
+        mHandler = new Handler(looper);
+        mThrottle = throttle;
+        mRefresh = refresh;
+        mLastRefreshTime = SystemClock.uptimeMillis() - throttle;
+    }
+
+    /**
+     * Report a change: refresh now, or schedule a refresh at the end of the current interval
+     * if there isn't one already.
+     */
+    void onChange() {
+        if (mRefreshPending) {
+            return;
+        }
+        long nextRefreshTime = mLastRefreshTime + mThrottle;
+        if (SystemClock.uptimeMillis() >= nextRefreshTime) {
+            refresh();
+        } else {
+            mRefreshPending = true;
+            mHandler.postAtTime(mDeferredRefresh, nextRefreshTime);
+        }
+    }
+
+    /** Drop the scheduled refresh, if any. */
+    void cancel() {
+        mHandler.removeCallbacks(mDeferredRefresh);
+        mRefreshPending = false;
+    }
+
+    private void refresh() {
+        mLastRefreshTime = SystemClock.uptimeMillis();
+        mRefresh.run();
+    }
+}
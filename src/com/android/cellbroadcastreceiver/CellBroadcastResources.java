@@ -237,10 +237,28 @@ public class CellBroadcastResources {
     }
 
     public static int getDialogTitleResource(CellBroadcastMessage cbm) {
-        // ETWS warning types
         SmsCbEtwsInfo etwsInfo = cbm.getEtwsWarningInfo();
-        if (etwsInfo != null) {
-            switch (etwsInfo.getWarningType()) {
+        SmsCbCmasInfo cmasInfo = cbm.getCmasWarningInfo();
+        return getDialogTitleResource(
+                etwsInfo != null ? Integer.valueOf(etwsInfo.getWarningType()) : null,
+                cmasInfo != null ? Integer.valueOf(cmasInfo.getMessageClass()) : null,
+                cbm.isEmergencyAlertMessage(), cbm.getServiceCategory(), cbm.getSubId());
+    }
+
+    /**
+     * Returns the title resource from the columns of a broadcast, without creating the
+     * message.
+     * @param etwsWarningType the ETWS warning type, or null if not an ETWS warning
+     * @param cmasMessageClass the CMAS message class, or null if not a CMAS alert
+     * @param emergencyPriority true if the broadcast has emergency priority
+     * @param serviceCategory the service category of the broadcast
+     * @param subId the subscription the broadcast was received on
+     */
+    static int getDialogTitleResource(Integer etwsWarningType, Integer cmasMessageClass,
+            boolean emergencyPriority, int serviceCategory, int subId) {
+        // ETWS warning types
+        if (etwsWarningType != null) {
+            switch (etwsWarningType) {
                 case SmsCbEtwsInfo.ETWS_WARNING_TYPE_EARTHQUAKE:
                     return R.string.etws_earthquake_warning;
 
@@ -260,9 +278,8 @@ public class CellBroadcastResources {
         }
 
         // CMAS warning types
-        SmsCbCmasInfo cmasInfo = cbm.getCmasWarningInfo();
-        if (cmasInfo != null) {
-            switch (cmasInfo.getMessageClass()) {
+        if (cmasMessageClass != null) {
+            switch (cmasMessageClass) {
                 case SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT:
                     return R.string.cmas_presidential_level_alert;
 
@@ -289,7 +306,8 @@ public class CellBroadcastResources {
             }
         }
 
-        if (CellBroadcastConfigService.isEmergencyAlertMessage(cbm)) {
+        if (CellBroadcastConfigService.isEmergencyAlertMessage(emergencyPriority,
+                serviceCategory, subId)) {
             return R.string.pws_other_message_identifiers;
         } else {
             return R.string.cb_other_message_identifiers;
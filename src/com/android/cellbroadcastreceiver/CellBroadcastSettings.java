@@ -289,6 +289,11 @@ public class CellBroadcastSettings extends PreferenceActivity {
                                             .setSubscriptionProperty(mSir.getSubscriptionId(),
                                                     SubscriptionManager.CB_EMERGENCY_ALERT,
                                                     newVal + "");
+                                    if (newVal == 1) {
+                                        CellBroadcastTtsManager.warmUpIfEnabled(
+                                                CellBroadcastSettings.this,
+                                                mSir.getSubscriptionId());
+                                    }
                                     break;
                                 case KEY_ENABLE_CHANNEL_50_ALERTS:
                                     SubscriptionManager
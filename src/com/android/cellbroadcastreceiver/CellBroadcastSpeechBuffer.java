@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.speech.tts.TextToSpeech;
+import android.util.Log;
+
+import java.io.File;
+import java.text.BreakIterator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * The text of an alert, synthesized to cache files while the attention signal plays.
+ * <p>
+ * The text is split into chunks of whole sentences, which the engine synthesizes in order;
+ * the first chunk is short enough to be ready by the end of the signal, and a long message
+ * can be played chunk by chunk while the next chunks are synthesized. All methods except
+ * {@link #onUtteranceCompleted} must be called on the main thread.
+ */
+class CellBroadcastSpeechBuffer {
+    private static final String TAG = "CellBroadcastSpeechBuffer";
+
+    /** Receives the chunks as they are synthesized, on the main thread. */
+    interface Listener {
+        void onChunkSynthesized(int index);
+    }
+
+    static final int CHUNK_PENDING = 0;
+    static final int CHUNK_READY = 1;
+    static final int CHUNK_FAILED = 2;
+
+    /** Maximum length of a chunk, unless a single word is longer. */
+    private static final int MAX_CHUNK_LENGTH = 300;
+
+    private static final String CACHE_DIR = "alert_speech";
+
+    private static final String UTTERANCE_ID_PREFIX =
+            "com.android.cellbroadcastreceiver.SYNTHESIS_ID_";
+
+    /** Length of the header of the WAV files written by the engine. */
+    private static final int WAV_HEADER_LENGTH = 44;
+
+    private static int sNextSession;
+
+    private final TextToSpeech mTts;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final String mUtteranceIdPrefix;
+    private final ArrayList<String> mChunks;
+    private final File[] mFiles;
+    private final int[] mChunkStates;
+    private int mPendingChunks;
+    private boolean mReleased;
+
+    /**
+     * Start synthesizing the text of an alert, in the current language of the engine.
+     * @param cacheDir the cache directory of the caller
+     * @return the buffer, or null if the engine refused the text
+     */
+    static CellBroadcastSpeechBuffer start(TextToSpeech tts, String text, Locale locale,
+            File cacheDir, Listener listener) {
+        File dir = new File(cacheDir, CACHE_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(TAG, "can't create " + dir);
+            return null;
+        }
+        if (sNextSession == 0) {
+            // files left by a previous process
+            deleteFiles(dir.listFiles());
+        }
+        CellBroadcastSpeechBuffer buffer = new CellBroadcastSpeechBuffer(tts,
+                splitText(text, locale), dir, sNextSession++, listener);
+        return buffer.synthesize() ? buffer : null;
+    }
+
+    private CellBroadcastSpeechBuffer(TextToSpeech tts, ArrayList<String> chunks, File dir,
+            int session, Listener listener) {
+        mTts = tts;
+        mListener = listener;
+        mUtteranceIdPrefix = UTTERANCE_ID_PREFIX + session + '_';
+        mChunks = chunks;
+        mFiles = new File[chunks.size()];
+        for (int i = 0; i < mFiles.length; i++) {
+            mFiles[i] = new File(dir, session + "_" + i + ".wav");
+        }
+        mChunkStates = new int[chunks.size()];
+    }
+
+    /**
+     * Split the text into chunks of whole sentences, the first one being a single sentence so
+     * it is synthesized quickly.
+     */
+    static ArrayList<String> splitText(String text, Locale locale) {
+        ArrayList<String> chunks = new ArrayList<String>();
+        BreakIterator sentences = BreakIterator.getSentenceInstance(
+                locale != null ? locale : Locale.getDefault());
+        sentences.setText(text);
+        StringBuilder chunk = new StringBuilder();
+        int start = sentences.first();
+        for (int end = sentences.next(); end != BreakIterator.DONE;
+                start = end, end = sentences.next()) {
+            String sentence = text.substring(start, end);
+            if (chunk.length() > 0 && (chunks.isEmpty()
+                    || chunk.length() + sentence.length() > MAX_CHUNK_LENGTH)) {
+                addChunk(chunks, chunk.toString());
+                chunk.setLength(0);
+            }
+            while (sentence.length() > MAX_CHUNK_LENGTH) {
+                // split a long sentence between words
+                int split = sentence.lastIndexOf(' ', MAX_CHUNK_LENGTH);
+                if (split <= 0) {
+                    split = MAX_CHUNK_LENGTH;
+                }
+                addChunk(chunks, sentence.substring(0, split));
+                sentence = sentence.substring(split);
+            }
+            chunk.append(sentence);
+        }
+        addChunk(chunks, chunk.toString());
+        return chunks;
+    }
+
+    private static void addChunk(ArrayList<String> chunks, String chunk) {
+        chunk = chunk.trim();
+        if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+        }
+    }
+
+    /** Queue the synthesis of all the chunks. */
+    private boolean synthesize() {
+        for (int i = 0; i < mChunks.size(); i++) {
+            HashMap<String, String> params = new HashMap<String, String>();
+            params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, mUtteranceIdPrefix + i);
+            if (mTts.synthesizeToFile(mChunks.get(i), params, mFiles[i].getPath())
+                    != TextToSpeech.SUCCESS) {
+                loge("synthesizeToFile() failed for chunk " + i);
+                if (i == 0) {
+                    return false;
+                }
+                mChunkStates[i] = CHUNK_FAILED;
+            } else {
+                mPendingChunks++;
+            }
+        }
+        if (DBG) log("synthesizing " + mChunks.size() + " chunks");
+        return mChunks.size() > 0;
+    }
+
+    int getChunkCount() {
+        return mChunks.size();
+    }
+
+    int getChunkState(int index) {
+        return mChunkStates[index];
+    }
+
+    File getChunkFile(int index) {
+        return mFiles[index];
+    }
+
+    /** Return the text from a chunk to the end, to speak it directly. */
+    String getText(int fromIndex) {
+        StringBuilder text = new StringBuilder();
+        for (int i = fromIndex; i < mChunks.size(); i++) {
+            if (text.length() > 0) {
+                text.append(' ');
+            }
+            text.append(mChunks.get(i));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Handle an utterance completed by the engine, on any thread.
+     * @return true if the utterance is the synthesis of a chunk of this buffer
+     */
+    boolean onUtteranceCompleted(String utteranceId) {
+        if (!utteranceId.startsWith(mUtteranceIdPrefix)) {
+            return false;
+        }
+        final int index = Integer.parseInt(utteranceId.substring(mUtteranceIdPrefix.length()));
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mReleased || mChunkStates[index] != CHUNK_PENDING) {
+                    return;
+                }
+                mPendingChunks--;
+                // errors are reported as completions too
+                mChunkStates[index] = mFiles[index].length() > WAV_HEADER_LENGTH
+                        ? CHUNK_READY : CHUNK_FAILED;
+                if (DBG) log("chunk " + index + " synthesized: " + mChunkStates[index]);
+                mListener.onChunkSynthesized(index);
+            }
+        });
+        return true;
+    }
+
+    /** Stop the synthesis and delete the files. */
+    void release() {
+        if (mReleased) {
+            return;
+        }
+        mReleased = true;
+        if (mPendingChunks > 0) {
+            try {
+                mTts.stop();
+            } catch (IllegalStateException e) {
+                // catch "Unable to retrieve AudioTrack pointer for stop()" exception
+                loge("exception trying to stop text-to-speech");
+            }
+        }
+        deleteFiles(mFiles);
+    }
+
+    private static void deleteFiles(File[] files) {
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void log(String msg) {
+        Log.d(TAG, msg);
+    }
+
+    private static void loge(String msg) {
+        Log.e(TAG, msg);
+    }
+}
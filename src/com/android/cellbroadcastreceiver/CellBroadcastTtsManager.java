@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.speech.tts.TextToSpeech;
+import android.telephony.SubscriptionManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+import static com.android.cellbroadcastreceiver.CellBroadcastReceiver.DBG;
+
+/**
+ * Keeps a TextToSpeech engine bound and warmed up with the languages alerts are likely to be
+ * spoken in, so the alert text can be spoken as soon as the alert tone ends.
+ * <p>
+ * {@link #warmUp} binds the engine ahead of an alert: after boot, when emergency alerts are
+ * enabled, and when an emergency alert arrives. An alert session holds the engine between
+ * {@link #acquire} and {@link #release}. The engine is shut down once it has been unused for
+ * {@code config_tts_idle_shutdown_ms}. All methods must be called on the main thread.
+ */
+class CellBroadcastTtsManager {
+    private static final String TAG = "CellBroadcastTtsManager";
+
+    /** Languages set besides the device language: ETWS alerts are spoken in Japanese. */
+    private static final String[] WARM_UP_LANGUAGES = { "en", "ja" };
+
+    private static final int STATE_UNBOUND = 0;
+    private static final int STATE_BINDING = 1;
+    private static final int STATE_READY = 2;
+
+    /** Creates the engine; replaced by tests. */
+    interface EngineFactory {
+        TextToSpeech createEngine(Context context, TextToSpeech.OnInitListener listener);
+    }
+
+    private static CellBroadcastTtsManager sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final long mIdleTimeout;
+    private final EngineFactory mEngineFactory;
+
+    private TextToSpeech mTts;
+    /** The init listener of {@link #mTts}, to ignore the callback of an engine shut down. */
+    private TextToSpeech.OnInitListener mInitListener;
+    private int mState = STATE_UNBOUND;
+    private int mSessions;
+
+    /** Sessions waiting for the engine to be ready. */
+    private final ArrayList<TextToSpeech.OnInitListener> mPendingListeners =
+            new ArrayList<TextToSpeech.OnInitListener>();
+
+    private final Runnable mShutdown = new Runnable() {
+        @Override
+        public void run() {
+            shutdown();
+        }
+    };
+
+    private final Runnable mWarmUpLanguages = new Runnable() {
+        @Override
+        public void run() {
+            warmUpLanguages();
+        }
+    };
+
+    static CellBroadcastTtsManager getInstance(Context context) {
+        if (sInstance == null) {
+            context = context.getApplicationContext();
+            sInstance = new CellBroadcastTtsManager(context, Looper.getMainLooper(),
+                    context.getResources().getInteger(R.integer.config_tts_idle_shutdown_ms),
+                    new EngineFactory() {
+                        @Override
+                        public TextToSpeech createEngine(Context context,
+                                TextToSpeech.OnInitListener listener) {
+                            return new TextToSpeech(context, listener);
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    /**
+     * Warm up the engine if the emergency alerts of a subscription are enabled and spoken.
+     */
+    static void warmUpIfEnabled(Context context, int subId) {
+        if (SubscriptionManager.getBooleanSubscriptionProperty(subId,
+                SubscriptionManager.CB_EMERGENCY_ALERT, true, context)
+                && SubscriptionManager.getBooleanSubscriptionProperty(subId,
+                SubscriptionManager.CB_ALERT_SPEECH, true, context)) {
+            getInstance(context).warmUp();
+        }
+    }
+
+    /**
+     * @param looper the looper all methods are called on
+     * @param idleTimeout time in milliseconds an unused engine is kept bound
+     */
+    CellBroadcastTtsManager(Context context, Looper looper, long idleTimeout,
+            EngineFactory engineFactory) {
+        mContext = context;
+        mHandler = new Handler(looper);
+        mIdleTimeout = idleTimeout;
+        mEngineFactory = engineFactory;
+    }
+
+    /** Bind the engine and warm it up, unless it is already done. */
+    void warmUp() {
+        bind();
+        if (mSessions == 0) {
+            scheduleShutdown();
+        }
+    }
+
+    /**
+     * Start an alert session, which keeps the engine bound until {@link #release}.
+     * @param listener called with the status of the engine once it is ready, which may be
+     *  before this returns; then {@link #getTextToSpeech} returns the engine
+     */
+    void acquire(TextToSpeech.OnInitListener listener) {
+        mSessions++;
+        mHandler.removeCallbacks(mShutdown);
+        bind();
+        if (mState == STATE_READY) {
+            listener.onInit(TextToSpeech.SUCCESS);
+        } else {
+            mPendingListeners.add(listener);
+        }
+    }
+
+    /** End an alert session started by {@link #acquire}. */
+    void release(TextToSpeech.OnInitListener listener) {
+        mPendingListeners.remove(listener);
+        if (mSessions > 0 && --mSessions == 0) {
+            scheduleShutdown();
+        }
+    }
+
+    /** Return the engine, or null if it isn't ready. */
+    TextToSpeech getTextToSpeech() {
+        return mState == STATE_READY ? mTts : null;
+    }
+
+    private void bind() {
+        if (mState == STATE_UNBOUND) {
+            if (DBG) log("binding TTS engine");
+            mState = STATE_BINDING;
+            mInitListener = new TextToSpeech.OnInitListener() {
+                @Override
+                public void onInit(int status) {
+                    onEngineInit(this, status);
+                }
+            };
+            mTts = mEngineFactory.createEngine(mContext, mInitListener);
+        }
+    }
+
+    private void onEngineInit(TextToSpeech.OnInitListener initListener, int status) {
+        if (initListener != mInitListener || mState != STATE_BINDING) {
+            // shut down before it was bound
+            return;
+        }
+        if (status == TextToSpeech.SUCCESS) {
+            mState = STATE_READY;
+            // after the sessions waiting for the engine have started speaking
+            mHandler.post(mWarmUpLanguages);
+        } else {
+            Log.e(TAG, "TTS engine error: " + status);
+            mTts.shutdown();
+            mTts = null;
+            mInitListener = null;
+            mState = STATE_UNBOUND;
+        }
+        ArrayList<TextToSpeech.OnInitListener> listeners =
+                new ArrayList<TextToSpeech.OnInitListener>(mPendingListeners);
+        mPendingListeners.clear();
+        for (TextToSpeech.OnInitListener listener : listeners) {
+            listener.onInit(status);
+        }
+    }
+
+    /**
+     * Set each of the likely languages once, which warms up the engine and its voice data
+     * files, then go back to its default language, which is used for alerts with no
+     * language. Most engines only keep the last language set loaded, so the language of an
+     * alert may still take a moment to load.
+     * <p>
+     * These are synchronous calls to the engine, so this is skipped while a session holds
+     * the engine: the alert sets its own language, and must not wait for this one.
+     */
+    private void warmUpLanguages() {
+        if (mState != STATE_READY || mSessions > 0) {
+            if (DBG) log("skipping language warm-up");
+            return;
+        }
+        ArrayList<Locale> locales = new ArrayList<Locale>();
+        for (String language : WARM_UP_LANGUAGES) {
+            locales.add(new Locale(language));
+        }
+        locales.add(Locale.getDefault());
+        for (Locale locale : locales) {
+            int result = mTts.setLanguage(locale);
+            if (DBG) log("warmed up " + locale + ": " + result);
+        }
+        Locale defaultLocale = mTts.getDefaultLanguage();
+        if (defaultLocale != null) {
+            mTts.setLanguage(defaultLocale);
+        }
+    }
+
+    private void scheduleShutdown() {
+        mHandler.removeCallbacks(mShutdown);
+        mHandler.postDelayed(mShutdown, mIdleTimeout);
+    }
+
+    private void shutdown() {
+        if (mSessions > 0 || mTts == null) {
+            return;
+        }
+        if (DBG) log("shutting down idle TTS engine");
+        mHandler.removeCallbacks(mWarmUpLanguages);
+        try {
+            mTts.shutdown();
+        } catch (IllegalStateException e) {
+            // catch "Unable to retrieve AudioTrack pointer for stop()" exception
+            Log.e(TAG, "exception trying to shutdown text-to-speech");
+        }
+        mTts = null;
+        mInitListener = null;
+        mState = STATE_UNBOUND;
+    }
+
+    private static void log(String msg) {
+        Log.d(TAG, msg);
+    }
+}
@@ -34,13 +34,18 @@ import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.ProgressDialog;
 import android.content.Context;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
 import android.content.DialogInterface;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.CheckBoxPreference;
 import android.preference.Preference;
 import android.preference.PreferenceCategory;
@@ -63,7 +68,7 @@ import android.widget.Toast;
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.List;
 
 public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreferenceActivity
         implements DialogInterface.OnClickListener, Preference.OnPreferenceClickListener {
@@ -83,6 +88,7 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
     private static final String FILTER_ID = "_id";
     private static final String FILTER_NAME = "name";
     private static final String FILTER_CATEGORY = "number";
+    private static final String FILTER_CATEGORY_END = "number_end";
     private static final String FILTER_STAT = "enable";
 
     private static final String KEY_BUTTON_ADD_CHANNEL = "button_add_channel";
@@ -94,8 +100,7 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
     private CheckBoxPreference mCBSwitchPreference;
     private ProgressDialog mBusyDialog;
 
-    private HashMap<String, CellBroadcastChannel> mChannelFilterMap;
-    private ArrayList<CellBroadcastChannel> mFilterArray = new ArrayList<CellBroadcastChannel>();
+    private final CellBroadcastChannelRanges mChannelRanges = new CellBroadcastChannelRanges();
 
     private CbCustomizedAsyncTask mCbCustomizedAsyncTask = null;
     private ArrayList<SmsBroadcastConfigInfo> mSmsCbCfgList;
@@ -150,7 +155,6 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
         protected Void doInBackground(Void... none) {
             if (DEBUG) Log.i(LOG_TAG, "doInBackground(): AsyncTask is ongoing");
             if (queryFilters()) {
-                initChannelFilterMap();
                 updateCurrentFilter(mSmsCbCfgList);
             } else {
                 onErrorFinish(mCBSwitchPreference, ERROR_FINISH_DIALOG);
@@ -187,14 +191,19 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
         AdapterView.AdapterContextMenuInfo menuinfo
                 = (AdapterView.AdapterContextMenuInfo) item.getMenuInfo();
         int index = menuinfo.position - FILTER_OFFSET;
-        CellBroadcastChannel oldFilter = mFilterArray.get(index);
+        if (index < 0 || index >= mChannelRanges.size()) {
+            Log.e(LOG_TAG, "onContextItemSelected, no channel range at " + index);
+            return super.onContextItemSelected(item);
+        }
+        CellBroadcastChannel oldFilter = mChannelRanges.get(index);
         switch (item.getItemId()) {
             case MENU_FILTER_DELETE:
                 oldFilter.setChannelStatus(false);
-                if (deleteChannelFromProvider(oldFilter)) {
+                mChannelRanges.remove(oldFilter);
+                if (saveChannelRanges()) {
+                    updateFilterUIList();
                     setCellBroadcastConfig();
-                    SmsManager.getDefault().disableCellBroadcast(oldFilter.getChannelId(),
-                            SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
+                    setFilterState(oldFilter);
                 } else {
                     onErrorFinish(mCBSwitchPreference, ERROR_FINISH_DIALOG);
                 }
@@ -219,8 +228,6 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
         }
         int position = menuinfo.position;
         if (position >= FILTER_OFFSET) {
-            int index = position - FILTER_OFFSET;
-            CellBroadcastChannel channel = mFilterArray.get(index);
             menu.setHeaderTitle(R.string.cb_menu_tile);
             menu.add(1, MENU_FILTER_EDIT, 0, R.string.cb_menu_edit);
             menu.add(2, MENU_FILTER_DELETE, 0, R.string.cb_menu_delete);
@@ -325,10 +332,15 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
                 = LayoutInflater.from(this).inflate(R.layout.pref_add_channel, null);
         final EditText filterName = (EditText) filterEditView.findViewById(R.id.edit_channel_name);
         final EditText filterCat = (EditText) filterEditView.findViewById(R.id.edit_channel_number);
+        final EditText filterCatEnd
+                = (EditText) filterEditView.findViewById(R.id.edit_channel_number_end);
         final CheckBox filterState
                 = (CheckBox) filterEditView.findViewById(R.id.checkbox_channel_enable);
         filterName.setText(oldFilter.getChannelName());
         filterCat.setText(String.valueOf(oldFilter.getChannelId()));
+        if (oldFilter.getChannelIdEnd() != oldFilter.getChannelId()) {
+            filterCatEnd.setText(String.valueOf(oldFilter.getChannelIdEnd()));
+        }
         filterState.setChecked(oldFilter.getChannelStatus());
 
         final AlertDialog dialog = new AlertDialog.Builder(this)
@@ -339,26 +351,34 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
             public void onClick(DialogInterface dialog, int where) {
                 String name = filterName.getText().toString();
                 String num = filterCat.getText().toString();
+                String numEnd = filterCatEnd.getText().toString();
                 boolean checked = filterState.isChecked();
                 String errorText = "";
                 if (!isFilterNameValid(name)) {
                     errorText += getString(R.string.cb_error_channel_name);
                 }
-                if (!isCategoryValid(num)) {
+                if (!isCategoryRangeValid(num, numEnd)) {
                     errorText += "\n" + getString(R.string.cb_error_channel_num);
                 }
                 if (errorText.equals("")) {
                     int newFilterId = Integer.valueOf(num).intValue();
-                    int tempOldChannelId = oldFilter.getChannelId();
-                    int tmpOldKeyId = oldFilter.getKeyId();
-                    if (!checkCategoryIdExist(newFilterId, tmpOldKeyId)) {
+                    int newFilterIdEnd = getCategoryRangeEnd(newFilterId, numEnd);
+                    if (!mChannelRanges.overlaps(newFilterId, newFilterIdEnd, oldFilter)) {
                         dialog.dismiss();
-                        CellBroadcastChannel newFilter =
-                            new CellBroadcastChannel(tmpOldKeyId, newFilterId, name,
-                            checked);
-                        oldFilter.setChannelStatus(false);
-                        int tempNewChannelId = newFilter.getChannelId();
-                        if (updateCbFilterToProvider(oldFilter, newFilter)) {
+                        CellBroadcastChannel previous = new CellBroadcastChannel(oldFilter);
+                        mChannelRanges.edit(oldFilter, name, newFilterId, newFilterIdEnd,
+                                checked);
+                        if (saveChannelRanges()) {
+                            // the edited range may have been merged with its neighbours
+                            updateFilterUIList();
+                            if (previous.getChannelStatus()) {
+                                // the old range may not be covered by the edited one anymore
+                                previous.setChannelStatus(false);
+                                setFilterState(previous);
+                            }
+                            if (checked) {
+                                setFilterState(oldFilter);
+                            }
                             setCellBroadcastConfig();
                         } else {
                             onErrorFinish(mCBSwitchPreference, ERROR_FINISH_DIALOG);
@@ -376,31 +396,27 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
     }
 
     private void updateFilterUIList() {
-        // Update the channel filter ui list from filter array
+        // Update the channel filter ui list from the channel ranges
         if (DEBUG) Log.d(LOG_TAG, "updateFilterUIList start");
         mFilterListPreference.removeAll();
 
-        for (CellBroadcastChannel filter : mFilterArray) {
+        for (final CellBroadcastChannel filter : mChannelRanges.asList()) {
             final CheckBoxPreference channel = new CheckBoxPreference(this);
-            int keyId = filter.getKeyId();
-            String filterName = filter.getChannelName();
-            final int channelId = filter.getChannelId();
-            boolean filterState = filter.getChannelStatus();
-            String title = filterName + "(" + String.valueOf(channelId) + ")";
+            String title = filter.getChannelName() + "("
+                    + formatCategoryRange(filter.getChannelId(), filter.getChannelIdEnd()) + ")";
             channel.setTitle(title);
             channel.setSummaryOn(R.string.enable);
             channel.setSummaryOff(R.string.disable);
-            channel.setChecked(filterState);
-            final CellBroadcastChannel oldFilter
-                    = new CellBroadcastChannel(keyId, channelId, filterName, filterState);
+            channel.setChecked(filter.getChannelStatus());
 
             channel.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
                 public boolean onPreferenceClick(Preference perf) {
-                    setFilterState(channelId, channel.isChecked());
-                    CellBroadcastChannel newFilter = new CellBroadcastChannel(oldFilter);
-                    newFilter.setChannelStatus(!oldFilter.getChannelStatus());
-                    int tempOldChannelId = oldFilter.getChannelId();
-                    if (updateCbFilterToProvider(oldFilter, newFilter)) {
+                    mChannelRanges.edit(filter, filter.getChannelName(), filter.getChannelId(),
+                            filter.getChannelIdEnd(), channel.isChecked());
+                    if (saveChannelRanges()) {
+                        // the range may have been merged with its neighbours
+                        updateFilterUIList();
+                        setFilterState(filter);
                         setCellBroadcastConfig();
                     } else {
                         onErrorFinish(mCBSwitchPreference, ERROR_FINISH_DIALOG);
@@ -414,18 +430,6 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
         if (DEBUG) Log.d(LOG_TAG, "updateFilterUIList end");
     }
 
-    private void initChannelFilterMap() {
-        mChannelFilterMap = new HashMap<String, CellBroadcastChannel>();
-
-        for (CellBroadcastChannel filterChannel : mFilterArray) {
-            if (mCbCustomizedAsyncTask.isCancelled()) {
-                break;
-            }
-            int id = filterChannel.getChannelId();
-            mChannelFilterMap.put(String.valueOf(id), filterChannel);
-        }
-    }
-
     private void showAddFilterDialog() {
         final AlertDialog dialog = new AlertDialog.Builder(this)
                 .setView(LayoutInflater.from(this).inflate(R.layout.pref_add_channel, null))
@@ -438,6 +442,8 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
                         .getText().toString();
                 String cat = ((EditText) filterDlg.findViewById(R.id.edit_channel_number))
                         .getText().toString();
+                String catEnd = ((EditText) filterDlg.findViewById(R.id.edit_channel_number_end))
+                        .getText().toString();
                 boolean checked = ((CheckBox) filterDlg.findViewById(R.id.checkbox_channel_enable))
                         .isChecked();
                 // Check input if input is valid
@@ -445,18 +451,18 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
                 if (!isFilterNameValid(name)) {
                     errorText += getString(R.string.cb_error_channel_name);
                 }
-                if (!isCategoryValid(cat)) {
+                if (!isCategoryRangeValid(cat, catEnd)) {
                     errorText += "\n" + getString(R.string.cb_error_channel_num);
                 }
                 if (errorText.equals("")) {
                     int channelId = Integer.valueOf(cat).intValue();
-                    if (!checkCategoryIdExist(channelId)) {
+                    int channelIdEnd = getCategoryRangeEnd(channelId, catEnd);
+                    if (!mChannelRanges.overlaps(channelId, channelIdEnd, null)) {
                         dialog.dismiss();
-                        CellBroadcastChannel channel
-                                = new CellBroadcastChannel(channelId, name, checked);
-                        if (insertCbFilterToProvider(channel)) {
-                            mFilterArray.add(channel);
-                            mChannelFilterMap.put(String.valueOf(channel.getChannelId()), channel);
+                        CellBroadcastChannel channel = new CellBroadcastChannel(0, channelId,
+                                channelIdEnd, name, checked);
+                        mChannelRanges.add(channel);
+                        if (saveChannelRanges()) {
                             updateFilterUIList();
                             if (channel.getChannelStatus()) {
                                 setCellBroadcastConfig();
@@ -480,15 +486,14 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
     private boolean queryFilters() {
         if (DEBUG) Log.d(LOG_TAG, "queryFilters start");
 
-        if (mFilterArray != null) {
-            mFilterArray.clear();
-        }
-        final String[] projection
-                = new String[] { FILTER_ID, FILTER_NAME, FILTER_CATEGORY, FILTER_STAT };
+        final String[] projection = new String[] {
+                FILTER_ID, FILTER_NAME, FILTER_CATEGORY, FILTER_STAT, FILTER_CATEGORY_END };
         final int INDEX_ID = 0;
         final int INDEX_NAME = 1;
         final int INDEX_CATEGORY = 2;
         final int INDEX_STAT = 3;
+        final int INDEX_CATEGORY_END = 4;
+        ArrayList<CellBroadcastChannel> channels = new ArrayList<CellBroadcastChannel>();
         Cursor c = null;
         try {
             if (DEBUG) Log.i(LOG_TAG, "queryFilters() before query");
@@ -496,11 +501,14 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
                     FILTER_CATEGORY);
             if (c != null) {
                 while (c.moveToNext()) {
+                    int category = c.getInt(INDEX_CATEGORY);
+                    int categoryEnd = c.isNull(INDEX_CATEGORY_END)
+                            ? category : c.getInt(INDEX_CATEGORY_END);
                     CellBroadcastChannel channel
                             = new CellBroadcastChannel(c.getInt(INDEX_ID),
-                            c.getInt(INDEX_CATEGORY), c.getString(INDEX_NAME),
+                            category, categoryEnd, c.getString(INDEX_NAME),
                             (c.getInt(INDEX_STAT) == 1/*true*/));
-                    mFilterArray.add(channel);
+                    channels.add(channel);
                 }
             }
         } catch (IllegalArgumentException e) {
@@ -512,6 +520,7 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
                 c.close();
             }
         }
+        mChannelRanges.load(channels);
         if (DEBUG) Log.d(LOG_TAG, "queryFilters end");
         return true;
     }
@@ -523,6 +532,7 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
         ContentValues cv = new ContentValues();
         cv.put(FILTER_NAME, channel.getChannelName());
         cv.put(FILTER_CATEGORY, channel.getChannelId());
+        cv.put(FILTER_CATEGORY_END, channel.getChannelIdEnd());
         cv.put(FILTER_STAT, channel.getChannelStatus());
         try {
             Uri uri = getContentResolver().insert(CB_CHANNEL_URI, cv);
@@ -537,56 +547,78 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
         return true;
     }
 
-    private boolean updateCbFilterToProvider(CellBroadcastChannel oldFilter,
-            CellBroadcastChannel newFilter) {
-        if (DEBUG) Log.d(LOG_TAG, "updateCbFilterToProvider start oldFilter =" + oldFilter);
-        ContentValues cv = new ContentValues();
-        cv.put(FILTER_ID, newFilter.getKeyId());
-        cv.put(FILTER_NAME, newFilter.getChannelName());
-        cv.put(FILTER_CATEGORY, newFilter.getChannelId());
-        cv.put(FILTER_STAT, Integer.valueOf(newFilter.getChannelStatus() ? 1 : 0));
-        String where = FILTER_ID + "=" + oldFilter.getKeyId();
+    /**
+     * Write the pending changes of the channel ranges with a single provider batch, so the
+     * provider only commits and notifies once. New ranges get their key id from the results.
+     * Rows are deleted first, so a merged or moved range never collides with their channel
+     * numbers; the provider replaces any other row holding the number of an updated range.
+     */
+    private boolean saveChannelRanges() {
+        if (!mChannelRanges.hasPendingChanges()) {
+            return true;
+        }
+        List<Integer> deletes = mChannelRanges.getPendingDeletes();
+        List<CellBroadcastChannel> updates = mChannelRanges.getPendingUpdates();
+        List<CellBroadcastChannel> inserts = mChannelRanges.getPendingInserts();
+        if (DEBUG) Log.d(LOG_TAG, "saveChannelRanges, deletes: " + deletes.size()
+                + ", updates: " + updates.size() + ", inserts: " + inserts.size());
+
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(
+                deletes.size() + updates.size() + inserts.size());
+        for (Integer keyId : deletes) {
+            ops.add(ContentProviderOperation.newDelete(CB_CHANNEL_URI)
+                    .withSelection(FILTER_ID + "=?", new String[] { String.valueOf(keyId) })
+                    .build());
+        }
+        for (CellBroadcastChannel channel : updates) {
+            ops.add(ContentProviderOperation.newUpdate(CB_CHANNEL_URI)
+                    .withSelection(FILTER_ID + "=?",
+                            new String[] { String.valueOf(channel.getKeyId()) })
+                    .withValues(getChannelValues(channel))
+                    .build());
+        }
+        int firstInsert = ops.size();
+        for (CellBroadcastChannel channel : inserts) {
+            ops.add(ContentProviderOperation.newInsert(CB_CHANNEL_URI)
+                    .withValues(getChannelValues(channel))
+                    .build());
+        }
         try {
-            int lines = this.getContentResolver().update(CB_CHANNEL_URI, cv, where, null);
-            if (oldFilter.getChannelStatus() ^ newFilter.getChannelStatus()) {
-                setFilterState(newFilter);
+            ContentProviderResult[] results = getContentResolver().applyBatch(
+                    CellBroadcastContentProvider.CB_AUTHORITY, ops);
+            for (int i = 0; i < inserts.size(); i++) {
+                Uri uri = results[firstInsert + i].uri;
+                if (uri != null) {
+                    inserts.get(i).setKeyId(Integer.valueOf(uri.getLastPathSegment()));
+                }
             }
-        } catch (IllegalArgumentException exception) {
+        } catch (RemoteException | OperationApplicationException
+                | IllegalArgumentException | SQLiteException exception) {
+            // the provider runs in this process, so its SQLiteExceptions reach us directly
+            if (DEBUG) Log.e(LOG_TAG, "saveChannelRanges (): " + exception);
             return false;
         }
-        if (DEBUG) Log.d(LOG_TAG, "updateCbFilterToProvider end newFilter =" + newFilter);
+        mChannelRanges.clearPendingChanges();
         return true;
     }
 
-    private boolean deleteChannelFromProvider(CellBroadcastChannel oldFilter) {
-        String where = FILTER_CATEGORY + "=" + oldFilter.getChannelId();
-        try {
-            getContentResolver().delete(CB_CHANNEL_URI, where, null);
-        } catch (IllegalArgumentException exception) {
-            return false;
-        }
-        return true;
+    private static ContentValues getChannelValues(CellBroadcastChannel channel) {
+        ContentValues cv = new ContentValues(4);
+        cv.put(FILTER_NAME, channel.getChannelName());
+        cv.put(FILTER_CATEGORY, channel.getChannelId());
+        cv.put(FILTER_CATEGORY_END, channel.getChannelIdEnd());
+        cv.put(FILTER_STAT, Integer.valueOf(channel.getChannelStatus() ? 1 : 0));
+        return cv;
     }
 
     private void setFilterState(CellBroadcastChannel newFilter) {
         //Set enable or disable filter
         if (newFilter.getChannelStatus()) {
-            SmsManager.getDefault().enableCellBroadcast(newFilter.getChannelId(),
-                    SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-        } else {
-            SmsManager.getDefault().disableCellBroadcast(newFilter.getChannelId(),
-                    SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
-        }
-    }
-
-    private void setFilterState(int cat, boolean isEnabled) {
-        //Set enable or disable filter
-        if (isEnabled) {
-            SmsManager.getDefault().enableCellBroadcast(cat,
-                    SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
+            SmsManager.getDefault().enableCellBroadcastRange(newFilter.getChannelId(),
+                    newFilter.getChannelIdEnd(), SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
         } else {
-            SmsManager.getDefault().disableCellBroadcast(cat,
-                    SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
+            SmsManager.getDefault().disableCellBroadcastRange(newFilter.getChannelId(),
+                    newFilter.getChannelIdEnd(), SmsManager.CELL_BROADCAST_RAN_TYPE_GSM);
         }
     }
 
@@ -595,45 +627,25 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
             return;
         }
 
+        String defaultName = getString(R.string.cb_default_new_channel_name);
         for (SmsBroadcastConfigInfo config : list) {
             if (mCbCustomizedAsyncTask.isCancelled()) {
                 break;
             }
             dumpCBConfigInfo(config);
-            updateFiltersWithSingleConfig(config);
+            if (config.getFromServiceId() != -1) {
+                // Apply the whole modem range at once: existing ranges are split where the
+                // state differs, and the gaps become new ranges.
+                mChannelRanges.setState(config.getFromServiceId(), config.getToServiceId(),
+                        config.isSelected(), defaultName);
+            }
         }
-    }
 
-    private void updateFiltersWithSingleConfig(SmsBroadcastConfigInfo config) {
-        int channelBeginIndex = config.getFromServiceId();
-        int channelEndIndex = config.getToServiceId();
-        boolean state = config.isSelected();
-        if (DEBUG) Log.d(LOG_TAG, "updateFiltersWithSingleConfig STATE = " + state);
-
-        if (channelBeginIndex != -1) {
-            for (int i = channelBeginIndex; i <= channelEndIndex; i++) {
-                if (mCbCustomizedAsyncTask.isCancelled()) {
-                    break;
-                }
-                String cat = String.valueOf(i);
-                CellBroadcastChannel channel = getFilterFromKey(cat);
-                if (channel != null) {
-                    channel.setChannelStatus(state);
-                } else {
-                    // Need to add a new filter.
-                    String name = getString(R.string.cb_default_new_channel_name) + cat;
-                    CellBroadcastChannel newFilter = new CellBroadcastChannel(i, name, state);
-                    if (!insertCbFilterToProvider(newFilter)) {
-                        onErrorFinish(mCBSwitchPreference, ERROR_FINISH_DIALOG);
-                    }
-                    mFilterArray.add(newFilter);
-                    mChannelFilterMap.put(cat, newFilter);
-                }
-            }
+        if (!saveChannelRanges()) {
+            onErrorFinish(mCBSwitchPreference, ERROR_FINISH_DIALOG);
         }
     }
 
-
     private void setCellBroadcastConfig() {
         if (DEBUG) Log.d(LOG_TAG, "setCellBroadcastConfig start");
         onStartConsume(mCBSwitchPreference, false);
@@ -651,38 +663,36 @@ public class CustomCellBroadcastSettingsActivity extends TimeConsumingPreference
         return true;
     }
 
-    private boolean isFilterNameValid(String input) {
-        if (input == null || input.length() == 0) {
-            input = "";
-        }
-        if (input.length() > FILTER_NAME_LENGTH) {
+    /* The last channel number is optional; when set it must not be below the first one */
+    private boolean isCategoryRangeValid(String from, String to) {
+        if (!isCategoryValid(from)) {
             return false;
         }
-        return true;
+        if (to == null || to.length() == 0) {
+            return true;
+        }
+        return isCategoryValid(to) && Integer.valueOf(to).intValue() >= Integer.valueOf(from);
     }
 
-    /* Check if newFilterId exist, which is not of keyId */
-    private boolean checkCategoryIdExist(int newFilterId, int keyId) {
-        for (CellBroadcastChannel tmpChannel : mFilterArray) {
-            int tempCatId = tmpChannel.getChannelId();
-            int tempKeyId = tmpChannel.getKeyId();
-            if (tempCatId == newFilterId && tempKeyId != keyId) {
-                return true;
-            }
+    private static int getCategoryRangeEnd(int from, String to) {
+        if (to == null || to.length() == 0) {
+            return from;
         }
-        return false;
+        return Integer.valueOf(to).intValue();
     }
 
-    private boolean checkCategoryIdExist(int cat) {
-        for (CellBroadcastChannel tmpChannel : mFilterArray) {
-            if (tmpChannel.getChannelId() == cat) {
-                return true;
-            }
-        }
-        return false;
+    private static String formatCategoryRange(int from, int to) {
+        return from == to ? String.valueOf(from) : from + "-" + to;
     }
-    private CellBroadcastChannel getFilterFromKey(String key) {
-        return mChannelFilterMap.get(key);
+
+    private boolean isFilterNameValid(String input) {
+        if (input == null || input.length() == 0) {
+            input = "";
+        }
+        if (input.length() > FILTER_NAME_LENGTH) {
+            return false;
+        }
+        return true;
     }
 
     private void requestInputPanel(Dialog dialog) {
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.test.AndroidTestCase;
+
+import com.android.cellbroadcastreceiver.CellBroadcastAlertScheduler.AlertRequest;
+
+/**
+ * Tests for the order in which overlapping alerts are played.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class com.android.cellbroadcastreceiver.CellBroadcastAlertSchedulerTests \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CellBroadcastAlertSchedulerTests extends AndroidTestCase {
+
+    private CellBroadcastAlertScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mScheduler = new CellBroadcastAlertScheduler();
+    }
+
+    private AlertRequest request(int priority, String body) {
+        return mScheduler.newRequest(priority, priority + ":" + body, 10500, body, "en", true,
+                true, false);
+    }
+
+    public void testTestAlertAfterPresidentialIsQueued() {
+        AlertRequest presidential = request(CellBroadcastAlertAudio.PRIORITY_PRESIDENTIAL,
+                "presidential");
+        AlertRequest test = request(CellBroadcastAlertAudio.PRIORITY_TEST, "monthly test");
+
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_PLAY,
+                mScheduler.schedule(presidential, null));
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_QUEUED,
+                mScheduler.schedule(test, "presidential"));
+        assertSame(presidential, mScheduler.getCurrentAlert());
+
+        assertSame(test, mScheduler.next());
+        assertNull(mScheduler.next());
+        assertNull(mScheduler.getCurrentAlert());
+    }
+
+    public void testPresidentialInterruptsTestAndResumesText() {
+        AlertRequest test = request(CellBroadcastAlertAudio.PRIORITY_TEST,
+                "This is a test. Nothing to do.");
+        AlertRequest presidential = request(CellBroadcastAlertAudio.PRIORITY_PRESIDENTIAL,
+                "presidential");
+
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_PLAY,
+                mScheduler.schedule(test, null));
+        // interrupted while speaking its second sentence
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_PLAY,
+                mScheduler.schedule(presidential, "Nothing to do."));
+        assertSame(presidential, mScheduler.getCurrentAlert());
+
+        // the test alert resumes its speech, without its sound
+        AlertRequest resumed = mScheduler.next();
+        assertEquals(test.mAlertKey, resumed.mAlertKey);
+        assertEquals("Nothing to do.", resumed.mResumeText);
+        assertEquals(test.mMessageBody, resumed.mMessageBody);
+        assertNull(mScheduler.next());
+    }
+
+    public void testInterruptedAlertWithNothingLeftIsNotResumed() {
+        AlertRequest test = request(CellBroadcastAlertAudio.PRIORITY_TEST, "test");
+        mScheduler.schedule(test, null);
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_PLAY, mScheduler.schedule(
+                request(CellBroadcastAlertAudio.PRIORITY_EXTREME, "extreme"), null));
+        assertNull(mScheduler.next());
+    }
+
+    public void testDuplicateKeyIsDropped() {
+        AlertRequest extreme = request(CellBroadcastAlertAudio.PRIORITY_EXTREME, "extreme");
+        AlertRequest amber = request(CellBroadcastAlertAudio.PRIORITY_AMBER, "amber");
+        mScheduler.schedule(extreme, null);
+        mScheduler.schedule(amber, null);
+
+        // repeats of the alert playing and of the alert queued
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_DROPPED, mScheduler.schedule(
+                request(CellBroadcastAlertAudio.PRIORITY_EXTREME, "extreme"), null));
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_DROPPED, mScheduler.schedule(
+                request(CellBroadcastAlertAudio.PRIORITY_AMBER, "amber"), null));
+
+        assertSame(extreme, mScheduler.getCurrentAlert());
+        assertSame(amber, mScheduler.next());
+        assertNull(mScheduler.next());
+    }
+
+    public void testSamePriorityPlaysInOrderOfArrival() {
+        AlertRequest first = request(CellBroadcastAlertAudio.PRIORITY_SEVERE, "first");
+        AlertRequest second = request(CellBroadcastAlertAudio.PRIORITY_SEVERE, "second");
+        AlertRequest third = request(CellBroadcastAlertAudio.PRIORITY_SEVERE, "third");
+        AlertRequest test = request(CellBroadcastAlertAudio.PRIORITY_TEST, "test");
+
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_PLAY,
+                mScheduler.schedule(first, null));
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_QUEUED,
+                mScheduler.schedule(test, "first"));
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_QUEUED,
+                mScheduler.schedule(second, "first"));
+        assertEquals(CellBroadcastAlertScheduler.SCHEDULE_QUEUED,
+                mScheduler.schedule(third, "first"));
+
+        assertSame(second, mScheduler.next());
+        assertSame(third, mScheduler.next());
+        assertSame(test, mScheduler.next());
+        assertNull(mScheduler.next());
+    }
+
+    public void testDismissingQueuedAlertKeepsCurrent() {
+        AlertRequest presidential = request(CellBroadcastAlertAudio.PRIORITY_PRESIDENTIAL,
+                "presidential");
+        AlertRequest test = request(CellBroadcastAlertAudio.PRIORITY_TEST, "test");
+        AlertRequest amber = request(CellBroadcastAlertAudio.PRIORITY_AMBER, "amber");
+        mScheduler.schedule(presidential, null);
+        mScheduler.schedule(test, "presidential");
+        mScheduler.schedule(amber, "presidential");
+
+        // the test alert is shown on top and dismissed first
+        assertEquals(CellBroadcastAlertScheduler.STOP_QUEUED, mScheduler.stop(test.mAlertKey));
+        assertSame(presidential, mScheduler.getCurrentAlert());
+        assertEquals(CellBroadcastAlertScheduler.STOP_NOT_FOUND,
+                mScheduler.stop(test.mAlertKey));
+
+        assertSame(amber, mScheduler.next());
+        assertNull(mScheduler.next());
+    }
+
+    public void testDismissingCurrentAlertPlaysNext() {
+        AlertRequest test = request(CellBroadcastAlertAudio.PRIORITY_TEST, "test");
+        AlertRequest presidential = request(CellBroadcastAlertAudio.PRIORITY_PRESIDENTIAL,
+                "presidential");
+        mScheduler.schedule(test, null);
+        mScheduler.schedule(presidential, "test");
+
+        assertEquals(CellBroadcastAlertScheduler.STOP_CURRENT,
+                mScheduler.stop(presidential.mAlertKey));
+        // the interrupted alert still resumes its speech
+        AlertRequest resumed = mScheduler.next();
+        assertEquals(test.mAlertKey, resumed.mAlertKey);
+        assertEquals("test", resumed.mResumeText);
+        assertNull(mScheduler.next());
+    }
+
+    public void testDismissingInterruptedAlertDropsItsResume() {
+        AlertRequest test = request(CellBroadcastAlertAudio.PRIORITY_TEST, "test");
+        AlertRequest presidential = request(CellBroadcastAlertAudio.PRIORITY_PRESIDENTIAL,
+                "presidential");
+        mScheduler.schedule(test, null);
+        mScheduler.schedule(presidential, "test");
+
+        assertEquals(CellBroadcastAlertScheduler.STOP_QUEUED, mScheduler.stop(test.mAlertKey));
+        assertSame(presidential, mScheduler.getCurrentAlert());
+        assertNull(mScheduler.next());
+    }
+
+    public void testStopWithoutKeyStopsCurrent() {
+        AlertRequest extreme = request(CellBroadcastAlertAudio.PRIORITY_EXTREME, "extreme");
+        AlertRequest severe = request(CellBroadcastAlertAudio.PRIORITY_SEVERE, "severe");
+        assertEquals(CellBroadcastAlertScheduler.STOP_NOT_FOUND, mScheduler.stop(null));
+        mScheduler.schedule(extreme, null);
+        mScheduler.schedule(severe, "extreme");
+
+        assertEquals(CellBroadcastAlertScheduler.STOP_CURRENT, mScheduler.stop(null));
+        assertSame(severe, mScheduler.next());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Tests for the pre-decoded attention signal.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class com.android.cellbroadcastreceiver.CellBroadcastAlertToneTests \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CellBroadcastAlertToneTests extends AndroidTestCase {
+
+    private static final String TAG = "CellBroadcastAlertToneTests";
+
+    /** Maximum time from play() to the first frame played. */
+    private static final long MAX_ONSET_MS = 50;
+
+    private static final long ONSET_TIMEOUT_MS = 1000;
+
+    private CellBroadcastAlertTone mTone;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mTone != null) {
+            mTone.release();
+            mTone = null;
+        }
+        super.tearDown();
+    }
+
+    /** Play the tone silently and return the time until its first frame is played. */
+    private long measureOnset() throws InterruptedException {
+        long start = SystemClock.elapsedRealtimeNanos();
+        assertTrue(mTone.play(0.0f));
+        try {
+            long deadline = SystemClock.elapsedRealtime() + ONSET_TIMEOUT_MS;
+            while (mTone.getPlaybackHeadPosition() == 0) {
+                assertTrue("tone didn't start", SystemClock.elapsedRealtime() < deadline);
+                Thread.sleep(1);
+            }
+            return (SystemClock.elapsedRealtimeNanos() - start) / 1000000;
+        } finally {
+            mTone.stop();
+        }
+    }
+
+    public void testToneOnsetLatency() throws Exception {
+        mTone = CellBroadcastAlertTone.load(getContext());
+        assertNotNull(mTone);
+
+        long first = measureOnset();
+        // the same track serves the next alert
+        long second = measureOnset();
+        Log.i(TAG, "attention signal onset: " + first + " ms, then " + second + " ms");
+        assertTrue("onset " + first + " ms", first < MAX_ONSET_MS);
+        assertTrue("onset " + second + " ms", second < MAX_ONSET_MS);
+    }
+}
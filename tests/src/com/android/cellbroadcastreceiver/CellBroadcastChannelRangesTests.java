@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for splitting and merging the custom channel ranges, and the changes recorded for
+ * the channel table.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class com.android.cellbroadcastreceiver.CellBroadcastChannelRangesTests \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CellBroadcastChannelRangesTests extends AndroidTestCase {
+
+    private static final String NEW_NAME = "New";
+
+    private CellBroadcastChannelRanges mRanges;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mRanges = new CellBroadcastChannelRanges();
+    }
+
+    private static CellBroadcastChannel range(int keyId, int from, int to, String name,
+            boolean enabled) {
+        return new CellBroadcastChannel(keyId, from, to, name, enabled);
+    }
+
+    private void load(CellBroadcastChannel... channels) {
+        mRanges.load(Arrays.asList(channels));
+    }
+
+    private static void assertRange(CellBroadcastChannel channel, int from, int to, String name,
+            boolean enabled) {
+        assertEquals(from, channel.getChannelId());
+        assertEquals(to, channel.getChannelIdEnd());
+        assertEquals(name, channel.getChannelName());
+        assertEquals(enabled, channel.getChannelStatus());
+    }
+
+    public void testSetStateSplitsRange() {
+        CellBroadcastChannel existing = range(1, 10, 20, "A", true);
+        load(existing);
+
+        mRanges.setState(13, 15, false, NEW_NAME);
+
+        assertEquals(3, mRanges.size());
+        assertSame(existing, mRanges.get(0));
+        assertRange(mRanges.get(0), 10, 12, "A", true);
+        assertRange(mRanges.get(1), 13, 15, "A", false);
+        assertRange(mRanges.get(2), 16, 20, "A", true);
+        assertSame(mRanges.get(1), mRanges.find(14));
+        assertSame(mRanges.get(2), mRanges.getByStart(16));
+
+        // the head stays in the existing row, the other parts are new rows
+        assertEquals(Arrays.asList(existing), mRanges.getPendingUpdates());
+        assertEquals(Arrays.asList(mRanges.get(1), mRanges.get(2)),
+                mRanges.getPendingInserts());
+        assertTrue(mRanges.getPendingDeletes().isEmpty());
+    }
+
+    public void testSetStateMergesAdjacentRanges() {
+        CellBroadcastChannel first = range(1, 10, 12, "A", true);
+        load(first, range(2, 13, 15, "A", false), range(3, 16, 20, "A", true));
+
+        mRanges.setState(13, 15, true, NEW_NAME);
+
+        assertEquals(1, mRanges.size());
+        assertSame(first, mRanges.get(0));
+        assertRange(first, 10, 20, "A", true);
+        assertEquals(Arrays.asList(first), mRanges.getPendingUpdates());
+        assertTrue(mRanges.getPendingInserts().isEmpty());
+        assertEquals(Arrays.asList(3, 2), mRanges.getPendingDeletes());
+    }
+
+    public void testNoMergeAcrossNamesOrGaps() {
+        load(range(1, 10, 12, "A", true), range(2, 13, 15, "B", true),
+                range(3, 17, 20, "B", true));
+
+        mRanges.setState(10, 12, true, NEW_NAME);
+
+        assertEquals(3, mRanges.size());
+        assertFalse(mRanges.hasPendingChanges());
+    }
+
+    public void testSetStateFillsGaps() {
+        CellBroadcastChannel existing = range(1, 10, 12, "A", false);
+        load(existing);
+
+        // a modem config covering the range and channels not in the table yet
+        mRanges.setState(5, 20, true, NEW_NAME);
+
+        assertEquals(3, mRanges.size());
+        assertRange(mRanges.get(0), 5, 9, NEW_NAME, true);
+        assertRange(mRanges.get(1), 10, 12, "A", true);
+        assertRange(mRanges.get(2), 13, 20, NEW_NAME, true);
+        assertEquals(Arrays.asList(existing), mRanges.getPendingUpdates());
+        assertEquals(Arrays.asList(mRanges.get(0), mRanges.get(2)),
+                mRanges.getPendingInserts());
+        assertTrue(mRanges.getPendingDeletes().isEmpty());
+        assertNull(mRanges.find(21));
+    }
+
+    public void testSetStateFillsGapBetweenRanges() {
+        load(range(1, 10, 12, NEW_NAME, true), range(2, 16, 20, NEW_NAME, true));
+
+        mRanges.setState(10, 20, true, NEW_NAME);
+
+        // the gap is filled, then all three are merged into the first row
+        assertEquals(1, mRanges.size());
+        assertRange(mRanges.get(0), 10, 20, NEW_NAME, true);
+        assertEquals(1, mRanges.get(0).getKeyId());
+        assertTrue(mRanges.getPendingInserts().isEmpty());
+        assertEquals(Arrays.asList(2), mRanges.getPendingDeletes());
+    }
+
+    public void testAddMergedRangeIsNotWritten() {
+        CellBroadcastChannel existing = range(1, 10, 12, "A", true);
+        load(existing);
+
+        mRanges.add(range(0, 13, 15, "A", true));
+
+        // the new range was merged before being inserted, so only the existing row changes
+        assertEquals(1, mRanges.size());
+        assertRange(existing, 10, 15, "A", true);
+        assertEquals(Arrays.asList(existing), mRanges.getPendingUpdates());
+        assertTrue(mRanges.getPendingInserts().isEmpty());
+        assertTrue(mRanges.getPendingDeletes().isEmpty());
+
+        mRanges.clearPendingChanges();
+        assertFalse(mRanges.hasPendingChanges());
+    }
+
+    public void testEditAndRemove() {
+        CellBroadcastChannel first = range(1, 10, 12, "A", true);
+        CellBroadcastChannel second = range(2, 20, 25, "A", true);
+        load(first, second);
+        assertTrue(mRanges.overlaps(11, 21, null));
+        assertFalse(mRanges.overlaps(13, 19, null));
+        assertFalse(mRanges.overlaps(13, 25, second));
+
+        // moving the second range next to the first merges them
+        mRanges.edit(second, "A", 13, 25, true);
+        assertEquals(1, mRanges.size());
+        assertRange(first, 10, 25, "A", true);
+        assertEquals(Arrays.asList(first), mRanges.getPendingUpdates());
+        assertEquals(Arrays.asList(2), mRanges.getPendingDeletes());
+
+        mRanges.remove(first);
+        assertEquals(0, mRanges.size());
+        assertTrue(mRanges.getPendingUpdates().isEmpty());
+        List<Integer> deletes = mRanges.getPendingDeletes();
+        assertEquals(Arrays.asList(2, 1), deletes);
+    }
+}
@@ -0,0 +1,1013 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbCmasInfo;
+import android.telephony.SmsCbLocation;
+import android.telephony.SmsCbMessage;
+import android.test.ProviderTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests and benchmarks for CellBroadcastContentProvider, run against an isolated database.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class com.android.cellbroadcastreceiver.CellBroadcastContentProviderTests \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CellBroadcastContentProviderTests
+        extends ProviderTestCase2<CellBroadcastContentProvider> {
+
+    private static final String TAG = "CellBroadcastContentProviderTests";
+
+    private static final int BENCHMARK_INSERTS = 500;
+    private static final int BENCHMARK_READERS = 2;
+    private static final int BENCHMARK_TABLE_ROWS = 50000;
+    private static final int BENCHMARK_QUERY_RUNS = 5;
+    private static final int SEARCH_BENCHMARK_ROWS = 100000;
+    private static final int EXPORT_BENCHMARK_ROWS = 100000;
+    private static final int FLOOD_INSERTS = 20;
+    private static final long FLOOD_INTERVAL = 100;
+
+    public CellBroadcastContentProviderTests() {
+        super(CellBroadcastContentProvider.class, CellBroadcastContentProvider.CB_AUTHORITY);
+    }
+
+    static CellBroadcastMessage createMessage(int serialNumber, String body) {
+        SmsCbMessage message = new SmsCbMessage(SmsCbMessage.MESSAGE_FORMAT_3GPP,
+                SmsCbMessage.GEOGRAPHICAL_SCOPE_PLMN_WIDE, serialNumber,
+                new SmsCbLocation("123456"), 4370, "en", body,
+                SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null, null);
+        return new CellBroadcastMessage(message);
+    }
+
+    /**
+     * Fill the provider's database directly, in one transaction. Every 100th row is a
+     * presidential alert, every 3rd has no CMAS class.
+     */
+    private void fillDatabase(int rows) {
+        // let the provider create the database first
+        queryCount();
+        SQLiteDatabase db = getMockContext().openOrCreateDatabase(
+                CellBroadcastDatabaseHelper.DATABASE_NAME, 0, null);
+        try {
+            SQLiteStatement insert = db.compileStatement("INSERT INTO "
+                    + CellBroadcastDatabaseHelper.TABLE_NAME + " ("
+                    + Telephony.CellBroadcasts.SERIAL_NUMBER + ","
+                    + Telephony.CellBroadcasts.SERVICE_CATEGORY + ","
+                    + CellBroadcastDatabaseHelper.BODY_ID + ","
+                    + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                    + Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS + ") VALUES (?,?,?,?,?)");
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < rows; i++) {
+                    insert.bindLong(1, i);
+                    insert.bindLong(2, 4370 + (i % 10));
+                    insert.bindLong(3, CellBroadcastDatabaseHelper.getBodyId(db,
+                            "benchmark message body " + i));
+                    insert.bindLong(4, 1000000L + i);
+                    if (i % 100 == 0) {
+                        insert.bindLong(5, SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT);
+                    } else if (i % 3 == 0) {
+                        insert.bindNull(5);
+                    } else {
+                        insert.bindLong(5, SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT);
+                    }
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insert.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    /** The presidential pin query as it was built before it took bound arguments. */
+    private static String legacyPresidentPinQuery(String[] projection, String selection,
+            String order) {
+        String columns = TextUtils.join(",", projection);
+        String table = CellBroadcastDatabaseHelper.VIEW_NAME;
+        String cmasClass = Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS;
+        return "SELECT * FROM (SELECT " + columns + " FROM " + table + " WHERE (" + selection
+                + ") AND " + cmasClass + " = 0 ORDER BY " + order + ") AS A UNION ALL "
+                + "SELECT * FROM (SELECT " + columns + " FROM " + table + " WHERE (" + selection
+                + ") AND " + cmasClass + " <> 0 ORDER BY " + order + ") AS B";
+    }
+
+    private static long[] readIds(Cursor c) {
+        try {
+            long[] ids = new long[c.getCount()];
+            int idColumn = c.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID);
+            for (int i = 0; c.moveToNext(); i++) {
+                ids[i] = c.getLong(idColumn);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    private int queryCount() {
+        Cursor c = getMockContentResolver().query(CellBroadcastContentProvider.CONTENT_URI,
+                new String[] { Telephony.CellBroadcasts._ID }, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testInsertMarkReadDelete() {
+        CellBroadcastContentProvider provider = getProvider();
+        CellBroadcastMessage message = createMessage(1, "test body");
+        assertTrue(provider.insertNewBroadcast(message));
+        assertEquals(1, queryCount());
+
+        Cursor c = getMockContentResolver().query(CellBroadcastContentProvider.CONTENT_URI,
+                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null, null);
+        long rowId;
+        try {
+            assertTrue(c.moveToFirst());
+            CellBroadcastMessage stored = CellBroadcastMessage.createFromCursor(c);
+            assertEquals("test body", stored.getMessageBody());
+            assertEquals(message.getDeliveryTime(), stored.getDeliveryTime());
+            assertFalse(stored.isRead());
+            rowId = c.getLong(c.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID));
+        } finally {
+            c.close();
+        }
+
+        assertTrue(provider.markBroadcastRead(Telephony.CellBroadcasts.DELIVERY_TIME,
+                message.getDeliveryTime()));
+        assertTrue(provider.deleteBroadcast(rowId));
+        assertFalse(provider.deleteBroadcast(rowId));
+        assertEquals(0, queryCount());
+    }
+
+    public void testCounts() {
+        CellBroadcastContentProvider provider = getProvider();
+        assertTrue(provider.insertNewBroadcast(createMessage(1, "first body")));
+        assertTrue(provider.insertNewBroadcast(createMessage(2, "second body")));
+        ContentResolver resolver = getMockContentResolver();
+        assertEquals(2, CellBroadcastContentProvider.getUnreadCount(resolver));
+
+        long[] ids = readIds(resolver.query(CellBroadcastContentProvider.CONTENT_URI,
+                new String[] { Telephony.CellBroadcasts._ID }, null, null, null));
+        assertTrue(provider.markBroadcastRead(Telephony.CellBroadcasts._ID, ids[0]));
+        Cursor c = resolver.query(CellBroadcastContentProvider.COUNTS_URI, new String[] {
+                CellBroadcastContentProvider.COUNT_TOTAL,
+                CellBroadcastContentProvider.COUNT_UNREAD },
+                Telephony.CellBroadcasts.SERVICE_CATEGORY + "=4370", null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(2, c.getInt(0));
+            assertEquals(1, c.getInt(1));
+        } finally {
+            c.close();
+        }
+
+        assertTrue(provider.deleteAllBroadcasts());
+        assertEquals(0, CellBroadcastContentProvider.getUnreadCount(resolver));
+    }
+
+    public void testDeleteOverLimitRemovesOldestFirst() {
+        CellBroadcastContentProvider provider = getProvider();
+        fillDatabase(20);
+
+        // category 4370 has serial numbers 0 and 10
+        assertEquals(1, provider.deleteBroadcastsOverLimit(4370, 1, 5));
+        assertEquals(0, provider.deleteBroadcastsOverLimit(4370, 1, 5));
+
+        // 19 rows left for 15: a batch of 3, then the last one
+        assertEquals(3, provider.deleteBroadcastsOverLimit(15, 3));
+        assertEquals(1, provider.deleteBroadcastsOverLimit(15, 3));
+        assertEquals(0, provider.deleteBroadcastsOverLimit(15, 3));
+
+        Cursor c = getMockContentResolver().query(CellBroadcastContentProvider.CONTENT_URI,
+                new String[] { Telephony.CellBroadcasts.SERIAL_NUMBER }, null, null,
+                Telephony.CellBroadcasts.DELIVERY_TIME + " ASC");
+        try {
+            assertEquals(15, c.getCount());
+            for (int serial = 5; c.moveToNext(); serial++) {
+                assertEquals(serial, c.getInt(0));
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testPresidentPinQueryOrder() {
+        fillDatabase(1000);
+        long[] ids = readIds(getMockContentResolver().query(
+                CellBroadcastContentProvider.PRESIDENT_PIN_URI,
+                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null,
+                Telephony.CellBroadcasts.DELIVERY_TIME + " DESC"));
+        // rows without a CMAS class are left out
+        assertEquals(1000 - 330, ids.length);
+        // the 10 presidential alerts come first, newest first
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1 + 100 * (9 - i), ids[i]);
+        }
+        assertTrue(ids[10] > ids[11]);
+
+        long[] selected = readIds(getMockContentResolver().query(
+                CellBroadcastContentProvider.PRESIDENT_PIN_URI,
+                Telephony.CellBroadcasts.QUERY_COLUMNS,
+                Telephony.CellBroadcasts.DELIVERY_TIME + ">?", new String[] { "1000499" },
+                Telephony.CellBroadcasts.DELIVERY_TIME + " ASC"));
+        assertEquals(501, selected[0]);
+        assertEquals(601, selected[1]);
+    }
+
+    public void testChangedRowUris() {
+        CellBroadcastContentProvider provider = getProvider();
+        CellBroadcastMessage message = createMessage(1, "test body");
+        assertTrue(provider.insertNewBroadcast(message));
+        ArrayList<Uri> uris = provider.takeChangedUris();
+        assertEquals(1, uris.size());
+        long rowId = ContentUris.parseId(uris.get(0));
+        assertEquals(ContentUris.withAppendedId(CellBroadcastContentProvider.INSERTED_URI,
+                rowId), uris.get(0));
+        assertNull(provider.takeChangedUris());
+
+        Uri rowUri = ContentUris.withAppendedId(CellBroadcastContentProvider.CONTENT_URI, rowId);
+        assertTrue(provider.markBroadcastRead(Telephony.CellBroadcasts.DELIVERY_TIME,
+                message.getDeliveryTime()));
+        assertEquals(Arrays.asList(rowUri), provider.takeChangedUris());
+
+        // already read: nothing to notify
+        assertTrue(provider.markBroadcastRead(Telephony.CellBroadcasts.DELIVERY_TIME,
+                message.getDeliveryTime()));
+        assertNull(provider.takeChangedUris());
+
+        assertTrue(provider.deleteBroadcast(rowId));
+        assertEquals(Arrays.asList(rowUri), provider.takeChangedUris());
+
+        assertTrue(provider.insertNewBroadcast(message));
+        provider.takeChangedUris();
+        assertTrue(provider.deleteAllBroadcasts());
+        assertEquals(Arrays.asList(CellBroadcastContentProvider.CONTENT_URI),
+                provider.takeChangedUris());
+    }
+
+    /**
+     * Return whether a change notified on {@code changed} reaches a cursor notified on
+     * {@code observed}: the content service notifies the URI itself, its ancestors, and the
+     * observers of its ancestors that watch descendants, as cursors do.
+     */
+    private static boolean reachesCursor(Uri observed, Uri changed) {
+        List<String> observedPath = observed.getPathSegments();
+        List<String> changedPath = changed.getPathSegments();
+        if (!TextUtils.equals(observed.getAuthority(), changed.getAuthority())) {
+            return false;
+        }
+        int common = Math.min(observedPath.size(), changedPath.size());
+        return observedPath.subList(0, common).equals(changedPath.subList(0, common));
+    }
+
+    public void testPresidentPinCursorSeesRowChanges() {
+        CellBroadcastContentProvider provider = getProvider();
+        Cursor pin = getMockContentResolver().query(
+                CellBroadcastContentProvider.PRESIDENT_PIN_URI,
+                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null, null);
+        try {
+            Uri observed = pin.getNotificationUri();
+            CellBroadcastMessage message = createMessage(1, "presidential body");
+            assertTrue(provider.insertNewBroadcast(message));
+            List<Uri> uris = provider.takeChangedUris();
+            assertTrue(provider.markBroadcastRead(Telephony.CellBroadcasts.DELIVERY_TIME,
+                    message.getDeliveryTime()));
+            uris.addAll(provider.takeChangedUris());
+            assertEquals(2, uris.size());
+            for (Uri uri : uris) {
+                assertTrue(uri + " not seen by " + observed, reachesCursor(observed, uri));
+            }
+            assertFalse(reachesCursor(CellBroadcastContentProvider.PRESIDENT_PIN_URI,
+                    uris.get(0)));
+        } finally {
+            pin.close();
+        }
+    }
+
+    /**
+     * Flood the provider with inserts, each followed by a change notification, and count the
+     * list queries the refresh coordinator lets through.
+     */
+    @LargeTest
+    public void testRefreshCoordinatorCoalescesFlood() throws Exception {
+        final long throttle = 500;
+        final AtomicInteger queries = new AtomicInteger();
+        final AtomicInteger lastCount = new AtomicInteger();
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        try {
+            Handler handler = new Handler(thread.getLooper());
+            final CellBroadcastRefreshCoordinator coordinator =
+                    new CellBroadcastRefreshCoordinator(thread.getLooper(), throttle,
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    queries.incrementAndGet();
+                                    lastCount.set(queryCount());
+                                }
+                            });
+            Runnable notifyChange = new Runnable() {
+                @Override
+                public void run() {
+                    coordinator.onChange();
+                }
+            };
+
+            long start = SystemClock.uptimeMillis();
+            for (int i = 0; i < FLOOD_INSERTS; i++) {
+                assertTrue(getProvider().insertNewBroadcast(createMessage(i, "flood " + i)));
+                handler.post(notifyChange);
+                SystemClock.sleep(FLOOD_INTERVAL);
+            }
+            long duration = SystemClock.uptimeMillis() - start;
+            SystemClock.sleep(throttle * 2);
+
+            Log.d(TAG, FLOOD_INSERTS + " inserts in " + duration + " ms: " + queries.get()
+                    + " queries");
+            // one query per interval, plus the first one and the one after the flood
+            assertTrue(queries.get() <= duration / throttle + 2);
+            assertTrue(queries.get() < FLOOD_INSERTS);
+            // the last refresh saw every insert
+            assertEquals(FLOOD_INSERTS, lastCount.get());
+        } finally {
+            thread.quit();
+        }
+    }
+
+    private long[] search(String text) {
+        return readIds(getMockContentResolver().query(
+                CellBroadcastContentProvider.getSearchUri(text, 100),
+                new String[] { Telephony.CellBroadcasts._ID }, null, null, null));
+    }
+
+    public void testSearch() {
+        CellBroadcastContentProvider provider = getProvider();
+        assertTrue(provider.insertNewBroadcast(createMessage(1, "Flash flood warning")));
+        assertTrue(provider.insertNewBroadcast(createMessage(2, "Flood watch: flood expected")));
+        assertTrue(provider.insertNewBroadcast(createMessage(3, "Tsunami warning OR test")));
+
+        // more matches rank first
+        long[] ids = search("flood");
+        assertEquals(2, ids.length);
+        assertEquals(2, ids[0]);
+        assertEquals(1, ids[1]);
+
+        // every word must match, as a word or its start
+        assertTrue(Arrays.equals(new long[] { 1 }, search("warn fl")));
+        // quotes and operators are searched for as text
+        assertTrue(Arrays.equals(new long[] { 3 }, search("\"or\" test")));
+        assertEquals(0, search("").length);
+
+        Cursor c = getMockContentResolver().query(
+                CellBroadcastContentProvider.getSearchUri("tsunami", 10),
+                new String[] { CellBroadcastContentProvider.SEARCH_SNIPPET,
+                        CellBroadcastContentProvider.SEARCH_RANK }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals("Tsunami warning OR test", c.getString(0));
+            assertEquals(1, c.getInt(1));
+        } finally {
+            c.close();
+        }
+
+        assertTrue(provider.deleteBroadcast(3));
+        assertEquals(0, search("tsunami").length);
+    }
+
+    public void testRepeatedBodiesAreStoredOnce() {
+        CellBroadcastContentProvider provider = getProvider();
+        for (int i = 0; i < 3; i++) {
+            assertTrue(provider.insertNewBroadcast(createMessage(i, "Area info 4370")));
+        }
+        assertTrue(provider.insertNewBroadcast(createMessage(3, "Area info 4371")));
+        assertEquals(3, search("4370").length);
+
+        Cursor c = getMockContentResolver().query(CellBroadcastContentProvider.CONTENT_URI,
+                new String[] { Telephony.CellBroadcasts.MESSAGE_BODY }, null, null,
+                Telephony.CellBroadcasts._ID);
+        try {
+            assertEquals(4, c.getCount());
+            c.moveToLast();
+            assertEquals("Area info 4371", c.getString(0));
+        } finally {
+            c.close();
+        }
+
+        SQLiteDatabase db = getMockContext().openOrCreateDatabase(
+                CellBroadcastDatabaseHelper.DATABASE_NAME, 0, null);
+        try {
+            String refCounts = "SELECT group_concat("
+                    + CellBroadcastDatabaseHelper.BODY_REF_COUNT + ") FROM (SELECT "
+                    + CellBroadcastDatabaseHelper.BODY_REF_COUNT + " FROM "
+                    + CellBroadcastDatabaseHelper.BODIES_TABLE + " ORDER BY 1)";
+            assertEquals("1,3", DatabaseUtils.stringForQuery(db, refCounts, null));
+
+            assertTrue(provider.deleteAllBroadcasts());
+            assertEquals(0, DatabaseUtils.queryNumEntries(db,
+                    CellBroadcastDatabaseHelper.BODIES_TABLE));
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Compare the full-text search with a LIKE scan of the message bodies of a 100k row
+     * table.
+     */
+    @LargeTest
+    public void testSearchBenchmark() {
+        fillDatabase(SEARCH_BENCHMARK_ROWS);
+        String[] projection = new String[] { Telephony.CellBroadcasts._ID };
+        long likeTime = 0;
+        long searchTime = 0;
+        for (int run = 0; run < BENCHMARK_QUERY_RUNS; run++) {
+            String word = String.valueOf(SEARCH_BENCHMARK_ROWS / 2 + run);
+            long start = SystemClock.elapsedRealtimeNanos();
+            long[] like = readIds(getMockContentResolver().query(
+                    CellBroadcastContentProvider.CONTENT_URI, projection,
+                    Telephony.CellBroadcasts.MESSAGE_BODY + " LIKE ?",
+                    new String[] { "% " + word }, null));
+            likeTime += SystemClock.elapsedRealtimeNanos() - start;
+
+            start = SystemClock.elapsedRealtimeNanos();
+            long[] found = search(word);
+            searchTime += SystemClock.elapsedRealtimeNanos() - start;
+            assertTrue(Arrays.equals(like, found));
+        }
+        Log.d(TAG, "search in " + SEARCH_BENCHMARK_ROWS + " rows: LIKE "
+                + likeTime / BENCHMARK_QUERY_RUNS / 1000 + " us, full-text "
+                + searchTime / BENCHMARK_QUERY_RUNS / 1000 + " us");
+        assertTrue(searchTime < likeTime);
+    }
+
+    public void testSummaryProjection() {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < CellBroadcastCursorAdapter.BODY_PREVIEW_LENGTH * 2) {
+            body.append("long message body ");
+        }
+        assertTrue(getProvider().insertNewBroadcast(createMessage(1, body.toString())));
+
+        Cursor c = getMockContentResolver().query(CellBroadcastContentProvider.CONTENT_URI,
+                CellBroadcastCursorAdapter.SUMMARY_COLUMNS, null, null, null);
+        long rowId;
+        try {
+            assertTrue(c.moveToFirst());
+            String preview = c.getString(
+                    c.getColumnIndexOrThrow(Telephony.CellBroadcasts.MESSAGE_BODY));
+            assertEquals(body.substring(0, CellBroadcastCursorAdapter.BODY_PREVIEW_LENGTH),
+                    preview);
+            assertTrue(c.isNull(
+                    c.getColumnIndexOrThrow(Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS)));
+            rowId = c.getLong(c.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID));
+        } finally {
+            c.close();
+        }
+
+        // the full broadcast is read by row ID when it is opened
+        c = getMockContentResolver().query(ContentUris.withAppendedId(
+                CellBroadcastContentProvider.CONTENT_URI, rowId),
+                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(body.toString(),
+                    CellBroadcastMessage.createFromCursor(c).getMessageBody());
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Read every row through pages of {@code pageSize} and return the ids in order. */
+    private long[] readPages(int pageSize, boolean ascending) {
+        long[] ids = new long[0];
+        Uri uri = CellBroadcastContentProvider.getPageUri(pageSize, ascending);
+        while (true) {
+            Cursor c = getMockContentResolver().query(uri, Telephony.CellBroadcasts.QUERY_COLUMNS,
+                    null, null, null);
+            try {
+                assertTrue(c.getCount() <= pageSize);
+                if (!c.moveToLast()) {
+                    return ids;
+                }
+                long lastTime = c.getLong(c.getColumnIndexOrThrow(
+                        Telephony.CellBroadcasts.DELIVERY_TIME));
+                long lastId = c.getLong(c.getColumnIndexOrThrow(Telephony.CellBroadcasts._ID));
+                uri = CellBroadcastContentProvider.getPageUri(pageSize, ascending, lastTime,
+                        lastId);
+                c.moveToPosition(-1);
+                long[] page = readIds(c);
+                long[] all = Arrays.copyOf(ids, ids.length + page.length);
+                System.arraycopy(page, 0, all, ids.length, page.length);
+                ids = all;
+            } finally {
+                c.close();
+            }
+        }
+    }
+
+    public void testKeysetPagination() {
+        fillDatabase(1000);
+        // broadcasts received in the same millisecond are ordered by id
+        for (int i = 0; i < 5; i++) {
+            assertTrue(getProvider().insertNewBroadcast(createMessage(i, "same time")));
+        }
+
+        long[] descending = readPages(64, false);
+        assertEquals(1005, descending.length);
+        for (int i = 1; i < descending.length; i++) {
+            assertTrue(descending[i - 1] > descending[i]);
+        }
+
+        long[] ascending = readPages(64, true);
+        assertEquals(1005, ascending.length);
+        for (int i = 1; i < ascending.length; i++) {
+            assertTrue(ascending[i - 1] < ascending[i]);
+        }
+    }
+
+    /**
+     * Compare the presidential pin query with the string-built query it replaced on a 50k
+     * row table: time to the first window of rows and to read the whole cursor.
+     */
+    @LargeTest
+    public void testPresidentPinQueryBenchmark() {
+        fillDatabase(BENCHMARK_TABLE_ROWS);
+        final String[] projection = Telephony.CellBroadcasts.QUERY_COLUMNS;
+        final String order = Telephony.CellBroadcasts.DELIVERY_TIME + " DESC";
+        final String selection = Telephony.CellBroadcasts.DELIVERY_TIME + ">?";
+        CellBroadcastContentProvider provider = getProvider();
+        SQLiteDatabase db = getMockContext().openOrCreateDatabase(
+                CellBroadcastDatabaseHelper.DATABASE_NAME, 0, null);
+        try {
+            long legacyFirst = 0;
+            long legacyAll = 0;
+            long pinFirst = 0;
+            long pinAll = 0;
+            for (int run = 0; run < BENCHMARK_QUERY_RUNS; run++) {
+                // a different cutoff per run, as the list would pass on each reload
+                String cutoff = String.valueOf(1000000L + run);
+
+                long start = SystemClock.elapsedRealtimeNanos();
+                Cursor legacy = db.rawQuery(legacyPresidentPinQuery(projection,
+                        Telephony.CellBroadcasts.DELIVERY_TIME + ">" + cutoff, order), null);
+                legacy.moveToFirst();
+                legacyFirst += SystemClock.elapsedRealtimeNanos() - start;
+                long[] legacyIds = readIds(legacy);
+                legacyAll += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                Cursor pin = provider.query(CellBroadcastContentProvider.PRESIDENT_PIN_URI,
+                        projection, selection, new String[] { cutoff }, order);
+                pin.moveToFirst();
+                pinFirst += SystemClock.elapsedRealtimeNanos() - start;
+                long[] pinIds = readIds(pin);
+                pinAll += SystemClock.elapsedRealtimeNanos() - start;
+
+                assertTrue(Arrays.equals(legacyIds, pinIds));
+            }
+            Log.i(TAG, "president pin query on " + BENCHMARK_TABLE_ROWS + " rows, mean of "
+                    + BENCHMARK_QUERY_RUNS + " runs: legacy first window "
+                    + (legacyFirst / BENCHMARK_QUERY_RUNS / 1000) + "us, all rows "
+                    + (legacyAll / BENCHMARK_QUERY_RUNS / 1000) + "us; bound first window "
+                    + (pinFirst / BENCHMARK_QUERY_RUNS / 1000) + "us, all rows "
+                    + (pinAll / BENCHMARK_QUERY_RUNS / 1000) + "us");
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Measure insertNewBroadcast() latency while other threads keep running the list query.
+     */
+    @LargeTest
+    public void testInsertLatencyUnderConcurrentReads() throws Exception {
+        final CellBroadcastContentProvider provider = getProvider();
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicInteger reads = new AtomicInteger();
+        Thread[] readers = new Thread[BENCHMARK_READERS];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread("reader" + i) {
+                @Override
+                public void run() {
+                    while (running.get()) {
+                        Cursor c = provider.query(CellBroadcastContentProvider.CONTENT_URI,
+                                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null, null);
+                        try {
+                            while (c.moveToNext()) {
+                                c.getString(c.getColumnIndexOrThrow(
+                                        Telephony.CellBroadcasts.MESSAGE_BODY));
+                            }
+                        } finally {
+                            c.close();
+                        }
+                        reads.incrementAndGet();
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        long[] latencies = new long[BENCHMARK_INSERTS];
+        try {
+            for (int i = 0; i < BENCHMARK_INSERTS; i++) {
+                CellBroadcastMessage message = createMessage(i, "benchmark message " + i);
+                long start = SystemClock.elapsedRealtimeNanos();
+                provider.insertNewBroadcast(message);
+                latencies[i] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+        } finally {
+            running.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+
+        assertEquals(BENCHMARK_INSERTS, queryCount());
+        Arrays.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        Log.i(TAG, "insert latency with " + BENCHMARK_READERS + " readers (" + reads.get()
+                + " list queries): mean " + (total / latencies.length / 1000) + "us, p50 "
+                + (latencies[latencies.length / 2] / 1000) + "us, p95 "
+                + (latencies[latencies.length * 95 / 100] / 1000) + "us, max "
+                + (latencies[latencies.length - 1] / 1000) + "us");
+    }
+
+    public void testChannelSnapshotMatchesTable() {
+        CellBroadcastDatabaseHelper helper = new CellBroadcastDatabaseHelper(getMockContext(),
+                null, false);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            int[] numbers = { 4383, 50, 919 };
+            for (int number : numbers) {
+                ContentValues cv = new ContentValues();
+                cv.put("name", "channel " + number);
+                cv.put("number", number);
+                cv.put("number_end", number == 919 ? 999 : number);
+                cv.put("enable", number != 50);
+                db.insert(CellBroadcastDatabaseHelper.CHANNEL_TABLE, null, cv);
+            }
+            String[] projection = { "number", "enable", "number_end", "name" };
+            CellBroadcastContentProvider.ChannelSnapshot snapshot =
+                    CellBroadcastContentProvider.ChannelSnapshot.read(db, 7);
+            assertEquals(7, snapshot.mVersion);
+
+            Cursor expected = db.query(CellBroadcastDatabaseHelper.CHANNEL_TABLE, projection,
+                    null, null, null, null, "number");
+            Cursor actual = snapshot.query(projection);
+            try {
+                assertEquals(numbers.length, actual.getCount());
+                assertEquals(Arrays.asList(projection), Arrays.asList(actual.getColumnNames()));
+                while (expected.moveToNext()) {
+                    assertTrue(actual.moveToNext());
+                    assertEquals(expected.getInt(0), actual.getInt(0));
+                    assertEquals(expected.getInt(1), actual.getInt(1));
+                    assertEquals(expected.getInt(2), actual.getInt(2));
+                    assertEquals(expected.getString(3), actual.getString(3));
+                }
+            } finally {
+                expected.close();
+                actual.close();
+            }
+
+            // a column the snapshot doesn't have is left to SQLite
+            assertNull(snapshot.query(new String[] { "count(*)" }));
+            Cursor all = snapshot.query(null);
+            try {
+                assertEquals(5, all.getColumnCount());
+                assertTrue(all.moveToFirst());
+                assertEquals(50, all.getInt(all.getColumnIndexOrThrow("number")));
+            } finally {
+                all.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    public void testChannelUpdateReplacesStaleNumber() throws Exception {
+        Uri channelUri = Uri.parse("content://cellbroadcasts/channel/");
+        ContentValues cv = new ContentValues();
+        cv.put("name", "stale");
+        cv.put("number", 10);
+        getMockContentResolver().insert(channelUri, cv);
+        cv.put("name", "moved");
+        cv.put("number", 20);
+        Uri moved = getMockContentResolver().insert(channelUri, cv);
+
+        // move the second range onto the number of a row left behind in the table
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        ops.add(ContentProviderOperation.newUpdate(channelUri)
+                .withSelection("_id=?", new String[] { moved.getLastPathSegment() })
+                .withValue("number", 10)
+                .withValue("number_end", 15)
+                .build());
+        getProvider().applyBatch(ops);
+
+        Cursor c = getMockContentResolver().query(channelUri,
+                new String[] { "name", "number", "number_end" }, null, null, "number");
+        try {
+            assertEquals(1, c.getCount());
+            assertTrue(c.moveToFirst());
+            assertEquals("moved", c.getString(0));
+            assertEquals(10, c.getInt(1));
+            assertEquals(15, c.getInt(2));
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Uri getExportUri(String format) {
+        return CellBroadcastContentProvider.EXPORT_URI.buildUpon()
+                .appendQueryParameter(CellBroadcastContentProvider.QUERY_PARAMETER_FORMAT,
+                        format)
+                .build();
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /** Read a binary export, checking its columns, and return the message bodies. */
+    private static List<String> readBinaryExport(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        try {
+            String[] columns = new String[data.readInt()];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = new String(readBytes(data), StandardCharsets.UTF_8);
+            }
+            assertEquals(Arrays.asList(CellBroadcastContentProvider.EXPORT_COLUMNS),
+                    Arrays.asList(columns));
+            int bodyColumn = Arrays.asList(columns).indexOf(
+                    Telephony.CellBroadcasts.MESSAGE_BODY);
+
+            List<String> bodies = new ArrayList<String>();
+            int type;
+            while ((type = data.read()) >= 0) {
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0) {
+                        type = data.readUnsignedByte();
+                    }
+                    switch (type) {
+                        case Cursor.FIELD_TYPE_NULL:
+                            break;
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            data.readLong();
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            data.readDouble();
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            String value = new String(readBytes(data), StandardCharsets.UTF_8);
+                            if (i == bodyColumn) {
+                                bodies.add(value);
+                            }
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            readBytes(data);
+                            break;
+                        default:
+                            fail("unknown field type " + type);
+                    }
+                }
+            }
+            return bodies;
+        } finally {
+            data.close();
+        }
+    }
+
+    public void testExport() throws IOException {
+        CellBroadcastContentProvider provider = getProvider();
+        String quoted = "say \"hi\", then\nleave";
+        assertTrue(provider.insertNewBroadcast(createMessage(1, "plain")));
+        assertTrue(provider.insertNewBroadcast(createMessage(2, quoted)));
+        ContentResolver resolver = getMockContentResolver();
+
+        assertEquals("text/csv", resolver.getType(CellBroadcastContentProvider.EXPORT_URI));
+        InputStream in = resolver.openInputStream(CellBroadcastContentProvider.EXPORT_URI);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[1024];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                bytes.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        String csv = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue(csv, csv.startsWith(TextUtils.join(",",
+                CellBroadcastContentProvider.EXPORT_COLUMNS) + "\r\n"));
+        assertTrue(csv, csv.contains(",plain\r\n"));
+        assertTrue(csv, csv.endsWith(",\"say \"\"hi\"\", then\nleave\"\r\n"));
+
+        Uri binaryUri = getExportUri(CellBroadcastContentProvider.EXPORT_FORMAT_BINARY);
+        assertEquals("application/octet-stream", resolver.getType(binaryUri));
+        assertEquals(Arrays.asList("plain", quoted),
+                readBinaryExport(resolver.openInputStream(binaryUri)));
+    }
+
+    /** Time the export of a large history in both formats. */
+    @LargeTest
+    public void testExportThroughput() throws IOException {
+        fillDatabase(EXPORT_BENCHMARK_ROWS);
+        ContentResolver resolver = getMockContentResolver();
+
+        long start = SystemClock.elapsedRealtime();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                resolver.openInputStream(getExportUri(
+                        CellBroadcastContentProvider.EXPORT_FORMAT_CSV)),
+                StandardCharsets.UTF_8));
+        int lines = 0;
+        try {
+            while (reader.readLine() != null) {
+                lines++;
+            }
+        } finally {
+            reader.close();
+        }
+        long csvTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(EXPORT_BENCHMARK_ROWS + 1, lines);
+
+        start = SystemClock.elapsedRealtime();
+        List<String> bodies = readBinaryExport(resolver.openInputStream(
+                getExportUri(CellBroadcastContentProvider.EXPORT_FORMAT_BINARY)));
+        long binaryTime = SystemClock.elapsedRealtime() - start;
+        assertEquals(EXPORT_BENCHMARK_ROWS, bodies.size());
+        assertEquals("benchmark message body 0", bodies.get(0));
+
+        Log.i(TAG, "export of " + EXPORT_BENCHMARK_ROWS + " rows: CSV " + csvTime + " ms ("
+                + EXPORT_BENCHMARK_ROWS / Math.max(csvTime, 1) + " rows/ms), binary "
+                + binaryTime + " ms (" + EXPORT_BENCHMARK_ROWS / Math.max(binaryTime, 1)
+                + " rows/ms)");
+    }
+
+    public void testOperationQueueBatchesAndReports() throws Exception {
+        HandlerThread batchThread = new HandlerThread("batch");
+        HandlerThread callbackThread = new HandlerThread("callback");
+        batchThread.start();
+        callbackThread.start();
+        final Looper callbackLooper = callbackThread.getLooper();
+        final AtomicInteger batches = new AtomicInteger();
+        final CellBroadcastOperationQueue queue = new CellBroadcastOperationQueue(
+                getMockContentResolver(), batchThread.getLooper(), new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        batches.incrementAndGet();
+                        command.run();
+                    }
+                });
+        final boolean[] results = new boolean[3];
+        final CountDownLatch done = new CountDownLatch(results.length);
+        final AtomicBoolean badReport = new AtomicBoolean();
+        try {
+            // submitted during one pass of the batch looper
+            new Handler(batchThread.getLooper()).post(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < results.length; i++) {
+                        final int index = i;
+                        queue.submit(new CellBroadcastContentProvider.CellBroadcastOperation() {
+                            @Override
+                            public boolean execute(CellBroadcastContentProvider provider) {
+                                return index < 2 && provider.insertNewBroadcast(
+                                        createMessage(index, "queued " + index));
+                            }
+                        }, new CellBroadcastOperationQueue.Callback() {
+                            @Override
+                            public void onOperationComplete(boolean changed, long queueMillis,
+                                    long executeMillis) {
+                                if (Looper.myLooper() != callbackLooper || queueMillis < 0
+                                        || executeMillis < 0) {
+                                    badReport.set(true);
+                                }
+                                results[index] = changed;
+                                done.countDown();
+                            }
+                        }, callbackLooper);
+                    }
+                }
+            });
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            batchThread.quitSafely();
+            callbackThread.quitSafely();
+        }
+        assertFalse(badReport.get());
+        assertEquals(1, batches.get());
+        assertTrue(results[0]);
+        assertTrue(results[1]);
+        assertFalse(results[2]);
+        assertEquals(2, queryCount());
+    }
+
+    public void testOperationQueueContinuesAfterFailure() throws Exception {
+        HandlerThread batchThread = new HandlerThread("batch");
+        batchThread.start();
+        final Looper batchLooper = batchThread.getLooper();
+        final CellBroadcastOperationQueue queue = new CellBroadcastOperationQueue(
+                getMockContentResolver(), batchLooper, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                });
+        final boolean[] results = new boolean[3];
+        final CountDownLatch done = new CountDownLatch(results.length);
+        try {
+            new Handler(batchLooper).post(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < results.length; i++) {
+                        final int index = i;
+                        queue.submit(new CellBroadcastContentProvider.CellBroadcastOperation() {
+                            @Override
+                            public boolean execute(CellBroadcastContentProvider provider) {
+                                if (index == 1) {
+                                    throw new IllegalStateException("failed operation");
+                                }
+                                return provider.insertNewBroadcast(
+                                        createMessage(index, "queued " + index));
+                            }
+                        }, new CellBroadcastOperationQueue.Callback() {
+                            @Override
+                            public void onOperationComplete(boolean changed, long queueMillis,
+                                    long executeMillis) {
+                                results[index] = changed;
+                                done.countDown();
+                            }
+                        }, batchLooper);
+                    }
+                }
+            });
+            // the failed operation is reported, and the rest of its batch still runs
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+        } finally {
+            batchThread.quitSafely();
+        }
+        assertTrue(results[0]);
+        assertFalse(results[1]);
+        assertTrue(results[2]);
+        assertEquals(2, queryCount());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.database.MatrixCursor;
+import android.graphics.Typeface;
+import android.provider.Telephony;
+import android.telephony.SmsCbCmasInfo;
+import android.telephony.SmsCbMessage;
+import android.test.AndroidTestCase;
+import android.widget.FrameLayout;
+import android.widget.TextView;
+
+/**
+ * Tests for binding list items from the summary columns.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class com.android.cellbroadcastreceiver.CellBroadcastCursorAdapterTests \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CellBroadcastCursorAdapterTests extends AndroidTestCase {
+
+    /** The names of the summary columns, as returned by the provider. */
+    private static final String[] COLUMN_NAMES = {
+            Telephony.CellBroadcasts._ID,
+            Telephony.CellBroadcasts.SERVICE_CATEGORY,
+            Telephony.CellBroadcasts.MESSAGE_PRIORITY,
+            Telephony.CellBroadcasts.ETWS_WARNING_TYPE,
+            Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS,
+            Telephony.CellBroadcasts.DELIVERY_TIME,
+            Telephony.CellBroadcasts.MESSAGE_READ,
+            Telephony.CellBroadcasts.MESSAGE_BODY,
+    };
+
+    private static MatrixCursor createCursor(boolean read) {
+        MatrixCursor cursor = new MatrixCursor(COLUMN_NAMES);
+        cursor.addRow(new Object[] { 7L, 4370, SmsCbMessage.MESSAGE_PRIORITY_EMERGENCY, null,
+                SmsCbCmasInfo.CMAS_CLASS_PRESIDENTIAL_LEVEL_ALERT, 1000000L, read ? 1 : 0,
+                "preview" });
+        return cursor;
+    }
+
+    private static boolean isBold(TextView view) {
+        Typeface typeface = view.getTypeface();
+        return typeface != null && typeface.isBold();
+    }
+
+    public void testBindOnlyUpdatesReadState() {
+        CellBroadcastCursorAdapter adapter = new CellBroadcastCursorAdapter(getContext(),
+                createCursor(false));
+        FrameLayout parent = new FrameLayout(getContext());
+        CellBroadcastListItem item = (CellBroadcastListItem) adapter.getView(0, null, parent);
+        TextView channel = (TextView) item.findViewById(R.id.channel);
+        TextView message = (TextView) item.findViewById(R.id.message);
+
+        assertEquals(7L, item.getMessageId());
+        assertEquals(getContext().getString(R.string.cmas_presidential_level_alert),
+                channel.getText().toString());
+        assertEquals("preview", message.getText().toString());
+        assertTrue(isBold(message));
+
+        // a reload with the broadcast marked read reuses the view and keeps its text
+        CharSequence title = channel.getText();
+        adapter.changeCursor(createCursor(true));
+        assertSame(item, adapter.getView(0, item, parent));
+        assertSame(title, channel.getText());
+        assertFalse(isBold(message));
+        adapter.changeCursor(null);
+    }
+}
@@ -0,0 +1,684 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.telephony.CellBroadcastMessage;
+import android.telephony.SmsCbCmasInfo;
+import android.telephony.SmsCbEtwsInfo;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.telephony.gsm.SmsCbConstants;
+
+import java.util.Arrays;
+
+/**
+ * Tests for the schema of the cell broadcast database, run against in-memory databases.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class com.android.cellbroadcastreceiver.CellBroadcastDatabaseHelperTests \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CellBroadcastDatabaseHelperTests extends AndroidTestCase {
+
+    private static final String TAG = "CellBroadcastDatabaseHelperTests";
+
+    private static final String TABLE = CellBroadcastDatabaseHelper.TABLE_NAME;
+
+    private static final String UPGRADE_DATABASE_NAME = "upgrade_test.db";
+
+    private static final int UPGRADE_BENCHMARK_ROWS = 10000;
+
+    private static final int SIZE_BENCHMARK_ROWS = 10000;
+
+    private static final String PROFILE_DATABASE_NAME = "profile_test.db";
+    private static final int PROFILE_BENCHMARK_ROWS = 20000;
+    private static final int PROFILE_BENCHMARK_RUNS = 3;
+    private static final int SIZE_BENCHMARK_BODIES = 20;
+
+    private CellBroadcastDatabaseHelper mHelper;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mHelper != null) {
+            mHelper.close();
+            mHelper = null;
+        }
+        getContext().deleteDatabase(UPGRADE_DATABASE_NAME);
+        getContext().deleteDatabase(PROFILE_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    private SQLiteDatabase openDatabase(boolean duplicateCheckDeletedRecords) {
+        mHelper = new CellBroadcastDatabaseHelper(getContext(), null,
+                duplicateCheckDeletedRecords);
+        return mHelper.getWritableDatabase();
+    }
+
+    /**
+     * Fail if the plan of {@code sql} reads the broadcasts table without an index, and
+     * return the plan.
+     */
+    private static String assertNoFullScan(SQLiteDatabase db, String sql, String... args) {
+        StringBuilder plan = new StringBuilder();
+        Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detailColumn = c.getColumnIndexOrThrow("detail");
+            while (c.moveToNext()) {
+                String detail = c.getString(detailColumn);
+                plan.append(detail).append('\n');
+                if (detail.startsWith("SCAN") && detail.contains(TABLE)
+                        && !detail.contains("INDEX")) {
+                    fail("full table scan for " + sql + ": " + detail);
+                }
+            }
+        } finally {
+            c.close();
+        }
+        Log.d(TAG, sql + "\n" + plan);
+        return plan.toString();
+    }
+
+    private static void assertUsesIndex(String plan, String index) {
+        assertTrue("expected " + index + " in plan: " + plan, plan.contains(index));
+    }
+
+    public void testListQueryWithDeletedRecordsUsesIndex() {
+        SQLiteDatabase db = openDatabase(true);
+        String plan = assertNoFullScan(db, "SELECT "
+                + TextUtils.join(",", Telephony.CellBroadcasts.QUERY_COLUMNS) + " FROM "
+                + CellBroadcastDatabaseHelper.VIEW_NAME + " WHERE " + Telephony.CellBroadcasts.MESSAGE_DELETED + "=0 ORDER BY "
+                + Telephony.CellBroadcasts.DELIVERY_TIME + " ASC");
+        assertUsesIndex(plan, "deletedDeliveryTimeIndex");
+        assertFalse(plan.contains("TEMP B-TREE"));
+    }
+
+    public void testPresidentialPinQueryUsesIndex() {
+        SQLiteDatabase db = openDatabase(false);
+        String plan = assertNoFullScan(db, CellBroadcastContentProvider.buildPresidentPinQuery(
+                Telephony.CellBroadcasts.QUERY_COLUMNS, null,
+                Telephony.CellBroadcasts.DELIVERY_TIME + " DESC"));
+        assertUsesIndex(plan, "cmasClassDeliveryTimeIndex");
+        assertFalse(plan.contains("TEMP B-TREE"));
+    }
+
+    public void testPresidentialPinQueryWithDeletedRecordsUsesIndex() {
+        SQLiteDatabase db = openDatabase(true);
+        String plan = assertNoFullScan(db, CellBroadcastContentProvider.buildPresidentPinQuery(
+                Telephony.CellBroadcasts.QUERY_COLUMNS,
+                Telephony.CellBroadcasts.MESSAGE_DELETED + "=0",
+                Telephony.CellBroadcasts.DELIVERY_TIME + " ASC"));
+        assertFalse(plan.contains("TEMP B-TREE"));
+    }
+
+    public void testMarkReadByDeliveryTimeUsesIndex() {
+        SQLiteDatabase db = openDatabase(false);
+        String plan = assertNoFullScan(db, "UPDATE " + TABLE + " SET "
+                + Telephony.CellBroadcasts.MESSAGE_READ + "=1 WHERE "
+                + Telephony.CellBroadcasts.DELIVERY_TIME + "=?", "0");
+        assertUsesIndex(plan, "deliveryTimeDuplicateIndex");
+    }
+
+    public void testDeletedRecordsWritesUseIndex() {
+        SQLiteDatabase db = openDatabase(true);
+        // the maintenance job's purge, one batch at a time
+        String plan = assertNoFullScan(db, "DELETE FROM " + TABLE + " WHERE "
+                + Telephony.CellBroadcasts._ID + " IN (SELECT " + Telephony.CellBroadcasts._ID
+                + " FROM " + TABLE + " WHERE " + Telephony.CellBroadcasts.MESSAGE_DELETED
+                + "=1 AND " + Telephony.CellBroadcasts.DELIVERY_TIME + "<? ORDER BY "
+                + Telephony.CellBroadcasts.DELIVERY_TIME + " LIMIT ?)", "0", "200");
+        assertUsesIndex(plan, "deletedDeliveryTimeIndex");
+        assertFalse(plan.contains("TEMP B-TREE"));
+        // the user deleting everything
+        plan = assertNoFullScan(db, "UPDATE " + TABLE + " SET "
+                + Telephony.CellBroadcasts.MESSAGE_DELETED + "=1 WHERE "
+                + Telephony.CellBroadcasts.MESSAGE_DELETED + "=0");
+        assertUsesIndex(plan, "deletedDeliveryTimeIndex");
+    }
+
+    public void testDuplicateCheckQueryUsesIndex() {
+        SQLiteDatabase db = openDatabase(false);
+        String plan = assertNoFullScan(db, "SELECT " + Telephony.CellBroadcasts.PLMN + ","
+                + Telephony.CellBroadcasts.LAC + "," + Telephony.CellBroadcasts.CID + ","
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                + Telephony.CellBroadcasts.SERVICE_CATEGORY + ","
+                + Telephony.CellBroadcasts.SERIAL_NUMBER + ","
+                + Telephony.CellBroadcasts.MESSAGE_BODY + " FROM " + TABLE + " WHERE "
+                + Telephony.CellBroadcasts.DELIVERY_TIME + ">? ORDER BY "
+                + Telephony.CellBroadcasts.DELIVERY_TIME + " DESC", "0");
+        assertUsesIndex(plan, "deliveryTimeDuplicateIndex");
+        assertFalse(plan.contains("TEMP B-TREE"));
+    }
+
+    public void testSearchQueryUsesFullTextIndex() {
+        SQLiteDatabase db = openDatabase(true);
+        String plan = assertNoFullScan(db, CellBroadcastContentProvider.buildSearchQuery(
+                CellBroadcastCursorAdapter.SEARCH_COLUMNS,
+                Telephony.CellBroadcasts.MESSAGE_DELETED + "=0", null, "200"), "\"flood*\"");
+        assertUsesIndex(plan, "VIRTUAL TABLE INDEX");
+        assertUsesIndex(plan, "bodyIdIndex");
+    }
+
+    private static long countMatches(SQLiteDatabase db, String match) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM "
+                + CellBroadcastDatabaseHelper.SEARCH_TABLE + " WHERE "
+                + CellBroadcastDatabaseHelper.SEARCH_TABLE + " MATCH ?", new String[] { match });
+    }
+
+    /** Return the reference count of a body, or -1 if it isn't stored. */
+    private static long getRefCount(SQLiteDatabase db, long bodyId) {
+        Cursor c = db.query(CellBroadcastDatabaseHelper.BODIES_TABLE,
+                new String[] { CellBroadcastDatabaseHelper.BODY_REF_COUNT },
+                Telephony.CellBroadcasts._ID + "=" + bodyId, null, null, null, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long insertBroadcastWithBody(SQLiteDatabase db, long bodyId) {
+        ContentValues cv = new ContentValues();
+        cv.put(CellBroadcastDatabaseHelper.BODY_ID, bodyId);
+        cv.put(Telephony.CellBroadcasts.MESSAGE_READ, 0);
+        return db.insert(TABLE, null, cv);
+    }
+
+    public void testBodiesAreSharedAndIndexed() {
+        SQLiteDatabase db = openDatabase(false);
+        long flood = CellBroadcastDatabaseHelper.getBodyId(db, "flash flood warning");
+        assertEquals(flood, CellBroadcastDatabaseHelper.getBodyId(db, "flash flood warning"));
+        long first = insertBroadcastWithBody(db, flood);
+        insertBroadcastWithBody(db, flood);
+        assertEquals(2, getRefCount(db, flood));
+        assertEquals(1, countMatches(db, "flood"));
+        assertEquals("flash flood warning", DatabaseUtils.stringForQuery(db, "SELECT "
+                + Telephony.CellBroadcasts.MESSAGE_BODY + " FROM "
+                + CellBroadcastDatabaseHelper.VIEW_NAME + " WHERE "
+                + Telephony.CellBroadcasts._ID + "=" + first, null));
+
+        // pointing a broadcast to another body moves its reference
+        long tsunami = CellBroadcastDatabaseHelper.getBodyId(db, "tsunami warning");
+        ContentValues cv = new ContentValues();
+        cv.put(CellBroadcastDatabaseHelper.BODY_ID, tsunami);
+        db.update(TABLE, cv, Telephony.CellBroadcasts._ID + "=" + first, null);
+        assertEquals(1, getRefCount(db, flood));
+        assertEquals(1, getRefCount(db, tsunami));
+
+        // a body goes away with its last broadcast
+        db.delete(TABLE, null, null);
+        assertEquals(-1, getRefCount(db, flood));
+        assertEquals(-1, getRefCount(db, tsunami));
+        assertEquals(0, countMatches(db, "warning"));
+    }
+
+    public void testBodiesWithSameFingerprintAreKept() {
+        SQLiteDatabase db = openDatabase(false);
+        // take the slot of "tsunami warning" with another text
+        long fingerprint = CellBroadcastDatabaseHelper.fingerprint("tsunami warning");
+        ContentValues cv = new ContentValues();
+        cv.put(Telephony.CellBroadcasts._ID, fingerprint);
+        cv.put(Telephony.CellBroadcasts.MESSAGE_BODY, "colliding body");
+        db.insert(CellBroadcastDatabaseHelper.BODIES_TABLE, null, cv);
+
+        long bodyId = CellBroadcastDatabaseHelper.getBodyId(db, "tsunami warning");
+        assertEquals(fingerprint + 1, bodyId);
+        assertEquals(bodyId, CellBroadcastDatabaseHelper.getBodyId(db, "tsunami warning"));
+        assertEquals(fingerprint, CellBroadcastDatabaseHelper.getBodyId(db, "colliding body"));
+    }
+
+    /** Message identifiers of the generated legacy broadcasts, in turn. */
+    private static final int[] LEGACY_MESSAGE_IDS = {
+            50,
+            SmsCbConstants.MESSAGE_ID_CMAS_ALERT_PRESIDENTIAL_LEVEL,
+            SmsCbConstants.MESSAGE_ID_CMAS_ALERT_EXTREME_IMMEDIATE_LIKELY,
+            SmsCbConstants.MESSAGE_ID_ETWS_TSUNAMI_WARNING,
+    };
+
+    /** Return the message body of a generated legacy broadcast. */
+    private static String getLegacyBody(int row) {
+        return row % 5 == 4 ? null : "legacy body " + row % 3;
+    }
+
+    /**
+     * Create the legacy database {@link #UPGRADE_DATABASE_NAME} with {@code rows} broadcasts,
+     * in the schema of version 1 or 14. Broadcast {@code i} has the message identifier
+     * {@code LEGACY_MESSAGE_IDS[i % 4]}, the body {@link #getLegacyBody}, a delivery time of
+     * {@code 1000 + i} and is read if {@code i} is odd. In version 1, the scope, message code
+     * and update number are {@code i} modulo their range.
+     */
+    private void createLegacyDatabase(int version, int rows) {
+        getContext().deleteDatabase(UPGRADE_DATABASE_NAME);
+        SQLiteDatabase db = getContext().openOrCreateDatabase(UPGRADE_DATABASE_NAME, 0, null);
+        try {
+            String insert;
+            if (version == 1) {
+                db.execSQL("CREATE TABLE " + TABLE + " ("
+                        + Telephony.CellBroadcasts._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                        + Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE + " INTEGER,"
+                        + Telephony.CellBroadcasts.SERIAL_NUMBER + " INTEGER,"
+                        + Telephony.CellBroadcasts.V1_MESSAGE_CODE + " INTEGER,"
+                        + Telephony.CellBroadcasts.V1_MESSAGE_IDENTIFIER + " INTEGER,"
+                        + Telephony.CellBroadcasts.LANGUAGE_CODE + " TEXT,"
+                        + Telephony.CellBroadcasts.MESSAGE_BODY + " TEXT,"
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + " INTEGER,"
+                        + Telephony.CellBroadcasts.MESSAGE_READ + " INTEGER);");
+                insert = "INSERT INTO " + TABLE + " ("
+                        + Telephony.CellBroadcasts.V1_MESSAGE_IDENTIFIER + ","
+                        + Telephony.CellBroadcasts.MESSAGE_BODY + ","
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                        + Telephony.CellBroadcasts.MESSAGE_READ + ","
+                        + Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE + ","
+                        + Telephony.CellBroadcasts.V1_MESSAGE_CODE + ","
+                        + Telephony.CellBroadcasts.SERIAL_NUMBER + ") VALUES (?,?,?,?,?,?,?)";
+            } else if (version == 14) {
+                db.execSQL("CREATE TABLE " + TABLE + " ("
+                        + Telephony.CellBroadcasts._ID + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                        + Telephony.CellBroadcasts.GEOGRAPHICAL_SCOPE + " INTEGER,"
+                        + Telephony.CellBroadcasts.PLMN + " TEXT,"
+                        + Telephony.CellBroadcasts.LAC + " INTEGER,"
+                        + Telephony.CellBroadcasts.CID + " INTEGER,"
+                        + Telephony.CellBroadcasts.SERIAL_NUMBER + " INTEGER,"
+                        + Telephony.CellBroadcasts.SERVICE_CATEGORY + " INTEGER,"
+                        + Telephony.CellBroadcasts.LANGUAGE_CODE + " TEXT,"
+                        + Telephony.CellBroadcasts.MESSAGE_BODY + " TEXT,"
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + " INTEGER,"
+                        + Telephony.CellBroadcasts.MESSAGE_READ + " INTEGER,"
+                        + Telephony.CellBroadcasts.MESSAGE_FORMAT + " INTEGER,"
+                        + Telephony.CellBroadcasts.MESSAGE_PRIORITY + " INTEGER,"
+                        + Telephony.CellBroadcasts.ETWS_WARNING_TYPE + " INTEGER,"
+                        + Telephony.CellBroadcasts.CMAS_MESSAGE_CLASS + " INTEGER,"
+                        + Telephony.CellBroadcasts.CMAS_CATEGORY + " INTEGER,"
+                        + Telephony.CellBroadcasts.CMAS_RESPONSE_TYPE + " INTEGER,"
+                        + Telephony.CellBroadcasts.CMAS_SEVERITY + " INTEGER,"
+                        + Telephony.CellBroadcasts.CMAS_URGENCY + " INTEGER,"
+                        + Telephony.CellBroadcasts.CMAS_CERTAINTY + " INTEGER);");
+                db.execSQL("CREATE TABLE " + CellBroadcastDatabaseHelper.CHANNEL_TABLE
+                        + " (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT, number INTEGER,"
+                        + " number_end INTEGER, enable BOOLEAN);");
+                db.execSQL("CREATE UNIQUE INDEX channelNumberIndex ON "
+                        + CellBroadcastDatabaseHelper.CHANNEL_TABLE + " (number);");
+                insert = "INSERT INTO " + TABLE + " ("
+                        + Telephony.CellBroadcasts.SERVICE_CATEGORY + ","
+                        + Telephony.CellBroadcasts.MESSAGE_BODY + ","
+                        + Telephony.CellBroadcasts.DELIVERY_TIME + ","
+                        + Telephony.CellBroadcasts.MESSAGE_READ + ") VALUES (?,?,?,?)";
+            } else {
+                throw new IllegalArgumentException("No legacy schema for version " + version);
+            }
+
+            SQLiteStatement statement = db.compileStatement(insert);
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < rows; i++) {
+                    statement.bindLong(1, LEGACY_MESSAGE_IDS[i % LEGACY_MESSAGE_IDS.length]);
+                    String body = getLegacyBody(i);
+                    if (body != null) {
+                        statement.bindString(2, body);
+                    } else {
+                        statement.bindNull(2);
+                    }
+                    statement.bindLong(3, 1000L + i);
+                    statement.bindLong(4, i % 2);
+                    if (version == 1) {
+                        statement.bindLong(5, i % 4);
+                        statement.bindLong(6, i % 1024);
+                        statement.bindLong(7, i % 16);
+                    }
+                    statement.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                statement.close();
+            }
+            db.setVersion(version);
+        } finally {
+            db.close();
+        }
+    }
+
+    /** Open the legacy database with the helper, upgrading it, and return the time taken. */
+    private long upgradeLegacyDatabase() {
+        mHelper = new CellBroadcastDatabaseHelper(getContext(), UPGRADE_DATABASE_NAME, false);
+        long start = SystemClock.elapsedRealtime();
+        mHelper.getWritableDatabase();
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /** Check the message bodies of the broadcasts upgraded from a legacy database. */
+    private void assertLegacyBodies(SQLiteDatabase db, int rows) {
+        assertEquals(0, DatabaseUtils.longForQuery(db, "SELECT count(*) FROM " + TABLE
+                + " WHERE " + Telephony.CellBroadcasts.MESSAGE_BODY + " IS NOT NULL", null));
+        Cursor c = db.query(CellBroadcastDatabaseHelper.VIEW_NAME,
+                new String[] { Telephony.CellBroadcasts.MESSAGE_BODY }, null, null, null, null,
+                Telephony.CellBroadcasts.DELIVERY_TIME);
+        int withBody = 0;
+        try {
+            assertEquals(rows, c.getCount());
+            for (int i = 0; c.moveToNext(); i++) {
+                assertEquals(getLegacyBody(i), c.getString(0));
+                if (getLegacyBody(i) != null) {
+                    withBody++;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        assertEquals(3, DatabaseUtils.queryNumEntries(db,
+                CellBroadcastDatabaseHelper.BODIES_TABLE));
+        // each broadcast with a body holds one reference
+        assertEquals(withBody, DatabaseUtils.longForQuery(db, "SELECT sum("
+                + CellBroadcastDatabaseHelper.BODY_REF_COUNT + ") FROM "
+                + CellBroadcastDatabaseHelper.BODIES_TABLE, null));
+        assertEquals(1, countMatches(db, "legacy body 0"));
+    }
+
+    public void testUpgradeFromV1() {
+        createLegacyDatabase(1, 10);
+        upgradeLegacyDatabase();
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertLegacyBodies(db, 10);
+
+        Cursor c = db.query(CellBroadcastDatabaseHelper.VIEW_NAME,
+                Telephony.CellBroadcasts.QUERY_COLUMNS, null, null, null, null,
+                Telephony.CellBroadcasts.DELIVERY_TIME);
+        try {
+            // a broadcast on an area info channel
+            assertTrue(c.moveToPosition(0));
+            CellBroadcastMessage message = CellBroadcastMessage.createFromCursor(c);
+            assertEquals(50, message.getServiceCategory());
+            assertFalse(message.isEmergencyAlertMessage());
+            assertFalse(message.isRead());
+
+            // an extreme CMAS alert, with the fields from its message identifier
+            assertTrue(c.moveToPosition(2));
+            message = CellBroadcastMessage.createFromCursor(c);
+            assertTrue(message.isCmasMessage());
+            assertEquals(SmsCbCmasInfo.CMAS_CLASS_EXTREME_THREAT, message.getCmasMessageClass());
+            assertEquals(SmsCbCmasInfo.CMAS_SEVERITY_EXTREME,
+                    message.getCmasWarningInfo().getSeverity());
+            assertEquals(SmsCbCmasInfo.CMAS_URGENCY_IMMEDIATE,
+                    message.getCmasWarningInfo().getUrgency());
+            assertEquals(SmsCbCmasInfo.CMAS_CERTAINTY_LIKELY,
+                    message.getCmasWarningInfo().getCertainty());
+            // scope, message code and update number
+            assertEquals((2 << 14) | (2 << 4) | 2, message.getSerialNumber());
+
+            // an ETWS warning
+            assertTrue(c.moveToPosition(3));
+            message = CellBroadcastMessage.createFromCursor(c);
+            assertTrue(message.isEtwsMessage());
+            assertFalse(message.isCmasMessage());
+            assertEquals(SmsCbEtwsInfo.ETWS_WARNING_TYPE_TSUNAMI,
+                    message.getEtwsWarningInfo().getWarningType());
+            assertTrue(message.isRead());
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testUpgradeFromV14() {
+        createLegacyDatabase(14, 10);
+        upgradeLegacyDatabase();
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        assertLegacyBodies(db, 10);
+        assertTrue(Arrays.equals(new long[] { 3, 3 }, readCounters(db, 50)));
+    }
+
+    /**
+     * Time the upgrade of legacy databases of {@link #UPGRADE_BENCHMARK_ROWS} broadcasts
+     * from each version the harness can generate.
+     */
+    @LargeTest
+    public void testUpgradeBenchmark() {
+        for (int version : new int[] { 1, 14 }) {
+            createLegacyDatabase(version, UPGRADE_BENCHMARK_ROWS);
+            long time = upgradeLegacyDatabase();
+            assertEquals(UPGRADE_BENCHMARK_ROWS, DatabaseUtils.queryNumEntries(
+                    mHelper.getReadableDatabase(), TABLE));
+            Log.i(TAG, "upgrade of " + UPGRADE_BENCHMARK_ROWS + " broadcasts from version "
+                    + version + " to " + CellBroadcastDatabaseHelper.DATABASE_VERSION + ": "
+                    + time + " ms");
+            mHelper.close();
+            mHelper = null;
+        }
+    }
+
+    /** Return the size of the database, in bytes. */
+    private static long getDatabaseSize(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    /**
+     * Compare the size of broadcasts repeating a few bodies, with the bodies shared and with
+     * each broadcast holding its body as before. The bodies held by the broadcasts are not
+     * indexed for search, which only favors the old layout.
+     */
+    @LargeTest
+    public void testBodyStoreSizeBenchmark() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 300) {
+            text.append("Area information for cell ");
+        }
+        SQLiteDatabase shared = openDatabase(false);
+        CellBroadcastDatabaseHelper inlineHelper = new CellBroadcastDatabaseHelper(
+                getContext(), null, false);
+        try {
+            SQLiteDatabase inline = inlineHelper.getWritableDatabase();
+            shared.beginTransaction();
+            inline.beginTransaction();
+            try {
+                for (int i = 0; i < SIZE_BENCHMARK_ROWS; i++) {
+                    String body = text + String.valueOf(i % SIZE_BENCHMARK_BODIES);
+                    ContentValues cv = new ContentValues();
+                    cv.put(Telephony.CellBroadcasts.SERVICE_CATEGORY, 50);
+                    cv.put(Telephony.CellBroadcasts.DELIVERY_TIME, 1000000L + i);
+                    cv.put(Telephony.CellBroadcasts.MESSAGE_READ, 1);
+                    cv.put(CellBroadcastDatabaseHelper.BODY_ID,
+                            CellBroadcastDatabaseHelper.getBodyId(shared, body));
+                    shared.insert(TABLE, null, cv);
+
+                    cv.remove(CellBroadcastDatabaseHelper.BODY_ID);
+                    cv.put(Telephony.CellBroadcasts.MESSAGE_BODY, body);
+                    inline.insert(TABLE, null, cv);
+                }
+                shared.setTransactionSuccessful();
+                inline.setTransactionSuccessful();
+            } finally {
+                shared.endTransaction();
+                inline.endTransaction();
+            }
+
+            long sharedSize = getDatabaseSize(shared);
+            long inlineSize = getDatabaseSize(inline);
+            Log.i(TAG, SIZE_BENCHMARK_ROWS + " broadcasts with " + SIZE_BENCHMARK_BODIES
+                    + " bodies of " + text.length() + " chars: shared bodies " + sharedSize
+                    + " bytes, bodies in broadcasts " + inlineSize + " bytes");
+            assertTrue(sharedSize < inlineSize);
+        } finally {
+            inlineHelper.close();
+        }
+    }
+
+    /** Return the total and unread counts of a service category. */
+    private static long[] readCounters(SQLiteDatabase db, int category) {
+        Cursor c = db.query(CellBroadcastDatabaseHelper.COUNTERS_TABLE, new String[] {
+                CellBroadcastDatabaseHelper.COUNTER_TOTAL,
+                CellBroadcastDatabaseHelper.COUNTER_UNREAD },
+                Telephony.CellBroadcasts.SERVICE_CATEGORY + "=" + category, null, null, null,
+                null);
+        try {
+            return c.moveToFirst() ? new long[] { c.getLong(0), c.getLong(1) } : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long insertBroadcast(SQLiteDatabase db, int category, boolean read) {
+        ContentValues cv = new ContentValues();
+        cv.put(Telephony.CellBroadcasts.SERVICE_CATEGORY, category);
+        cv.put(Telephony.CellBroadcasts.MESSAGE_READ, read ? 1 : 0);
+        return db.insert(TABLE, null, cv);
+    }
+
+    private void checkCountersFollowBroadcasts(boolean duplicateCheckDeletedRecords) {
+        SQLiteDatabase db = openDatabase(duplicateCheckDeletedRecords);
+        long first = insertBroadcast(db, 4370, false);
+        long second = insertBroadcast(db, 4370, false);
+        insertBroadcast(db, 4371, true);
+        assertTrue(Arrays.equals(new long[] { 2, 2 }, readCounters(db, 4370)));
+        assertTrue(Arrays.equals(new long[] { 1, 0 }, readCounters(db, 4371)));
+
+        ContentValues cv = new ContentValues();
+        cv.put(Telephony.CellBroadcasts.MESSAGE_READ, 1);
+        db.update(TABLE, cv, Telephony.CellBroadcasts._ID + "=" + first, null);
+        assertTrue(Arrays.equals(new long[] { 2, 1 }, readCounters(db, 4370)));
+
+        // updating other columns leaves the counters alone
+        cv.clear();
+        cv.put(Telephony.CellBroadcasts.MESSAGE_BODY, "body");
+        db.update(TABLE, cv, null, null);
+        assertTrue(Arrays.equals(new long[] { 2, 1 }, readCounters(db, 4370)));
+
+        if (duplicateCheckDeletedRecords) {
+            cv.clear();
+            cv.put(Telephony.CellBroadcasts.MESSAGE_DELETED, 1);
+            db.update(TABLE, cv, Telephony.CellBroadcasts._ID + "=" + second, null);
+        } else {
+            db.delete(TABLE, Telephony.CellBroadcasts._ID + "=" + second, null);
+        }
+        assertTrue(Arrays.equals(new long[] { 1, 0 }, readCounters(db, 4370)));
+
+        db.delete(TABLE, null, null);
+        assertTrue(Arrays.equals(new long[] { 0, 0 }, readCounters(db, 4370)));
+        assertTrue(Arrays.equals(new long[] { 0, 0 }, readCounters(db, 4371)));
+    }
+
+    public void testCountersFollowBroadcasts() {
+        checkCountersFollowBroadcasts(false);
+    }
+
+    public void testCountersFollowBroadcastsWithDeletedRecords() {
+        checkCountersFollowBroadcasts(true);
+    }
+
+    public void testHistoryDatabaseHasStorageProfile() {
+        CellBroadcastDatabaseHelper.StorageProfile profile =
+                new CellBroadcastDatabaseHelper.StorageProfile(0, 1234, true);
+        mHelper = new CellBroadcastDatabaseHelper(getContext(), PROFILE_DATABASE_NAME, false,
+                profile);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        ContentValues cv = new ContentValues();
+        cv.put(Telephony.CellBroadcasts.DELIVERY_TIME, 1000000L);
+        db.insert(TABLE, null, cv);
+
+        // the pooled connections of the list queries would report the defaults
+        SQLiteDatabase history = mHelper.getHistoryDatabase();
+        assertNotSame(db, history);
+        assertTrue(history.isReadOnly());
+        assertEquals(-1234, DatabaseUtils.longForQuery(history, "PRAGMA cache_size", null));
+        assertEquals(2, DatabaseUtils.longForQuery(history, "PRAGMA temp_store", null));
+        // reads the committed writes
+        assertEquals(1, DatabaseUtils.queryNumEntries(history, TABLE));
+        assertSame(history, mHelper.getHistoryDatabase());
+
+        mHelper.close();
+        assertFalse(history.isOpen());
+    }
+
+    /**
+     * Return the mean time in microseconds to read every column of the broadcast list,
+     * newest first, opening the database with {@code profile}. The list is read like the
+     * provider reads it, from the history database.
+     */
+    private long timeListReads(CellBroadcastDatabaseHelper.StorageProfile profile) {
+        mHelper = new CellBroadcastDatabaseHelper(getContext(), PROFILE_DATABASE_NAME, false,
+                profile);
+        SQLiteDatabase db = mHelper.getHistoryDatabase();
+        long total = 0;
+        for (int run = 0; run < PROFILE_BENCHMARK_RUNS; run++) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            Cursor c = db.query(CellBroadcastDatabaseHelper.VIEW_NAME,
+                    Telephony.CellBroadcasts.QUERY_COLUMNS, null, null, null, null,
+                    Telephony.CellBroadcasts.DEFAULT_SORT_ORDER);
+            try {
+                int columns = c.getColumnCount();
+                while (c.moveToNext()) {
+                    for (int i = 0; i < columns; i++) {
+                        c.getString(i);
+                    }
+                }
+                assertEquals(PROFILE_BENCHMARK_ROWS, c.getCount());
+            } finally {
+                c.close();
+            }
+            total += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        mHelper.close();
+        mHelper = null;
+        return total / PROFILE_BENCHMARK_RUNS / 1000;
+    }
+
+    /**
+     * Compare the cursor throughput of the broadcast list with the SQLite defaults and with
+     * the storage profile of this device, read as the provider reads it.
+     */
+    @LargeTest
+    public void testStorageProfileReadBenchmark() {
+        CellBroadcastDatabaseHelper.StorageProfile profile =
+                CellBroadcastDatabaseHelper.StorageProfile.forDevice(getContext());
+        mHelper = new CellBroadcastDatabaseHelper(getContext(), PROFILE_DATABASE_NAME, false,
+                profile);
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < PROFILE_BENCHMARK_ROWS; i++) {
+                ContentValues cv = new ContentValues();
+                cv.put(Telephony.CellBroadcasts.SERVICE_CATEGORY, 4370 + i % 10);
+                cv.put(Telephony.CellBroadcasts.DELIVERY_TIME, 1000000L + i);
+                cv.put(Telephony.CellBroadcasts.MESSAGE_READ, 1);
+                cv.put(CellBroadcastDatabaseHelper.BODY_ID, CellBroadcastDatabaseHelper
+                        .getBodyId(db, "history message body " + i));
+                db.insert(TABLE, null, cv);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mHelper.close();
+        mHelper = null;
+
+        long defaults = timeListReads(null);
+        long profiled = timeListReads(profile);
+        Log.i(TAG, "list read of " + PROFILE_BENCHMARK_ROWS + " broadcasts, mean of "
+                + PROFILE_BENCHMARK_RUNS + " runs: defaults " + defaults + " us ("
+                + PROFILE_BENCHMARK_ROWS * 1000L / Math.max(defaults, 1) + " rows/ms), "
+                + profile + " " + profiled + " us ("
+                + PROFILE_BENCHMARK_ROWS * 1000L / Math.max(profiled, 1) + " rows/ms)");
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Tests for the chunking of the text synthesized during the alert sound.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class com.android.cellbroadcastreceiver.CellBroadcastSpeechBufferTests \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CellBroadcastSpeechBufferTests extends AndroidTestCase {
+
+    public void testSplitText() {
+        StringBuilder text = new StringBuilder("Tornado warning in this area. ");
+        for (int i = 0; i < 20; i++) {
+            text.append("Take shelter now in a basement or an interior room. ");
+        }
+        ArrayList<String> chunks = CellBroadcastSpeechBuffer.splitText(text.toString(),
+                Locale.ENGLISH);
+
+        // the first sentence alone, so it is ready first
+        assertEquals("Tornado warning in this area.", chunks.get(0));
+        assertTrue(chunks.size() > 2);
+        StringBuilder joined = new StringBuilder();
+        for (String chunk : chunks) {
+            assertTrue(chunk, chunk.length() <= 300);
+            assertTrue(chunk, chunk.endsWith("."));
+            joined.append(chunk).append(' ');
+        }
+        assertEquals(text.toString(), joined.toString());
+    }
+
+    public void testSplitLongSentence() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("word ");
+        }
+        ArrayList<String> chunks = CellBroadcastSpeechBuffer.splitText(text.toString(), null);
+        assertEquals(2, chunks.size());
+        for (String chunk : chunks) {
+            assertTrue(chunk, chunk.length() <= 300);
+            assertTrue(chunk, chunk.endsWith("word"));
+        }
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.cellbroadcastreceiver;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the binding, sharing and idle shutdown of the text-to-speech engine, with engines
+ * that never connect and are initialized by the test.
+ *
+ * To run this test: runtest cellbroadcastreceiver
+ * or: adb shell am instrument -w -e class com.android.cellbroadcastreceiver.CellBroadcastTtsManagerTests \
+ *             com.android.cellbroadcastreceiver.tests/android.test.InstrumentationTestRunner
+ */
+public class CellBroadcastTtsManagerTests extends AndroidTestCase {
+
+    private static final long IDLE_TIMEOUT = 200;
+
+    /** An engine that doesn't bind to a service, and records the calls of the manager. */
+    private static class FakeEngine extends TextToSpeech {
+        final OnInitListener mListener;
+        final ArrayList<Locale> mLanguages = new ArrayList<Locale>();
+        boolean mShutdown;
+
+        FakeEngine(Context context, OnInitListener listener) {
+            // an engine that isn't installed, without fallback, fails without binding
+            super(context, null, "com.android.cellbroadcastreceiver.tests.no_engine", null,
+                    false);
+            mListener = listener;
+        }
+
+        @Override
+        public int setLanguage(Locale locale) {
+            mLanguages.add(locale);
+            return LANG_AVAILABLE;
+        }
+
+        @Override
+        public Locale getDefaultLanguage() {
+            return Locale.US;
+        }
+
+        @Override
+        public void shutdown() {
+            mShutdown = true;
+        }
+    }
+
+    /** Records the status reported to a session. */
+    private static class Session implements TextToSpeech.OnInitListener {
+        final ArrayList<Integer> mStatus = new ArrayList<Integer>();
+
+        @Override
+        public void onInit(int status) {
+            mStatus.add(status);
+        }
+    }
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private final ArrayList<FakeEngine> mEngines = new ArrayList<FakeEngine>();
+    private CellBroadcastTtsManager mManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("tts");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mManager = new CellBroadcastTtsManager(getContext(), mThread.getLooper(), IDLE_TIMEOUT,
+                new CellBroadcastTtsManager.EngineFactory() {
+                    @Override
+                    public TextToSpeech createEngine(Context context,
+                            TextToSpeech.OnInitListener listener) {
+                        FakeEngine engine = new FakeEngine(context, listener);
+                        mEngines.add(engine);
+                        return engine;
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quitSafely();
+        super.tearDown();
+    }
+
+    /** Run {@code runnable} on the looper of the manager and wait for it. */
+    private void runOnLooper(final Runnable runnable) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                runnable.run();
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private void acquire(final Session session) throws InterruptedException {
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mManager.acquire(session);
+            }
+        });
+    }
+
+    private void release(final Session session) throws InterruptedException {
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mManager.release(session);
+            }
+        });
+    }
+
+    private void warmUp() throws InterruptedException {
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                mManager.warmUp();
+            }
+        });
+    }
+
+    private void initEngine(final FakeEngine engine, final int status)
+            throws InterruptedException {
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                engine.mListener.onInit(status);
+            }
+        });
+    }
+
+    private TextToSpeech getTextToSpeech() throws InterruptedException {
+        final TextToSpeech[] tts = new TextToSpeech[1];
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+                tts[0] = mManager.getTextToSpeech();
+            }
+        });
+        return tts[0];
+    }
+
+    /** Wait for the messages posted to the looper of the manager to run. */
+    private void flushLooper() throws InterruptedException {
+        runOnLooper(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+
+    /** Wait past the idle timeout, and for the shutdown to run. */
+    private void waitForIdleShutdown() throws InterruptedException {
+        SystemClock.sleep(IDLE_TIMEOUT * 2);
+        flushLooper();
+    }
+
+    public void testAcquireBindsOnceAndSharesEngine() throws Exception {
+        Session first = new Session();
+        acquire(first);
+        assertEquals(1, mEngines.size());
+        assertTrue(first.mStatus.isEmpty());
+        assertNull(getTextToSpeech());
+
+        FakeEngine engine = mEngines.get(0);
+        initEngine(engine, TextToSpeech.SUCCESS);
+        assertEquals(1, first.mStatus.size());
+        assertEquals(TextToSpeech.SUCCESS, (int) first.mStatus.get(0));
+        assertSame(engine, getTextToSpeech());
+        // the session sets its own language, without waiting for the warm-up
+        flushLooper();
+        assertTrue(engine.mLanguages.isEmpty());
+
+        // a second session gets the ready engine right away
+        Session second = new Session();
+        acquire(second);
+        assertEquals(1, second.mStatus.size());
+        assertEquals(1, mEngines.size());
+    }
+
+    public void testWarmUpSetsLikelyLanguagesAfterInit() throws Exception {
+        warmUp();
+        FakeEngine engine = mEngines.get(0);
+        initEngine(engine, TextToSpeech.SUCCESS);
+        flushLooper();
+        // warmed up with the likely languages, then back to the default language
+        assertTrue(engine.mLanguages.contains(new Locale("ja")));
+        assertEquals(Locale.US, engine.mLanguages.get(engine.mLanguages.size() - 1));
+    }
+
+    public void testIdleShutdownAfterLastRelease() throws Exception {
+        Session first = new Session();
+        Session second = new Session();
+        acquire(first);
+        initEngine(mEngines.get(0), TextToSpeech.SUCCESS);
+        acquire(second);
+
+        release(first);
+        waitForIdleShutdown();
+        assertFalse(mEngines.get(0).mShutdown);
+
+        release(second);
+        assertFalse(mEngines.get(0).mShutdown);
+        waitForIdleShutdown();
+        assertTrue(mEngines.get(0).mShutdown);
+        assertNull(getTextToSpeech());
+
+        // the next session binds a new engine
+        acquire(first);
+        assertEquals(2, mEngines.size());
+    }
+
+    public void testAcquireCancelsIdleShutdownOfWarmUp() throws Exception {
+        warmUp();
+        initEngine(mEngines.get(0), TextToSpeech.SUCCESS);
+        Session session = new Session();
+        acquire(session);
+        assertEquals(1, session.mStatus.size());
+
+        waitForIdleShutdown();
+        assertFalse(mEngines.get(0).mShutdown);
+        assertSame(mEngines.get(0), getTextToSpeech());
+    }
+
+    public void testInitErrorUnbindsEngine() throws Exception {
+        Session session = new Session();
+        acquire(session);
+        FakeEngine engine = mEngines.get(0);
+        initEngine(engine, TextToSpeech.ERROR);
+        assertEquals(1, session.mStatus.size());
+        assertEquals(TextToSpeech.ERROR, (int) session.mStatus.get(0));
+        assertTrue(engine.mShutdown);
+        assertNull(getTextToSpeech());
+
+        // the session gives up the engine, and the next one binds again
+        release(session);
+        Session next = new Session();
+        acquire(next);
+        assertEquals(2, mEngines.size());
+        initEngine(mEngines.get(1), TextToSpeech.SUCCESS);
+        assertEquals(TextToSpeech.SUCCESS, (int) next.mStatus.get(0));
+    }
+
+    public void testInitOfShutDownEngineIsIgnored() throws Exception {
+        warmUp();
+        FakeEngine engine = mEngines.get(0);
+        waitForIdleShutdown();
+        assertTrue(engine.mShutdown);
+
+        // the engine connects after it was shut down
+        initEngine(engine, TextToSpeech.SUCCESS);
+        assertNull(getTextToSpeech());
+        assertTrue(engine.mLanguages.isEmpty());
+    }
+}